@@ -0,0 +1,152 @@
+package org.vaadin.addon;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.util.Random;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.chart.renderer.xy.XYAreaRenderer;
+import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.jfree.data.statistics.Regression;
+import org.jfree.data.xy.DefaultXYDataset;
+import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.XYSeriesCollection;
+
+/**
+ * The demo charts of {@link JFreeChartWithVaadin} with a configurable amount
+ * of generated data, for benchmarking.
+ * 
+ * The data is pseudo random with a fixed seed, so every run draws the same
+ * charts. XY series are collected in {@link XYSeriesCollection}s instead of
+ * the DefaultTableXYDataset of the demo, which would make creating charts
+ * with a million points take minutes.
+ */
+public enum DemoCharts {
+
+	/**
+	 * The bar chart with gradient paints, three series.
+	 */
+	BAR {
+		@Override
+		JFreeChart create(int points) {
+			Random random = new Random(SEED);
+			DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+			int categories = Math.max(1, points / 3);
+			for (int c = 0; c < categories; c++) {
+				String category = "Category " + (c + 1);
+				dataset.addValue(1 + random.nextInt(8), "First", category);
+				dataset.addValue(1 + random.nextInt(8), "Second", category);
+				dataset.addValue(1 + random.nextInt(8), "Third", category);
+			}
+
+			JFreeChart chart = ChartFactory.createBarChart("Bar Chart Demo 1",
+					"Category", "Value", dataset, PlotOrientation.VERTICAL,
+					true, true, false);
+			chart.setBackgroundPaint(Color.white);
+			CategoryPlot plot = (CategoryPlot) chart.getPlot();
+			plot.setBackgroundPaint(Color.lightGray);
+			plot.setDomainGridlinePaint(Color.white);
+			plot.setDomainGridlinesVisible(true);
+			plot.setRangeGridlinePaint(Color.white);
+			NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+			rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+
+			BarRenderer renderer = (BarRenderer) plot.getRenderer();
+			renderer.setSeriesPaint(0, new GradientPaint(0.0f, 0.0f,
+					Color.blue, 0.0f, 0.0f, new Color(0, 0, 64)));
+			renderer.setSeriesPaint(1, new GradientPaint(0.0f, 0.0f,
+					Color.green, 0.0f, 0.0f, new Color(0, 64, 0)));
+			renderer.setSeriesPaint(2, new GradientPaint(0.0f, 0.0f,
+					Color.red, 0.0f, 0.0f, new Color(64, 0, 0)));
+
+			CategoryAxis domainAxis = plot.getDomainAxis();
+			domainAxis.setCategoryLabelPositions(CategoryLabelPositions
+					.createUpRotationLabelPositions(Math.PI / 6.0));
+			return chart;
+		}
+	},
+
+	/**
+	 * The level chart: three series drawn as areas with shapes and one as a
+	 * line with shapes.
+	 */
+	LEVEL {
+		@Override
+		JFreeChart create(int points) {
+			Random random = new Random(SEED);
+			int perSeries = Math.max(2, points / 4);
+			XYSeriesCollection ds = new XYSeriesCollection();
+			ds.addSeries(randomWalk("BAR", perSeries, 50, random));
+			ds.addSeries(randomWalk("FOO", perSeries, 60, random));
+			ds.addSeries(randomWalk("SDF", perSeries, 70, random));
+			XYSeriesCollection ds2 = new XYSeriesCollection();
+			ds2.addSeries(randomWalk("DOO", perSeries, 55, random));
+
+			XYPlot plot2 = new XYPlot(ds2, new NumberAxis("X"),
+					new NumberAxis("Y"), new XYLineAndShapeRenderer());
+			plot2.setDataset(1, ds);
+			plot2.setRenderer(1, new XYAreaRenderer(
+					XYAreaRenderer.AREA_AND_SHAPES));
+			return new JFreeChart(plot2);
+		}
+	},
+
+	/**
+	 * The horizontal scatter plot with a regression line.
+	 */
+	SCATTER {
+		@Override
+		JFreeChart create(int points) {
+			Random random = new Random(SEED);
+			XYSeries series = new XYSeries("BAR", true, true);
+			for (int i = 0; i < Math.max(2, points); i++) {
+				double x = 1 + 5.0 * i / points;
+				series.add(x, 2 * x + random.nextGaussian(), false);
+			}
+			XYSeriesCollection ds = new XYSeriesCollection(series);
+
+			JFreeChart scatterPlot = ChartFactory.createScatterPlot(
+					"Regression", "X", "Y", ds, PlotOrientation.HORIZONTAL,
+					true, false, false);
+			XYPlot plot = (XYPlot) scatterPlot.getPlot();
+
+			double[] regression = Regression.getOLSRegression(ds, 0);
+			double v1 = regression[0] + regression[1] * 1;
+			double v2 = regression[0] + regression[1] * 6;
+			DefaultXYDataset ds2 = new DefaultXYDataset();
+			ds2.addSeries("regline", new double[][] { new double[] { 1, 6 },
+					new double[] { v1, v2 } });
+			plot.setDataset(1, ds2);
+			plot.setRenderer(1, new XYLineAndShapeRenderer(true, false));
+			return new JFreeChart(plot);
+		}
+	};
+
+	private static final long SEED = 42;
+
+	/**
+	 * Creates the chart with approximately the given number of data items
+	 * in total.
+	 */
+	abstract JFreeChart create(int points);
+
+	private static XYSeries randomWalk(String key, int count, double start,
+			Random random) {
+		XYSeries series = new XYSeries(key, true, false);
+		double y = start;
+		for (int i = 0; i < count; i++) {
+			y = Math.max(0, y + random.nextGaussian());
+			series.add(i, y, false);
+		}
+		return series;
+	}
+}
@@ -0,0 +1,111 @@
+package org.vaadin.addon;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jfree.chart.ChartUtils;
+import org.jfree.chart.JFreeChart;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.addon.PngEncoder.Filter;
+
+/**
+ * Compares encoding a drawn chart with {@link PngEncoder} settings to
+ * {@link ChartUtils#writeBufferedImageAsPNG}, the ImageIO based encoder used
+ * by JFreeChart. The size of the output of each encoder is printed when the
+ * benchmark is set up.
+ * 
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="PngEncodeBenchmark"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PngEncodeBenchmark {
+
+	/**
+	 * The encoders compared.
+	 */
+	public enum Encoder {
+		CHART_UTILS(null),
+		DEFAULT(new PngEncoder()),
+		NONE_1(new PngEncoder(1, Filter.NONE, true)),
+		UP_6(new PngEncoder(6, Filter.UP, true)),
+		PAETH_6(new PngEncoder(6, Filter.PAETH, true)),
+		ADAPTIVE_9(new PngEncoder(9, Filter.ADAPTIVE, true));
+
+		final PngEncoder encoder;
+
+		Encoder(PngEncoder encoder) {
+			this.encoder = encoder;
+		}
+	}
+
+	@Param
+	public DemoCharts chart;
+
+	@Param({ "809x500", "1618x1000" })
+	public String size;
+
+	/**
+	 * Charts drawn without antialiasing have few enough colors for a palette.
+	 */
+	@Param({ "true", "false" })
+	public boolean antialiasing;
+
+	@Param
+	public Encoder encoder;
+
+	private BufferedImage image;
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(
+			1024 * 1024);
+
+	@Setup
+	public void setUp() throws IOException {
+		JFreeChart jfreeChart = chart.create(10000);
+		jfreeChart.setAntiAlias(antialiasing);
+		jfreeChart.setTextAntiAlias(antialiasing ? RenderingHints.VALUE_TEXT_ANTIALIAS_ON
+				: RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+		String[] dimensions = size.split("x");
+		int width = Integer.parseInt(dimensions[0]);
+		int height = Integer.parseInt(dimensions[1]);
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = image.createGraphics();
+		jfreeChart.draw(g2, new Rectangle(width, height));
+		g2.dispose();
+		System.out.println();
+		System.out.println(encoder + ": " + encode() + " bytes");
+	}
+
+	/**
+	 * @return the size of the PNG, so that it is not optimized away
+	 */
+	@Benchmark
+	public int encode() throws IOException {
+		out.reset();
+		if (encoder.encoder == null) {
+			ChartUtils.writeBufferedImageAsPNG(out, image);
+		} else {
+			encoder.encoder.encode(image, out);
+		}
+		return out.size();
+	}
+}
@@ -0,0 +1,117 @@
+package org.vaadin.addon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.addon.JFreeChartWrapper.RenderingMode;
+import org.vaadin.addon.JFreeChartWrapper.SvgBackend;
+
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.StreamResource;
+
+/**
+ * Measures rendering a chart the way a browser download does, through
+ * {@link JFreeChartWrapper#getSource()}, with the render cache disabled so
+ * that every invocation draws the chart.
+ * 
+ * Run all of them with
+ * 
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec
+ * </pre>
+ * 
+ * or a subset by passing JMH options, e.g.
+ * <code>-Djmh.args="RenderBenchmark -p chart=LEVEL -p points=10000 -prof gc"</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RenderBenchmark {
+
+	/**
+	 * The produced payloads.
+	 */
+	public enum Output {
+		SVG_BATIK(RenderingMode.SVG, SvgBackend.BATIK, false, false),
+		SVG_BATIK_GZIP(RenderingMode.SVG, SvgBackend.BATIK, true, false),
+		SVG_BATIK_MINIFIED(RenderingMode.SVG, SvgBackend.BATIK, false, true),
+		SVG_STREAMING(RenderingMode.SVG, SvgBackend.STREAMING, false, false),
+		SVG_STREAMING_GZIP(RenderingMode.SVG, SvgBackend.STREAMING, true,
+				false),
+		SVG_STREAMING_MINIFIED(RenderingMode.SVG, SvgBackend.STREAMING,
+				false, true),
+		PNG(RenderingMode.PNG, SvgBackend.BATIK, false, false);
+
+		final RenderingMode mode;
+		final SvgBackend backend;
+		final boolean gzip;
+		final boolean minified;
+
+		Output(RenderingMode mode, SvgBackend backend, boolean gzip,
+				boolean minified) {
+			this.mode = mode;
+			this.backend = backend;
+			this.gzip = gzip;
+			this.minified = minified;
+		}
+	}
+
+	@Param
+	public DemoCharts chart;
+
+	@Param({ "100", "10000", "100000", "1000000" })
+	public int points;
+
+	@Param({ "809x500", "1618x1000" })
+	public String size;
+
+	@Param
+	public Output output;
+
+	private JFreeChartWrapper wrapper;
+	private final byte[] buffer = new byte[8192];
+
+	@Setup
+	public void setUp() {
+		wrapper = new JFreeChartWrapper(chart.create(points), output.mode);
+		wrapper.setSvgBackend(output.backend);
+		// the gzip variant is compressed when the chart is rendered
+		wrapper.setGzipCompression(output.gzip);
+		wrapper.setSvgMinifier(output.minified ? new SvgMinifier() : null);
+		wrapper.setRenderCacheSize(0);
+		String[] dimensions = size.split("x");
+		wrapper.setGraphWidth(Integer.parseInt(dimensions[0]));
+		wrapper.setGraphHeight(Integer.parseInt(dimensions[1]));
+	}
+
+	/**
+	 * @return the size of the payload, so that it is not optimized away
+	 */
+	@Benchmark
+	public long render() throws IOException {
+		DownloadStream stream = ((StreamResource) wrapper.getSource())
+				.getStream();
+		InputStream in = stream.getStream();
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			total += read;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,56 @@
+package org.vaadin.addon;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Measures what the Batik SVG backend does per render before the chart is
+ * drawn: setting up a document and an {@link SVGGraphics2D}, either from
+ * scratch or from the {@link SvgGeneratorPool}.
+ * 
+ * <pre>
+ * mvn -P benchmarks test-compile exec:exec -Djmh.args="SvgSetupBenchmark -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SvgSetupBenchmark {
+
+	/**
+	 * The setup done for every render before pooling.
+	 */
+	@Benchmark
+	public SVGGraphics2D fresh() throws ParserConfigurationException {
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder();
+		Document document = builder.newDocument();
+		document.appendChild(document.createElement("svg"));
+		return new SVGGraphics2D(document);
+	}
+
+	@Benchmark
+	public SVGGraphics2D pooled() {
+		SvgGeneratorPool generators = SvgGeneratorPool.acquire();
+		try {
+			return generators.createGraphics();
+		} finally {
+			generators.release();
+		}
+	}
+}
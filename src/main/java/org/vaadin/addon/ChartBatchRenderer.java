@@ -0,0 +1,124 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.jfree.chart.JFreeChart;
+
+/**
+ * Renders the charts of many wrappers in parallel, e.g. all charts of a
+ * dashboard after it has been built or refreshed.
+ * <p>
+ * Without batching each chart is drawn when the browser requests it, one
+ * after the other as the requests of a session are handled in turn, so a
+ * dashboard takes the sum of the render times of its charts to show up. The
+ * batch renderer draws them on a fork-join pool and puts the results in the
+ * render caches of the wrappers, from where the requests of the browser are
+ * served without drawing, so the dashboard takes about as long as its slowest
+ * chart.
+ * 
+ * <pre>
+ * layout.addComponents(salesChart, stockChart, ordersChart);
+ * new ChartBatchRenderer().render(Arrays.asList(salesChart, stockChart,
+ * 		ordersChart));
+ * </pre>
+ * <p>
+ * Charts are drawn while the calling thread waits and holds the session lock,
+ * so that they are not modified during drawing. Wrappers sharing a chart are
+ * rendered one after the other. Render listeners are notified on the threads
+ * of the pool.
+ */
+public class ChartBatchRenderer {
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a batch renderer using the common fork-join pool.
+	 */
+	public ChartBatchRenderer() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool
+	 *            the pool the charts are drawn on
+	 */
+	public ChartBatchRenderer(ForkJoinPool pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException("Pool must not be null");
+		}
+		this.pool = pool;
+	}
+
+	/**
+	 * Renders the charts of the given wrappers that are not in their render
+	 * caches yet and waits until all of them are drawn. Must be called with
+	 * the session of the wrappers locked, e.g. from a listener or
+	 * {@link com.vaadin.ui.UI#access(Runnable)}.
+	 * <p>
+	 * Only attached wrappers are rendered, as the output of a wrapper in
+	 * {@link JFreeChartWrapper.RenderingMode#AUTO} mode is decided when it is
+	 * attached. Wrappers with a disabled render cache and without a shared
+	 * cache key gain nothing from being rendered in advance. Charts that fail
+	 * to render are rendered again when requested.
+	 * 
+	 * @param wrappers
+	 *            the wrappers to render
+	 * @return the number of charts drawn
+	 */
+	public int render(Collection<? extends JFreeChartWrapper> wrappers) {
+		Map<JFreeChart, List<Runnable>> rendersByChart = new IdentityHashMap<JFreeChart, List<Runnable>>();
+		for (JFreeChartWrapper wrapper : wrappers) {
+			Runnable render = wrapper.prepareRender();
+			if (render != null) {
+				List<Runnable> renders = rendersByChart.get(wrapper.getChart());
+				if (renders == null) {
+					renders = new ArrayList<Runnable>();
+					rendersByChart.put(wrapper.getChart(), renders);
+				}
+				renders.add(render);
+			}
+		}
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (final List<Runnable> renders : rendersByChart.values()) {
+			tasks.add(() -> {
+				// a chart must not be drawn by two threads at once
+				for (Runnable render : renders) {
+					render.run();
+				}
+				return renders.size();
+			});
+		}
+		int drawn = 0;
+		for (Future<Integer> result : pool.invokeAll(tasks)) {
+			try {
+				drawn += result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// rendered on request instead
+			}
+		}
+		return drawn;
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jfree.chart.event.ChartChangeEvent;
+import org.jfree.chart.event.ChartChangeListener;
+
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.StreamResource;
+import com.vaadin.ui.Embedded;
+
+/**
+ * Shows several charts in one SVG document, downloaded with a single request
+ * instead of one request per chart.
+ * <p>
+ * Each chart is drawn once as a {@code <symbol>} and placed in a grid with a
+ * {@code <use>} element. The charts are configured with
+ * {@link JFreeChartWrapper}s as usual (size, aspect ratio, decimation), but
+ * the wrappers are added to the bundle instead of a layout. Similar charts
+ * share much of their markup, which gzip compresses better in one document
+ * than in separate ones.
+ * 
+ * <pre>
+ * ChartBundle dashboard = new ChartBundle(2);
+ * dashboard.addChart(new JFreeChartWrapper(salesChart));
+ * dashboard.addChart(new JFreeChartWrapper(stockChart));
+ * dashboard.setSizeFull();
+ * layout.addComponent(dashboard);
+ * </pre>
+ * 
+ * The document is sent to the browser again when any of the charts changes.
+ */
+@SuppressWarnings("serial")
+public class ChartBundle extends Embedded {
+
+	private final List<JFreeChartWrapper> charts = new ArrayList<JFreeChartWrapper>();
+	private final ChartChangeListener changeListener = new BundleInvalidator();
+	private int columns;
+	private int gap = 0;
+	private boolean gzipEnabled = false;
+	// version of the document last sent to the browser
+	private String sourceVersion;
+	private transient RenderedChart rendered;
+	private transient String renderedVersion;
+	// true while the charts are drawn, their changes are not real changes
+	private transient boolean rendering;
+
+	/**
+	 * @param columns
+	 *            the number of charts on each row of the grid
+	 */
+	public ChartBundle(int columns) {
+		setColumns(columns);
+		setType(TYPE_OBJECT);
+		setMimeType("image/svg+xml");
+	}
+
+	/**
+	 * Adds a chart to the end of the grid.
+	 */
+	public void addChart(JFreeChartWrapper wrapper) {
+		charts.add(wrapper);
+		wrapper.getChart().addChangeListener(changeListener);
+		markAsDirty();
+	}
+
+	public void removeChart(JFreeChartWrapper wrapper) {
+		if (charts.remove(wrapper)) {
+			wrapper.getChart().removeChangeListener(changeListener);
+			markAsDirty();
+		}
+	}
+
+	public List<JFreeChartWrapper> getCharts() {
+		return Collections.unmodifiableList(charts);
+	}
+
+	public void setColumns(int columns) {
+		if (columns < 1) {
+			throw new IllegalArgumentException(
+					"There must be at least one column");
+		}
+		this.columns = columns;
+		markAsDirty();
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @param pixels
+	 *            the space between the charts of the grid, default 0
+	 */
+	public void setGap(int pixels) {
+		gap = pixels;
+		markAsDirty();
+	}
+
+	public int getGap() {
+		return gap;
+	}
+
+	/**
+	 * Sends the document gzip compressed to browsers accepting it, see
+	 * {@link JFreeChartWrapper#setGzipCompression(boolean)}.
+	 */
+	public void setGzipCompression(boolean compress) {
+		gzipEnabled = compress;
+		renderedVersion = null;
+	}
+
+	public boolean isGzipCompression() {
+		return gzipEnabled;
+	}
+
+	@Override
+	public void beforeClientResponse(boolean initial) {
+		super.beforeClientResponse(initial);
+		String version = getVersion();
+		if (!version.equals(sourceVersion)) {
+			sourceVersion = version;
+			// versioned file name, a changed bundle is always downloaded
+			setResource("src", new BundleResource(version));
+		}
+	}
+
+	/**
+	 * @return identifies the document as it would be rendered now
+	 */
+	private String getVersion() {
+		StringBuilder versions = new StringBuilder();
+		versions.append(columns).append(':').append(gap);
+		for (JFreeChartWrapper wrapper : charts) {
+			versions.append(':').append(wrapper.getRenderVersion());
+		}
+		return RenderKey.hash(versions.toString());
+	}
+
+	/**
+	 * Draws all charts into one document, unless the current version has
+	 * been drawn already. Must be called with the session locked.
+	 */
+	private RenderedChart render(String version) throws IOException {
+		if (version.equals(renderedVersion)) {
+			return rendered;
+		}
+		int columns = Math.max(1, Math.min(this.columns, charts.size()));
+		int[] columnWidths = new int[columns];
+		int[] rowHeights = new int[(charts.size() + columns - 1) / columns];
+		for (int i = 0; i < charts.size(); i++) {
+			JFreeChartWrapper wrapper = charts.get(i);
+			columnWidths[i % columns] = Math.max(columnWidths[i % columns],
+					wrapper.getGraphWidth());
+			rowHeights[i / columns] = Math.max(rowHeights[i / columns],
+					wrapper.getGraphHeight());
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		StreamingSVGGraphics2D g2 = new StreamingSVGGraphics2D(
+				new BufferedWriter(new OutputStreamWriter(bytes,
+						StandardCharsets.UTF_8), 8192));
+		g2.startDocument(offset(columnWidths, columns),
+				offset(rowHeights, rowHeights.length), "xMidYMid meet");
+		rendering = true;
+		try {
+			for (int i = 0; i < charts.size(); i++) {
+				charts.get(i).drawSymbol(g2, "chart" + i);
+			}
+		} finally {
+			rendering = false;
+		}
+		for (int i = 0; i < charts.size(); i++) {
+			JFreeChartWrapper wrapper = charts.get(i);
+			g2.use("chart" + i, offset(columnWidths, i % columns),
+					offset(rowHeights, i / columns), wrapper.getGraphWidth(),
+					wrapper.getGraphHeight());
+		}
+		g2.endDocument();
+		byte[] document = bytes.toByteArray();
+		rendered = new RenderedChart(document, gzipEnabled ? ParallelDeflater
+				.getInstance().gzip(document) : null,
+				JFreeChartWrapper.RenderingMode.SVG);
+		renderedVersion = version;
+		return rendered;
+	}
+
+	/**
+	 * @return the position of the cell with the given index along the grid,
+	 *         or the size of the grid for the number of cells
+	 */
+	private int offset(int[] sizes, int index) {
+		int offset = 0;
+		for (int i = 0; i < index; i++) {
+			offset += sizes[i] + gap;
+		}
+		return index > 0 ? offset - (index == sizes.length ? gap : 0)
+				: offset;
+	}
+
+	/**
+	 * The document of one version of the bundle.
+	 */
+	private class BundleResource extends StreamResource {
+
+		private final String version;
+
+		BundleResource(String version) {
+			super(null, "charts-" + version + ".svg");
+			this.version = version;
+			setMIMEType("image/svg+xml");
+		}
+
+		@Override
+		public DownloadStream getStream() {
+			RenderedChart document;
+			try {
+				document = render(version);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to render the bundle",
+						e);
+			}
+			boolean gzip = document.hasGzipVariant()
+					&& JFreeChartWrapper.acceptsGzip();
+			DownloadStream stream = new DownloadStream(
+					gzip ? document.getGzipInputStream() : document
+							.getInputStream(), getMIMEType(), getFilename());
+			stream.setBufferSize(gzip ? document.getGzipSize() : document
+					.getSize());
+			stream.setCacheTime(getCacheTime());
+			if (document.hasGzipVariant()) {
+				stream.setParameter("Vary", "Accept-Encoding");
+			}
+			if (gzip) {
+				stream.setParameter("Content-Encoding", "gzip");
+			}
+			return stream;
+		}
+	}
+
+	/**
+	 * Sends the bundle again when one of its charts changes.
+	 */
+	private class BundleInvalidator implements ChartChangeListener,
+			Serializable {
+
+		@Override
+		public void chartChanged(ChartChangeEvent event) {
+			// renders of the charts elsewhere restore decimated datasets,
+			// possibly on a thread not holding the session lock
+			if (!rendering && !XYDecimation.isRestoring()) {
+				markAsDirty();
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.CombinedDomainCategoryPlot;
+import org.jfree.chart.plot.CombinedDomainXYPlot;
+import org.jfree.chart.plot.CombinedRangeCategoryPlot;
+import org.jfree.chart.plot.CombinedRangeXYPlot;
+import org.jfree.chart.plot.PiePlot;
+import org.jfree.chart.plot.Plot;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.chart.renderer.category.CategoryItemRenderer;
+import org.jfree.chart.renderer.category.LineAndShapeRenderer;
+import org.jfree.chart.renderer.xy.XYBarRenderer;
+import org.jfree.chart.renderer.xy.XYItemRenderer;
+import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.data.general.PieDataset;
+import org.jfree.data.xy.XYDataset;
+
+/**
+ * Estimates the number of SVG elements a chart is drawn with, from the item
+ * counts of its datasets and what their renderers draw for each item, without
+ * drawing the chart.
+ * <p>
+ * The estimate counts the shapes drawn for the data items plus a fixed number
+ * for titles, axes and the legend. It is meant for choosing between SVG and
+ * PNG, so it only needs to be of the right magnitude: a line drawn as one
+ * path per series is still counted per item, and labels of items are not
+ * counted at all.
+ */
+final class ChartComplexity {
+
+	// titles, axis lines, ticks, tick labels, grid lines and the legend
+	private static final int FIXED_ELEMENTS = 100;
+	// decimation keeps at most the first, minimum, maximum and last item of
+	// each pixel column
+	private static final int DECIMATED_ITEMS_PER_COLUMN = 4;
+
+	private ChartComplexity() {
+	}
+
+	/**
+	 * @param width
+	 *            the width of the chart in pixels
+	 * @param height
+	 *            the height of the chart in pixels
+	 * @param decimated
+	 *            true if the XY datasets are decimated for drawing, see
+	 *            {@link XYDecimation}
+	 * @return the estimated number of elements of the chart as SVG
+	 */
+	static long estimateElements(JFreeChart chart, int width, int height,
+			boolean decimated) {
+		return FIXED_ELEMENTS
+				+ estimateElements(chart.getPlot(), width, height, decimated);
+	}
+
+	private static long estimateElements(Plot plot, int width, int height,
+			boolean decimated) {
+		long elements = 0;
+		if (plot instanceof CombinedDomainXYPlot) {
+			for (Object subplot : ((CombinedDomainXYPlot) plot).getSubplots()) {
+				elements += estimateElements((Plot) subplot, width, height,
+						decimated);
+			}
+		} else if (plot instanceof CombinedRangeXYPlot) {
+			for (Object subplot : ((CombinedRangeXYPlot) plot).getSubplots()) {
+				elements += estimateElements((Plot) subplot, width, height,
+						decimated);
+			}
+		} else if (plot instanceof CombinedDomainCategoryPlot) {
+			for (Object subplot : ((CombinedDomainCategoryPlot) plot)
+					.getSubplots()) {
+				elements += estimateElements((Plot) subplot, width, height,
+						decimated);
+			}
+		} else if (plot instanceof CombinedRangeCategoryPlot) {
+			for (Object subplot : ((CombinedRangeCategoryPlot) plot)
+					.getSubplots()) {
+				elements += estimateElements((Plot) subplot, width, height,
+						decimated);
+			}
+		} else if (plot instanceof XYPlot) {
+			XYPlot xyPlot = (XYPlot) plot;
+			int columns = xyPlot.getOrientation().isHorizontal() ? height
+					: width;
+			for (int i = 0; i < xyPlot.getDatasetCount(); i++) {
+				XYDataset dataset = xyPlot.getDataset(i);
+				if (dataset != null) {
+					elements += estimateElements(dataset,
+							xyPlot.getRendererForDataset(dataset), decimated
+									? columns : -1);
+				}
+			}
+		} else if (plot instanceof CategoryPlot) {
+			CategoryPlot categoryPlot = (CategoryPlot) plot;
+			for (int i = 0; i < categoryPlot.getDatasetCount(); i++) {
+				CategoryDataset dataset = categoryPlot.getDataset(i);
+				if (dataset != null) {
+					elements += estimateElements(dataset,
+							categoryPlot.getRendererForDataset(dataset));
+				}
+			}
+		} else if (plot instanceof PiePlot) {
+			PieDataset dataset = ((PiePlot) plot).getDataset();
+			if (dataset != null) {
+				// a section and its label
+				elements += 2L * dataset.getItemCount();
+			}
+		}
+		return elements;
+	}
+
+	/**
+	 * @param columns
+	 *            the number of pixel columns the series are decimated to, -1
+	 *            if they are not decimated
+	 */
+	private static long estimateElements(XYDataset dataset,
+			XYItemRenderer renderer, int columns) {
+		if (renderer == null) {
+			return 0;
+		}
+		long elements = 0;
+		for (int series = 0; series < dataset.getSeriesCount(); series++) {
+			if (!renderer.isSeriesVisible(series)) {
+				continue;
+			}
+			long items = dataset.getItemCount(series);
+			if (columns >= 0 && XYDecimation.isDecimatable(renderer)) {
+				items = Math.min(items, (long) DECIMATED_ITEMS_PER_COLUMN
+						* columns);
+			}
+			elements += items * elementsPerItem(renderer, series);
+		}
+		return elements;
+	}
+
+	private static long estimateElements(CategoryDataset dataset,
+			CategoryItemRenderer renderer) {
+		if (renderer == null) {
+			return 0;
+		}
+		long elements = 0;
+		for (int series = 0; series < dataset.getRowCount(); series++) {
+			if (renderer.isSeriesVisible(series)) {
+				elements += (long) dataset.getColumnCount()
+						* elementsPerItem(renderer, series);
+			}
+		}
+		return elements;
+	}
+
+	private static int elementsPerItem(XYItemRenderer renderer, int series) {
+		if (renderer instanceof XYLineAndShapeRenderer) {
+			XYLineAndShapeRenderer r = (XYLineAndShapeRenderer) renderer;
+			return shapeElements(r.getItemLineVisible(series, 0),
+					r.getItemShapeVisible(series, 0),
+					r.getItemShapeFilled(series, 0), r.getDrawOutlines());
+		} else if (renderer instanceof XYBarRenderer) {
+			XYBarRenderer r = (XYBarRenderer) renderer;
+			return 1 + (r.isDrawBarOutline() ? 1 : 0)
+					+ (r.getShadowsVisible() ? 1 : 0);
+		}
+		return 1;
+	}
+
+	private static int elementsPerItem(CategoryItemRenderer renderer,
+			int series) {
+		if (renderer instanceof LineAndShapeRenderer) {
+			LineAndShapeRenderer r = (LineAndShapeRenderer) renderer;
+			return shapeElements(r.getItemLineVisible(series, 0),
+					r.getItemShapeVisible(series, 0),
+					r.getItemShapeFilled(series, 0), r.getDrawOutlines());
+		} else if (renderer instanceof BarRenderer) {
+			BarRenderer r = (BarRenderer) renderer;
+			return 1 + (r.isDrawBarOutline() ? 1 : 0)
+					+ (r.getShadowsVisible() ? 1 : 0);
+		}
+		return 1;
+	}
+
+	/**
+	 * @return the number of elements drawn for an item of a line and shape
+	 *         renderer: the line to the item and the filled and outlined
+	 *         shape
+	 */
+	private static int shapeElements(boolean line, boolean shape,
+			boolean filled, boolean outlined) {
+		int elements = line ? 1 : 0;
+		if (shape) {
+			elements += (filled ? 1 : 0) + (outlined ? 1 : 0);
+		}
+		return elements;
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.EventObject;
+import java.util.Locale;
+
+import org.vaadin.addon.JFreeChartWrapper.ModeReason;
+import org.vaadin.addon.JFreeChartWrapper.RenderingMode;
+import org.vaadin.addon.JFreeChartWrapper.SvgBackend;
+
+/**
+ * Timings and sizes of one render of a chart.
+ * <p>
+ * For a chart served from a render cache all timings are zero. The
+ * {@link SvgBackend#STREAMING} backend serializes the SVG while the chart is
+ * drawn, as does direct streaming for compression, so for those the time of
+ * the combined work is reported as {@link Phase#DRAW}.
+ */
+@SuppressWarnings("serial")
+public class ChartRenderEvent extends EventObject {
+
+	/**
+	 * The measured phases of a render.
+	 */
+	public enum Phase {
+		/** Drawing the chart with JFreeChart. */
+		DRAW,
+		/** Serializing the SVG DOM to text. */
+		SERIALIZE,
+		/** Gzip compressing the SVG payload. */
+		COMPRESS,
+		/** Encoding the drawn image as PNG. */
+		ENCODE
+	}
+
+	private final RenderingMode mode;
+	private final ModeReason modeReason;
+	private final long estimatedElements;
+	private final SvgBackend svgBackend;
+	private final int width;
+	private final int height;
+	private final boolean cacheHit;
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private long payloadBytes = -1;
+	private long compressedBytes = -1;
+
+	ChartRenderEvent(JFreeChartWrapper source, RenderKey key, boolean cacheHit) {
+		super(source);
+		mode = key.getMode();
+		modeReason = source.getModeReason();
+		estimatedElements = source.getEstimatedElementCount();
+		svgBackend = key.getSvgBackend();
+		width = key.getWidth();
+		height = key.getHeight();
+		this.cacheHit = cacheHit;
+	}
+
+	@Override
+	public JFreeChartWrapper getSource() {
+		return (JFreeChartWrapper) super.getSource();
+	}
+
+	/**
+	 * @return the format of the rendered chart, never
+	 *         {@link RenderingMode#AUTO}
+	 */
+	public RenderingMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return why the chart was rendered in its format, null if the format
+	 *         was chosen automatically but the wrapper was not attached
+	 */
+	public ModeReason getModeReason() {
+		return modeReason;
+	}
+
+	/**
+	 * @return the number of SVG elements estimated for choosing the format
+	 *         automatically, -1 if it was not estimated
+	 */
+	public long getEstimatedElements() {
+		return estimatedElements;
+	}
+
+	/**
+	 * @return the SVG backend configured when the chart was rendered, also
+	 *         for PNG charts
+	 */
+	public SvgBackend getSvgBackend() {
+		return svgBackend;
+	}
+
+	/**
+	 * @return the width of the chart in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the chart in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return true if the chart was served from a render cache without
+	 *         drawing it
+	 */
+	public boolean isCacheHit() {
+		return cacheHit;
+	}
+
+	/**
+	 * @return the time spent in the given phase in nanoseconds, 0 if the
+	 *         phase was not part of the render
+	 */
+	public long getNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()];
+	}
+
+	/**
+	 * @return the time spent in all phases in nanoseconds
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for (long nanos : phaseNanos) {
+			total += nanos;
+		}
+		return total;
+	}
+
+	/**
+	 * @return the size of the uncompressed payload in bytes, -1 if not known
+	 */
+	public long getPayloadBytes() {
+		return payloadBytes;
+	}
+
+	/**
+	 * @return the size of the gzip compressed payload in bytes, -1 if the
+	 *         payload was not compressed
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	void addNanos(Phase phase, long nanos) {
+		phaseNanos[phase.ordinal()] += nanos;
+	}
+
+	void setPayloadBytes(long payloadBytes) {
+		this.payloadBytes = payloadBytes;
+	}
+
+	void setCompressedBytes(long compressedBytes) {
+		this.compressedBytes = compressedBytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(mode).append(' ').append(width).append('x').append(height);
+		if (modeReason != null) {
+			sb.append(' ').append(modeReason.name().toLowerCase(Locale.ROOT));
+		}
+		sb.append(cacheHit ? " hit" : " miss");
+		for (Phase phase : Phase.values()) {
+			long nanos = getNanos(phase);
+			if (nanos > 0) {
+				sb.append(' ').append(phase.name().toLowerCase(Locale.ROOT)).append('=')
+						.append(nanos / 1000).append("us");
+			}
+		}
+		sb.append(" bytes=").append(payloadBytes);
+		if (compressedBytes >= 0) {
+			sb.append(" gzip=").append(compressedBytes);
+		}
+		return sb.toString();
+	}
+}
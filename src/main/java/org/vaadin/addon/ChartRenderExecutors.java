@@ -0,0 +1,155 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for executors suitable for
+ * {@link JFreeChartWrapper#setRenderExecutor(Executor)}.
+ * <p>
+ * All executors created here are bounded: when too many charts are waiting to
+ * be rendered, new render tasks are rejected instead of queued. A rejected
+ * background render is not retried, the chart is then rendered when the
+ * browser requests it, like without an executor.
+ * <p>
+ * The executors are owned by the application, which should shut them down
+ * when they are no longer needed (e.g. in a ServiceDestroyListener).
+ */
+public final class ChartRenderExecutors {
+
+	private ChartRenderExecutors() {
+	}
+
+	/**
+	 * Creates a thread pool with a fixed number of daemon threads and a queue
+	 * of limited length. Tasks that do not fit into the queue are rejected.
+	 *
+	 * @param threads
+	 *            the number of render threads
+	 * @param queueCapacity
+	 *            the number of render tasks allowed to wait for a thread
+	 */
+	public static ThreadPoolExecutor newBoundedExecutor(int threads,
+			int queueCapacity) {
+		return newBoundedExecutor(threads, queueCapacity,
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Creates a thread pool with a fixed number of daemon threads and a queue
+	 * of limited length.
+	 *
+	 * @param threads
+	 *            the number of render threads
+	 * @param queueCapacity
+	 *            the number of render tasks allowed to wait for a thread
+	 * @param rejectionPolicy
+	 *            what to do with tasks that do not fit into the queue, e.g.
+	 *            {@link ThreadPoolExecutor.CallerRunsPolicy} to render on the
+	 *            thread that changed the chart
+	 */
+	public static ThreadPoolExecutor newBoundedExecutor(int threads,
+			int queueCapacity, RejectedExecutionHandler rejectionPolicy) {
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new RenderThreadFactory(), rejectionPolicy);
+	}
+
+	/**
+	 * Creates an executor that runs every render on its own virtual thread
+	 * (JDK 21 or later), allowing at most the given number of renders to be
+	 * queued or running at a time. On older JDKs a bounded pool with one
+	 * thread per processor is returned instead.
+	 *
+	 * @param maxPendingRenders
+	 *            the number of renders accepted before new ones are rejected
+	 */
+	public static Executor newVirtualThreadExecutor(int maxPendingRenders) {
+		ExecutorService virtualThreads;
+		try {
+			virtualThreads = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			int processors = Runtime.getRuntime().availableProcessors();
+			return newBoundedExecutor(processors,
+					Math.max(1, maxPendingRenders - processors));
+		}
+		return new LimitingExecutor(virtualThreads, maxPendingRenders);
+	}
+
+	/**
+	 * Executor limiting the number of tasks in flight in another executor.
+	 */
+	private static final class LimitingExecutor implements Executor {
+
+		private final Executor executor;
+		private final Semaphore permits;
+
+		LimitingExecutor(Executor executor, int maxTasks) {
+			this.executor = executor;
+			permits = new Semaphore(maxTasks);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			if (!permits.tryAcquire()) {
+				throw new RejectedExecutionException(
+						"Too many pending chart renders");
+			}
+			try {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							command.run();
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				throw e;
+			}
+		}
+	}
+
+	private static final class RenderThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger poolCount = new AtomicInteger();
+
+		private final int pool = poolCount.incrementAndGet();
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "chart-render-" + pool + "-"
+					+ threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
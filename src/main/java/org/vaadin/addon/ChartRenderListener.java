@@ -0,0 +1,39 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.io.Serializable;
+
+/**
+ * Receives timings and sizes of the charts rendered by a
+ * {@link JFreeChartWrapper}, e.g. to find out which charts are expensive to
+ * render.
+ * <p>
+ * The listener is called on the thread that rendered the chart, which may be
+ * a request thread or a background render thread, while the session is
+ * locked. Implementations should return quickly. A listener may be shared by
+ * many wrappers, {@link ChartRenderStatistics} is a thread safe aggregator.
+ * 
+ * @see JFreeChartWrapper#addRenderListener(ChartRenderListener)
+ */
+public interface ChartRenderListener extends Serializable {
+
+	/**
+	 * Called after a chart has been rendered or served from a render cache.
+	 * 
+	 * @param event
+	 *            the timings and sizes of the render
+	 */
+	void chartRendered(ChartRenderEvent event);
+}
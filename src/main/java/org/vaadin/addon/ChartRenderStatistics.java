@@ -0,0 +1,304 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.vaadin.addon.ChartRenderEvent.Phase;
+import org.vaadin.addon.JFreeChartWrapper.ModeReason;
+
+/**
+ * A {@link ChartRenderListener} aggregating render events into counters and
+ * histograms, from which e.g. the 99th percentile render time can be read.
+ * <p>
+ * Times are recorded in nanoseconds and sizes in bytes, only for renders that
+ * actually drew the chart; cache hits are just counted. One instance may be
+ * added to any number of wrappers, e.g. one per kind of chart to compare
+ * them. All methods are thread safe.
+ */
+@SuppressWarnings("serial")
+public class ChartRenderStatistics implements ChartRenderListener {
+
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final Histogram renderTimes = new Histogram();
+	private final Histogram[] phaseTimes = new Histogram[Phase.values().length];
+	private final Histogram payloadSizes = new Histogram();
+	private final Histogram compressedSizes = new Histogram();
+	private final AtomicLongArray modeReasons = new AtomicLongArray(
+			ModeReason.values().length);
+
+	public ChartRenderStatistics() {
+		for (int i = 0; i < phaseTimes.length; i++) {
+			phaseTimes[i] = new Histogram();
+		}
+	}
+
+	@Override
+	public void chartRendered(ChartRenderEvent event) {
+		if (event.getModeReason() != null) {
+			modeReasons.incrementAndGet(event.getModeReason().ordinal());
+		}
+		if (event.isCacheHit()) {
+			cacheHits.incrementAndGet();
+			return;
+		}
+		cacheMisses.incrementAndGet();
+		renderTimes.record(event.getTotalNanos());
+		for (Phase phase : Phase.values()) {
+			long nanos = event.getNanos(phase);
+			if (nanos > 0) {
+				phaseTimes[phase.ordinal()].record(nanos);
+			}
+		}
+		if (event.getPayloadBytes() >= 0) {
+			payloadSizes.record(event.getPayloadBytes());
+		}
+		if (event.getCompressedBytes() >= 0) {
+			compressedSizes.record(event.getCompressedBytes());
+		}
+	}
+
+	/**
+	 * @return the number of charts served from a render cache
+	 */
+	public long getCacheHitCount() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return the number of charts drawn
+	 */
+	public long getCacheMissCount() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * @return the total render times in nanoseconds
+	 */
+	public Histogram getRenderTimes() {
+		return renderTimes;
+	}
+
+	/**
+	 * @return the times spent in the given phase in nanoseconds, renders that
+	 *         did not include the phase are not recorded
+	 */
+	public Histogram getPhaseTimes(Phase phase) {
+		return phaseTimes[phase.ordinal()];
+	}
+
+	/**
+	 * @return the sizes of the uncompressed payloads in bytes
+	 */
+	public Histogram getPayloadSizes() {
+		return payloadSizes;
+	}
+
+	/**
+	 * @return the sizes of the gzip compressed payloads in bytes
+	 */
+	public Histogram getCompressedSizes() {
+		return compressedSizes;
+	}
+
+	/**
+	 * @return the number of charts served, drawn or from a render cache, in
+	 *         the format chosen for the given reason, e.g. how often
+	 *         automatic mode fell back to PNG for complex charts
+	 */
+	public long getModeReasonCount(ModeReason reason) {
+		return modeReasons.get(reason.ordinal());
+	}
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset() {
+		cacheHits.set(0);
+		cacheMisses.set(0);
+		renderTimes.reset();
+		for (Histogram histogram : phaseTimes) {
+			histogram.reset();
+		}
+		payloadSizes.reset();
+		compressedSizes.reset();
+		for (int i = 0; i < modeReasons.length(); i++) {
+			modeReasons.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("renders=").append(getCacheMissCount());
+		sb.append(" hits=").append(getCacheHitCount());
+		appendTimes(sb, "total", renderTimes);
+		for (Phase phase : Phase.values()) {
+			appendTimes(sb, phase.name().toLowerCase(Locale.ROOT),
+					getPhaseTimes(phase));
+		}
+		for (ModeReason reason : ModeReason.values()) {
+			long count = getModeReasonCount(reason);
+			if (count > 0) {
+				sb.append(' ').append(reason.name().toLowerCase(Locale.ROOT))
+						.append('=').append(count);
+			}
+		}
+		if (payloadSizes.getCount() > 0) {
+			sb.append(" bytes[p50=").append(payloadSizes.getPercentile(50))
+					.append(" max=").append(payloadSizes.getMax()).append(']');
+		}
+		return sb.toString();
+	}
+
+	private static void appendTimes(StringBuilder sb, String name,
+			Histogram histogram) {
+		if (histogram.getCount() > 0) {
+			sb.append(' ').append(name).append("[p50=")
+					.append(histogram.getPercentile(50) / 1000)
+					.append("us p99=")
+					.append(histogram.getPercentile(99) / 1000)
+					.append("us max=").append(histogram.getMax() / 1000)
+					.append("us]");
+		}
+	}
+
+	/**
+	 * A histogram of non-negative values with logarithmic buckets. Each power
+	 * of two is split into eight buckets, so percentiles are accurate to
+	 * within 12.5% while the histogram takes constant memory. Values below 16
+	 * are counted exactly.
+	 */
+	public static final class Histogram implements Serializable {
+
+		private static final int SUB_BUCKETS = 8;
+		private static final int LINEAR_LIMIT = 16;
+		// values of 2^4 .. 2^63-1 in 8 sub buckets per power of two
+		private static final int BUCKETS = LINEAR_LIMIT + (63 - 4)
+				* SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Records a value, negative values are counted as 0.
+		 */
+		public void record(long value) {
+			value = Math.max(0, value);
+			counts.incrementAndGet(bucketOf(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long previous;
+			while (value > (previous = max.get())
+					&& !max.compareAndSet(previous, value)) {
+				// retry until larger or stored
+			}
+		}
+
+		/**
+		 * @return the number of recorded values
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return the largest recorded value, 0 if there is none
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @return the average of the recorded values, 0 if there are none
+		 */
+		public double getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : (double) sum.get() / n;
+		}
+
+		/**
+		 * @param percentile
+		 *            between 0 and 100, e.g. 99 for the 99th percentile
+		 * @return an upper bound of the values below which the given
+		 *         percentage of the recorded values fall, 0 if there are none
+		 */
+		public long getPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException(
+						"Percentile must be between 0 and 100");
+			}
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				n += counts.get(i);
+			}
+			if (n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return Math.min(upperBoundOf(i), getMax());
+				}
+			}
+			return getMax();
+		}
+
+		/**
+		 * Forgets the recorded values.
+		 */
+		public void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts.set(i, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		static int bucketOf(long value) {
+			if (value < LINEAR_LIMIT) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - 3)) - SUB_BUCKETS;
+			return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + sub;
+		}
+
+		static long upperBoundOf(int bucket) {
+			if (bucket < LINEAR_LIMIT) {
+				return bucket;
+			}
+			int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+			int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+			long upper = ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+			// the last bucket would overflow
+			return upper < 0 ? Long.MAX_VALUE : upper;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + getCount() + " p50=" + getPercentile(50)
+					+ " p99=" + getPercentile(99) + " max=" + getMax();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.vaadin.addon.JFreeChartWrapper.RenderingMode;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.server.AbstractJavaScriptExtension;
+import com.vaadin.shared.JavaScriptExtensionState;
+
+/**
+ * Shows PNG charts sharp on high density displays.
+ * <p>
+ * A PNG chart is rendered at the size of the chart in CSS pixels, which the
+ * browser scales up, and blurs, on displays with more device pixels per CSS
+ * pixel. With the extension the image gets a {@code srcset} with the chart
+ * rendered at pixel ratios 1.5, 2 and 3, and the browser downloads the one
+ * matching its display. Only those few ratios are rendered, so every display
+ * is served from renders cached like any other, see
+ * {@link JFreeChartWrapper#getSource(double)}.
+ * <p>
+ * SVG charts are sharp at any density and are left as they are.
+ */
+@SuppressWarnings("serial")
+@JavaScript("hidpi-png.js")
+public class HiDpiPng extends AbstractJavaScriptExtension {
+
+	/**
+	 * Shared state of the extension.
+	 */
+	public static class HiDpiPngState extends JavaScriptExtensionState {
+
+		/**
+		 * The pixel density descriptors of the images besides the source of
+		 * the chart, e.g. "2x", also the keys of their resources.
+		 */
+		public List<String> descriptors = new ArrayList<String>();
+	}
+
+	private final JFreeChartWrapper wrapper;
+	private float[] pixelRatios = { 1.5f, 2, 3 };
+
+	private HiDpiPng(JFreeChartWrapper wrapper) {
+		super(wrapper);
+		this.wrapper = wrapper;
+	}
+
+	/**
+	 * Offers images of the chart of the given wrapper for high density
+	 * displays.
+	 * 
+	 * @return the extension
+	 */
+	public static HiDpiPng extend(JFreeChartWrapper wrapper) {
+		HiDpiPng extension = new HiDpiPng(wrapper);
+		extension.updateSources();
+		return extension;
+	}
+
+	/**
+	 * Sets the pixel ratios of the offered images. Each ratio is rounded up
+	 * to 1.5, 2 or 3, see {@link JFreeChartWrapper#snapPixelRatio(double)};
+	 * the image of ratio 1 is always the source of the chart.
+	 * 
+	 * @param ratios
+	 *            the pixel ratios, default 1.5, 2 and 3
+	 */
+	public void setPixelRatios(double... ratios) {
+		float[] snapped = new float[ratios.length];
+		int count = 0;
+		for (double ratio : ratios) {
+			float pixelRatio = JFreeChartWrapper.snapPixelRatio(ratio);
+			if (pixelRatio > 1 && indexOf(snapped, count, pixelRatio) < 0) {
+				snapped[count++] = pixelRatio;
+			}
+		}
+		snapped = Arrays.copyOf(snapped, count);
+		Arrays.sort(snapped);
+		pixelRatios = snapped;
+		updateSources();
+	}
+
+	/**
+	 * @return the pixel ratios of the offered images besides 1, in ascending
+	 *         order
+	 */
+	public float[] getPixelRatios() {
+		return pixelRatios.clone();
+	}
+
+	private static int indexOf(float[] values, int count, float value) {
+		for (int i = 0; i < count; i++) {
+			if (values[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Points the images to the current version of the chart, called by the
+	 * wrapper whenever it sends a new version.
+	 */
+	void updateSources() {
+		HiDpiPngState state = getState();
+		for (String descriptor : state.descriptors) {
+			setResource(descriptor, null);
+		}
+		state.descriptors.clear();
+		if (wrapper.getRenderingMode() != RenderingMode.PNG) {
+			return;
+		}
+		for (float pixelRatio : pixelRatios) {
+			String descriptor = descriptor(pixelRatio);
+			setResource(descriptor, wrapper.getSource(pixelRatio));
+			state.descriptors.add(descriptor);
+		}
+	}
+
+	/**
+	 * @return the pixel density descriptor of srcset for the ratio, e.g.
+	 *         "1.5x" or "2x"
+	 */
+	static String descriptor(float pixelRatio) {
+		return (pixelRatio == (int) pixelRatio ? Integer
+				.toString((int) pixelRatio) : Float.toString(pixelRatio)) + "x";
+	}
+
+	@Override
+	protected HiDpiPngState getState() {
+		return (HiDpiPngState) super.getState();
+	}
+
+	@Override
+	protected HiDpiPngState getState(boolean markAsDirty) {
+		return (HiDpiPngState) super.getState(markAsDirty);
+	}
+}
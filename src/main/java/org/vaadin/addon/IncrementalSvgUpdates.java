@@ -0,0 +1,351 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.vaadin.addon.JFreeChartWrapper.RenderingMode;
+import org.vaadin.addon.JFreeChartWrapper.SvgBackend;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.server.AbstractJavaScriptExtension;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+
+/**
+ * Updates a chart in the browser by sending only the SVG elements that
+ * changed, instead of downloading the whole chart again.
+ * <p>
+ * When the extended wrapper is marked as dirty after its chart has changed,
+ * the new version of the chart is rendered on the server and compared element
+ * by element to the version the browser shows. The differences are sent to
+ * the browser with the next response and patched into the displayed SVG
+ * document. Both the amount of data sent and the work done in the browser are
+ * then proportional to the change, e.g. a new segment of a line and a few
+ * updated tick labels.
+ * <p>
+ * A change of the size of the chart, a change to a large part of the chart
+ * (e.g. when auto ranged axes rescale all items) or a browser that shows some
+ * other version of the chart falls back to downloading the whole chart.
+ * Charts with fixed axis ranges benefit most.
+ * <p>
+ * The server does more work than for a download: every change renders the
+ * whole chart, parses both versions into elements and compares them, all
+ * while the response is written with the session locked. The render is
+ * cached for a later download, but the comparison is repeated for every
+ * response that sends an update.
+ * <p>
+ * Requires the {@link SvgBackend#STREAMING} backend, which labels every
+ * document with its version. With a {@link SvgMinifier} that writes
+ * {@link SvgMinifier#isStyleClasses() style classes}, the classes are
+ * numbered in the order they first appear in each render, so a small change
+ * of the data renumbers most elements. Such charts are always downloaded
+ * whole, without comparing them first.
+ */
+@SuppressWarnings("serial")
+@JavaScript("incremental-svg-updates.js")
+public class IncrementalSvgUpdates extends AbstractJavaScriptExtension {
+
+	// larger differences are sent as a whole new chart
+	private static final int MAX_EDITS = 500;
+	private static final double MAX_CHANGED_FRACTION = 0.5;
+
+	private String version;
+	private String rootTag;
+	private String[] elements;
+
+	private IncrementalSvgUpdates(JFreeChartWrapper wrapper) {
+		super(wrapper);
+	}
+
+	/**
+	 * Enables incremental updates for the given wrapper.
+	 * 
+	 * @param wrapper
+	 *            a wrapper using the {@link SvgBackend#STREAMING} backend
+	 * @return the extension, can be removed to disable incremental updates
+	 */
+	public static IncrementalSvgUpdates extend(JFreeChartWrapper wrapper) {
+		if (wrapper.getSvgBackend() != SvgBackend.STREAMING) {
+			throw new IllegalArgumentException(
+					"Incremental updates require the streaming SVG backend");
+		}
+		return new IncrementalSvgUpdates(wrapper);
+	}
+
+	/**
+	 * @return false if charts rendered for the key differ from their
+	 *         previous version in most elements even after a small change,
+	 *         so comparing them is not worthwhile
+	 */
+	static boolean isComparable(RenderKey key) {
+		SvgMinifier minifier = key.getSvgMinifier();
+		return minifier == null || !minifier.isStyleClasses();
+	}
+
+	/**
+	 * Remembers the chart the browser is about to download as the base of the
+	 * next update.
+	 */
+	void setBaseline(String version, RenderedChart rendered) {
+		if (rendered == null || rendered.getMode() != RenderingMode.SVG) {
+			clearBaseline();
+			return;
+		}
+		Document document = Document.parse(rendered);
+		this.version = version;
+		rootTag = document.rootTag;
+		elements = document.elements;
+	}
+
+	void clearBaseline() {
+		version = null;
+		rootTag = null;
+		elements = null;
+	}
+
+	/**
+	 * Sends the differences between the baseline and the given chart to the
+	 * browser, if they are small enough.
+	 * 
+	 * @return true if an update was sent and the chart became the new
+	 *         baseline, false if the browser must download the whole chart
+	 */
+	boolean update(String newVersion, RenderedChart rendered) {
+		if (elements == null || rendered == null
+				|| rendered.getMode() != RenderingMode.SVG) {
+			return false;
+		}
+		Document document = Document.parse(rendered);
+		if (!withoutVersion(rootTag).equals(
+				withoutVersion(document.rootTag))) {
+			// e.g. a new size
+			return false;
+		}
+		List<Hunk> hunks = diff(elements, document.elements, MAX_EDITS);
+		if (hunks == null) {
+			return false;
+		}
+		int changed = 0;
+		JsonArray json = Json.createArray();
+		for (Hunk hunk : hunks) {
+			changed += hunk.markup.length();
+			JsonArray jsonHunk = Json.createArray();
+			jsonHunk.set(0, hunk.start);
+			jsonHunk.set(1, hunk.deleteCount);
+			jsonHunk.set(2, hunk.markup.toString());
+			json.set(json.length(), jsonHunk);
+		}
+		if (changed > rendered.getSize() * MAX_CHANGED_FRACTION) {
+			return false;
+		}
+		if (!hunks.isEmpty()) {
+			callFunction("update", version, newVersion, json);
+		}
+		version = newVersion;
+		rootTag = document.rootTag;
+		elements = document.elements;
+		return true;
+	}
+
+	private static String withoutVersion(String rootTag) {
+		return rootTag.replaceFirst(" data-version=\"[^\"]*\"", "");
+	}
+
+	/**
+	 * The top level elements of an SVG document written by
+	 * {@link StreamingSVGGraphics2D}.
+	 */
+	static final class Document {
+
+		final String rootTag;
+		final String[] elements;
+
+		private Document(String rootTag, String[] elements) {
+			this.rootTag = rootTag;
+			this.elements = elements;
+		}
+
+		static Document parse(RenderedChart rendered) {
+			byte[] bytes = new byte[rendered.getSize()];
+			try {
+				int read = 0;
+				InputStream in = rendered.getInputStream();
+				while (read < bytes.length) {
+					read += in.read(bytes, read, bytes.length - read);
+				}
+			} catch (IOException e) {
+				// reading a byte array does not fail
+				throw new IllegalStateException(e);
+			}
+			return parse(new String(bytes, StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Splits the children of the root element into separate strings.
+		 * Relies on the writer escaping markup characters in text and
+		 * attribute values.
+		 */
+		static Document parse(String svg) {
+			int rootStart = svg.indexOf("<svg");
+			int rootEnd = svg.indexOf('>', rootStart) + 1;
+			int bodyEnd = svg.lastIndexOf("</svg>");
+			List<String> elements = new ArrayList<String>();
+			int depth = 0;
+			int start = -1;
+			int i = rootEnd;
+			while (i < bodyEnd) {
+				int open = svg.indexOf('<', i);
+				if (open < 0 || open >= bodyEnd) {
+					break;
+				}
+				int close = svg.indexOf('>', open);
+				if (depth == 0) {
+					start = open;
+				}
+				if (svg.charAt(open + 1) == '/') {
+					depth--;
+				} else if (svg.charAt(close - 1) != '/') {
+					depth++;
+				}
+				i = close + 1;
+				if (depth == 0) {
+					elements.add(svg.substring(start, i));
+				}
+			}
+			return new Document(svg.substring(rootStart, rootEnd),
+					elements.toArray(new String[elements.size()]));
+		}
+	}
+
+	/**
+	 * Replaces deleteCount elements at start of the old version with the
+	 * markup of new elements.
+	 */
+	static final class Hunk {
+
+		final int start;
+		final int deleteCount;
+		final StringBuilder markup = new StringBuilder();
+
+		Hunk(int start, int deleteCount) {
+			this.start = start;
+			this.deleteCount = deleteCount;
+		}
+	}
+
+	/**
+	 * Computes the differences between two lists of elements with the
+	 * algorithm of Myers.
+	 * 
+	 * @return the hunks turning a into b in ascending order, null if more
+	 *         than maxEdits elements would have to be deleted or inserted
+	 */
+	static List<Hunk> diff(String[] a, String[] b, int maxEdits) {
+		int prefix = 0;
+		while (prefix < a.length && prefix < b.length
+				&& a[prefix].equals(b[prefix])) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < a.length - prefix && suffix < b.length - prefix
+				&& a[a.length - 1 - suffix].equals(b[b.length - 1 - suffix])) {
+			suffix++;
+		}
+		int n = a.length - prefix - suffix;
+		int m = b.length - prefix - suffix;
+		int limit = Math.min(n + m, maxEdits);
+		int offset = limit + 1;
+		int[] v = new int[2 * limit + 3];
+		List<int[]> trace = new ArrayList<int[]>();
+		int edits = -1;
+		search: for (int d = 0; d <= limit; d++) {
+			trace.add(v.clone());
+			for (int k = -d; k <= d; k += 2) {
+				int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]) ? v[offset
+						+ k + 1]
+						: v[offset + k - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && a[prefix + x].equals(b[prefix + y])) {
+					x++;
+					y++;
+				}
+				v[offset + k] = x;
+				if (x >= n && y >= m) {
+					edits = d;
+					break search;
+				}
+			}
+		}
+		if (edits < 0) {
+			return null;
+		}
+
+		// walk back collecting the matching elements, last first
+		int[] matchesA = new int[Math.min(n, m)];
+		int[] matchesB = new int[matchesA.length];
+		int matchCount = 0;
+		int x = n;
+		int y = m;
+		for (int d = edits; d > 0; d--) {
+			int[] previous = trace.get(d);
+			int k = x - y;
+			int previousK = k == -d
+					|| (k != d && previous[offset + k - 1] < previous[offset
+							+ k + 1]) ? k + 1 : k - 1;
+			int previousX = previous[offset + previousK];
+			int previousY = previousX - previousK;
+			while (x > previousX && y > previousY) {
+				x--;
+				y--;
+				matchesA[matchCount] = x;
+				matchesB[matchCount++] = y;
+			}
+			x = previousX;
+			y = previousY;
+		}
+		while (x > 0 && y > 0) {
+			x--;
+			y--;
+			matchesA[matchCount] = x;
+			matchesB[matchCount++] = y;
+		}
+
+		// the gaps between matching elements are the hunks
+		List<Hunk> hunks = new ArrayList<Hunk>();
+		int nextA = 0;
+		int nextB = 0;
+		for (int i = matchCount; i >= 0; i--) {
+			int matchA = i > 0 ? matchesA[i - 1] : n;
+			int matchB = i > 0 ? matchesB[i - 1] : m;
+			if (matchA > nextA || matchB > nextB) {
+				Hunk hunk = new Hunk(prefix + nextA, matchA - nextA);
+				for (String element : Arrays.asList(b).subList(prefix + nextB,
+						prefix + matchB)) {
+					hunk.markup.append(element);
+				}
+				hunks.add(hunk);
+			}
+			nextA = matchA + 1;
+			nextB = matchB + 1;
+		}
+		return hunks;
+	}
+}
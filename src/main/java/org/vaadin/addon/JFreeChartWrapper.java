@@ -19,19 +19,37 @@ package org.vaadin.addon;
 
 import com.vaadin.server.*;
 import com.vaadin.server.StreamResource.StreamSource;
+import com.vaadin.shared.Registration;
 import com.vaadin.ui.Embedded;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 import org.apache.batik.svggen.SVGGraphics2D;
-import org.apache.batik.svggen.SVGGraphics2DIOException;
-import org.jfree.chart.ChartUtils;
 import org.jfree.chart.JFreeChart;
-import org.w3c.dom.Document;
+import org.jfree.chart.event.ChartChangeEvent;
+import org.jfree.chart.event.ChartChangeListener;
+import org.vaadin.addon.ChartRenderEvent.Phase;
 import org.w3c.dom.Element;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -62,20 +80,115 @@ public class JFreeChartWrapper extends Embedded {
 		SVG, PNG, AUTO
 	}
 
+	/**
+	 * Why a chart is rendered in its format.
+	 * 
+	 * @see JFreeChartWrapper#getModeReason()
+	 */
+	public enum ModeReason {
+		/** The format was set explicitly instead of {@link RenderingMode#AUTO}. */
+		CONFIGURED,
+		/** PNG, as the browser does not support SVG. */
+		UNSUPPORTED_BROWSER,
+		/**
+		 * PNG, as the estimated number of SVG elements exceeds the threshold
+		 * set with {@link JFreeChartWrapper#setAutoPngThreshold(long)}.
+		 */
+		COMPLEX_CHART,
+		/**
+		 * SVG, as the browser supports it and the estimated number of
+		 * elements is within the threshold.
+		 */
+		SIMPLE_CHART
+	}
+
+	/**
+	 * Implementations available for producing SVG output.
+	 */
+	public enum SvgBackend {
+		/**
+		 * Batik {@link SVGGraphics2D}, builds a DOM tree of the whole chart
+		 * and serializes it afterwards.
+		 */
+		BATIK,
+		/**
+		 * {@link StreamingSVGGraphics2D}, writes elements to the output as the
+		 * chart is drawn. Uses much less memory and time for charts with many
+		 * items.
+		 */
+		STREAMING
+	}
+
 	// 809x 500 ~g olden ratio
 	private static final int DEFAULT_WIDTH = 809;
 	private static final int DEFAULT_HEIGHT = 500;
 
+	private static final int DEFAULT_RENDER_CACHE_SIZE = 4;
+
+	// browsers slow down noticeably with SVG documents of more elements
+	private static final long DEFAULT_AUTO_PNG_THRESHOLD = 10000;
+
+	// the pixel ratios PNG images are rendered at, so that displays of all
+	// densities share a few renders
+	private static final float[] PIXEL_RATIOS = { 1, 1.5f, 2, 3 };
+
+	// unique prefix for chart versions, keeps ETags unique across wrappers
+	// and server restarts
+	private static final AtomicLong instanceCounter = new AtomicLong(
+			System.currentTimeMillis());
+
+	// how long a request waits for a background render before rendering
+	// the chart itself
+	private static final long PRERENDER_WAIT_SECONDS = 30;
+	// how long a request waits for a queued background render to start; a
+	// render not started by then may have been discarded by the executor
+	private static final long PRERENDER_START_MILLIS = 2000;
+
 	private final JFreeChart chart;
 	private Resource res;
 	private RenderingMode mode = RenderingMode.AUTO;
+	// true if the format is chosen automatically, mode is the chosen one
+	private boolean autoMode = true;
+	private long autoPngThreshold = DEFAULT_AUTO_PNG_THRESHOLD;
+	private boolean svgUnsupported;
+	private ModeReason modeReason;
+	private long estimatedElements = -1;
+	private boolean directStreaming = false;
+	private SvgBackend svgBackend = SvgBackend.BATIK;
 	private boolean gzipEnabled = false;
 	private int graphWidthInPixels = -1;
 	private int graphHeightInPixels = -1;
 	private String aspectRatio = "none"; // stretch to fill whole space
+	private int renderCacheSize = DEFAULT_RENDER_CACHE_SIZE;
+	private transient RenderCache renderCache;
+	private String sharedCacheKey;
+	private boolean dataDecimation = false;
+	private PngEncoder pngEncoder = new PngEncoder();
+	private SvgMinifier svgMinifier;
+	// incremented whenever the rendered output may change
+	private long chartVersion;
+	private final String instanceId = Long.toString(
+			instanceCounter.incrementAndGet(), Character.MAX_RADIX);
+	private long cacheTime = 0;
+	private transient Executor renderExecutor;
+	// the latest background render, guarded by the session lock
+	private transient CompletableFuture<Map.Entry<RenderKey, RenderedChart>> pendingRender;
+	// completed when the latest background render starts
+	private transient CompletableFuture<Void> pendingRenderStarted;
+	// when the queued background render was submitted, 0 if none is queued
+	private transient long prerenderQueuedAt;
+	private long changeCoalescingInterval = 0;
+	// the refresh collecting chart changes, guarded by the session lock
+	private transient ScheduledFuture<?> pendingRefresh;
+	private final List<ChartRenderListener> renderListeners = new ArrayList<ChartRenderListener>();
+	// version of the chart last sent to the browser
+	private String sourceVersion;
+	// true while the wrapper updates its own state, see markAsDirty()
+	private boolean updatingSource;
 
 	public JFreeChartWrapper(JFreeChart chartToBeWrapped) {
 		chart = chartToBeWrapped;
+		chart.addChangeListener(new ChartInvalidator());
 		setWidth(DEFAULT_WIDTH, Unit.PIXELS);
 		setHeight(DEFAULT_HEIGHT, Unit.PIXELS);
 	}
@@ -88,7 +201,12 @@ public class JFreeChartWrapper extends Embedded {
 
 	/**
 	 * Compress SVG charts in wrapper. It makes sense to put this on if the
-	 * server does not automatically compress responses.
+	 * server does not automatically compress responses, or to avoid the server
+	 * compressing the same chart again for every download.
+	 * <p>
+	 * When enabled, a gzip compressed copy is made once per rendered chart and
+	 * kept in the render cache next to the uncompressed one. Clients that
+	 * accept gzip encoding get the compressed copy, others the plain one.
 	 * 
 	 * @param compress
 	 * true to enable component level compression, default false
@@ -97,7 +215,265 @@ public class JFreeChartWrapper extends Embedded {
 		this.gzipEnabled = compress;
 	}
 
+	/**
+	 * Selects the implementation used to produce SVG output.
+	 * 
+	 * @param backend
+	 *            the SVG backend, default {@link SvgBackend#BATIK}
+	 */
+	public void setSvgBackend(SvgBackend backend) {
+		svgBackend = backend;
+	}
+
+	public SvgBackend getSvgBackend() {
+		return svgBackend;
+	}
+
+	/**
+	 * Writes charts that are not found from the render cache straight to the
+	 * HTTP response while they are being drawn, instead of buffering the whole
+	 * payload first. The response is sent with chunked transfer encoding and
+	 * the memory needed per request is bounded by a small buffer (plus the
+	 * image itself in PNG mode and the DOM with the Batik backend, use
+	 * {@link SvgBackend#STREAMING} for the smallest footprint).
+	 * <p>
+	 * Charts written this way are not stored in the render cache. The session
+	 * is locked while the chart is drawn, as the chart must not be modified
+	 * during drawing. PNG images and SVG documents of the Batik backend are
+	 * encoded and written to the response after the session is unlocked, but
+	 * the {@link SvgBackend#STREAMING} backend draws straight into the
+	 * response, so a slow client holds the session lock until it has
+	 * received the whole chart. Prefer buffered downloads (the default) for
+	 * streamed SVG if other requests of the session must not wait for the
+	 * network.
+	 * 
+	 * @param streaming
+	 *            true to stream directly to the response, default false
+	 */
+	public void setDirectStreaming(boolean streaming) {
+		directStreaming = streaming;
+	}
+
+	public boolean isDirectStreaming() {
+		return directStreaming;
+	}
+
+	/**
+	 * Sets how long browsers may use a downloaded chart without asking the
+	 * server again. Every chart is served with an ETag derived from the chart
+	 * version and render settings, so when the time has passed (or
+	 * immediately, with the default 0) the browser revalidates and an
+	 * unchanged chart is answered with "304 Not Modified" without rendering
+	 * it.
+	 * 
+	 * @param milliseconds
+	 *            the cache time, default 0
+	 */
+	public void setCacheTime(long milliseconds) {
+		cacheTime = milliseconds;
+	}
+
+	public long getCacheTime() {
+		return cacheTime;
+	}
+
+	/**
+	 * Renders the chart in the background whenever it changes or the
+	 * component is attached, so that the request of the browser finds the
+	 * finished chart from the render cache (or waits for the render in
+	 * progress) instead of drawing it on the request thread.
+	 * <p>
+	 * Use a bounded executor, e.g. from {@link ChartRenderExecutors}. If the
+	 * executor rejects a render, the chart is rendered on request as without
+	 * an executor. A request waits for a queued render to start for at most
+	 * two seconds and then renders the chart itself, so renders silently
+	 * dropped by the executor (e.g. by
+	 * {@link java.util.concurrent.ThreadPoolExecutor.DiscardPolicy}) or stuck
+	 * behind a long queue delay the chart by that much. A render in progress
+	 * is waited for up to 30 seconds. Background renders lock the session
+	 * while drawing, like renders on request do. Pre-rendered charts are kept
+	 * in the render cache, which must not be disabled for this to be useful.
+	 * 
+	 * @param executor
+	 *            the executor running background renders, null (default) to
+	 *            render only on request
+	 */
+	public void setRenderExecutor(Executor executor) {
+		renderExecutor = executor;
+	}
+
+	public Executor getRenderExecutor() {
+		return renderExecutor;
+	}
+
+	/**
+	 * Refreshes the chart in the browser automatically when the wrapped chart
+	 * changes, at most once per interval. All changes made during the
+	 * interval, e.g. items added one by one to a dataset, are drawn with a
+	 * single render of the final state.
+	 * <p>
+	 * The refresh marks the wrapper as dirty and starts a background render
+	 * if a {@link #setRenderExecutor(Executor) render executor} is set. It
+	 * happens outside of a request, so it reaches the browser with server
+	 * push or polling enabled, otherwise with the next request of the UI.
+	 * 
+	 * @param milliseconds
+	 *            the minimum time between refreshes, 0 (default) disables
+	 *            automatic refreshing; the chart is then refreshed only when
+	 *            the wrapper is marked as dirty
+	 */
+	public void setChangeCoalescingInterval(long milliseconds) {
+		if (milliseconds < 0) {
+			throw new IllegalArgumentException(
+					"Coalescing interval must not be negative");
+		}
+		changeCoalescingInterval = milliseconds;
+	}
+
+	public long getChangeCoalescingInterval() {
+		return changeCoalescingInterval;
+	}
+
+	/**
+	 * Draws XY charts from a decimated view of their data when a series has
+	 * many more items than the chart has pixels. Of the items falling on one
+	 * pixel column only the first, lowest, highest and last are drawn, so
+	 * lines and areas look the same while the size of the SVG and the time
+	 * to render depend on the width of the chart instead of the amount of
+	 * data.
+	 * <p>
+	 * Only series with ascending x values drawn with line, area, step area
+	 * or dot renderers are decimated. The datasets of the chart are not
+	 * modified. Shapes of left out items are not drawn, so this is not
+	 * suitable for charts where each item must be visible on its own.
+	 * 
+	 * @param decimation
+	 *            true to decimate large XY series, default false
+	 */
+	public void setDataDecimation(boolean decimation) {
+		dataDecimation = decimation;
+	}
+
+	public boolean isDataDecimation() {
+		return dataDecimation;
+	}
+
+	/**
+	 * Sets how complex a chart in {@link RenderingMode#AUTO} may be and still
+	 * be drawn as SVG. The number of SVG elements is estimated from the item
+	 * counts of the datasets and what the renderers draw for each item (after
+	 * {@link #setDataDecimation(boolean) decimation}); above the threshold
+	 * the chart is sent as PNG, which is cheaper to produce and to display
+	 * for that many items. The choice is made again whenever the chart
+	 * changes.
+	 * 
+	 * @param elements
+	 *            the largest estimated number of elements drawn as SVG,
+	 *            default 10000, {@link Long#MAX_VALUE} to always use SVG when
+	 *            the browser supports it
+	 */
+	public void setAutoPngThreshold(long elements) {
+		if (elements < 0) {
+			throw new IllegalArgumentException(
+					"Threshold must not be negative");
+		}
+		autoPngThreshold = elements;
+	}
+
+	public long getAutoPngThreshold() {
+		return autoPngThreshold;
+	}
+
+	/**
+	 * @return the format the chart is rendered in, {@link RenderingMode#AUTO}
+	 *         if it is chosen automatically and the wrapper has not been
+	 *         attached yet
+	 */
+	public RenderingMode getRenderingMode() {
+		return mode;
+	}
+
+	/**
+	 * @return why the chart is rendered in its current format, null if it is
+	 *         chosen automatically and the wrapper has not been attached yet
+	 */
+	public ModeReason getModeReason() {
+		return modeReason;
+	}
+
+	/**
+	 * @return the number of SVG elements estimated when the format was last
+	 *         chosen automatically, -1 if it was not estimated
+	 * @see #setAutoPngThreshold(long)
+	 */
+	public long getEstimatedElementCount() {
+		return estimatedElements;
+	}
+
+	/**
+	 * Sets the encoder used in PNG mode, e.g. to trade a higher compression
+	 * level for smaller images or to write charts with few colors with a
+	 * palette.
+	 * 
+	 * @param encoder
+	 *            the encoder, default {@code new PngEncoder()}
+	 */
+	public void setPngEncoder(PngEncoder encoder) {
+		if (encoder == null) {
+			throw new IllegalArgumentException("Encoder must not be null");
+		}
+		pngEncoder = encoder;
+	}
+
+	public PngEncoder getPngEncoder() {
+		return pngEncoder;
+	}
+
+	/**
+	 * Makes SVG charts smaller by rounding coordinates, writing path data in
+	 * compact syntax, merging lines of the same style, sharing equal gradients
+	 * and clip paths and leaving out redundant attributes. Reduces both the
+	 * download size and the time the browser spends parsing the chart,
+	 * typically to a third or less of the original for line charts, and to
+	 * less than a quarter with style classes. Scatter charts with many data
+	 * items shrink further with markers, which define the shape of an item
+	 * once and only position it for every item.
+	 * 
+	 * @param minifier
+	 *            the minifier, e.g. {@code new SvgMinifier()},
+	 *            {@code new SvgMinifier(2, true, true)} for style classes or
+	 *            {@code new SvgMinifier(2, true, true, true)} for style
+	 *            classes and markers, or null (default) to write SVG as the
+	 *            backend produces it
+	 */
+	public void setSvgMinifier(SvgMinifier minifier) {
+		svgMinifier = minifier;
+	}
+
+	public SvgMinifier getSvgMinifier() {
+		return svgMinifier;
+	}
+
+	/**
+	 * Adds a listener notified with the timings and payload size of every
+	 * render of this chart, including renders served from a render cache.
+	 * 
+	 * @param listener
+	 *            the listener, e.g. a shared {@link ChartRenderStatistics}
+	 * @return a registration for removing the listener
+	 */
+	public Registration addRenderListener(final ChartRenderListener listener) {
+		renderListeners.add(listener);
+		return () -> renderListeners.remove(listener);
+	}
+
 	private void setRenderingMode(RenderingMode newMode) {
+		autoMode = newMode == RenderingMode.AUTO;
+		modeReason = autoMode ? null : ModeReason.CONFIGURED;
+		applyRenderingMode(newMode);
+	}
+
+	private void applyRenderingMode(RenderingMode newMode) {
 		if (newMode == RenderingMode.PNG) {
 			setType(TYPE_IMAGE);
 		} else {
@@ -110,24 +486,154 @@ public class JFreeChartWrapper extends Embedded {
 	@Override
 	public void attach() {        
 		super.attach();
-		if (mode == RenderingMode.AUTO) {
-			WebBrowser browser = Page.getCurrent().getWebBrowser();
-			if (browser.isIE()
-					&& browser.getBrowserMajorVersion() < 9) {
-				setRenderingMode(RenderingMode.PNG);
-			} else {
+		updatingSource = true;
+		try {
+			if (autoMode) {
+				WebBrowser browser = Page.getCurrent().getWebBrowser();
 				// all decent browsers support SVG
-				setRenderingMode(RenderingMode.SVG);
+				svgUnsupported = browser.isIE()
+						&& browser.getBrowserMajorVersion() < 9;
+				chooseRenderingMode();
+			}
+		} finally {
+			updatingSource = false;
+		}
+		registerSource();
+		schedulePrerender();
+	}
+
+	/**
+	 * Sends the chart to the browser if it has changed since it was last
+	 * sent, either as an incremental update or as a new resource the browser
+	 * downloads.
+	 */
+	@Override
+	public void beforeClientResponse(boolean initial) {
+		super.beforeClientResponse(initial);
+		if (autoMode) {
+			// the chart may have grown past the threshold or shrunk below it
+			updatingSource = true;
+			try {
+				chooseRenderingMode();
+			} finally {
+				updatingSource = false;
+			}
+		}
+		RenderKey key = createRenderKey();
+		if (key.getVersion().equals(sourceVersion)) {
+			return;
+		}
+		IncrementalSvgUpdates updates = getIncrementalUpdates(key);
+		if (updates != null && !initial
+				&& updates.update(key.getVersion(), renderChart(key))) {
+			sourceVersion = key.getVersion();
+		} else {
+			registerSource();
+		}
+	}
+
+	/**
+	 * Chooses the format of an automatic mode chart for the browser and the
+	 * current content of the chart.
+	 */
+	private void chooseRenderingMode() {
+		if (svgUnsupported) {
+			modeReason = ModeReason.UNSUPPORTED_BROWSER;
+			estimatedElements = -1;
+		} else {
+			estimatedElements = ChartComplexity.estimateElements(chart,
+					getGraphWidth(), getGraphHeight(), dataDecimation);
+			modeReason = estimatedElements > autoPngThreshold
+					? ModeReason.COMPLEX_CHART : ModeReason.SIMPLE_CHART;
+		}
+		RenderingMode chosen = modeReason == ModeReason.SIMPLE_CHART
+				? RenderingMode.SVG : RenderingMode.PNG;
+		if (chosen != mode) {
+			applyRenderingMode(chosen);
+		}
+	}
+
+	/**
+	 * Points the browser to a resource of the current chart.
+	 */
+	private void registerSource() {
+		if (isWaitingForViewport()) {
+			// sent when the chart comes into view
+			return;
+		}
+		RenderKey key = createRenderKey();
+		updatingSource = true;
+		try {
+			res = null;
+			// Workaround for a regression that Vaadin core update caused
+			// at some point
+			setResource("src", getSource());
+			for (Extension extension : getExtensions()) {
+				if (extension instanceof HiDpiPng) {
+					((HiDpiPng) extension).updateSources();
+				}
+			}
+		} finally {
+			updatingSource = false;
+		}
+		sourceVersion = key.getVersion();
+		IncrementalSvgUpdates updates = getIncrementalUpdates(key);
+		if (updates != null) {
+			// rendered here for the download as well
+			updates.setBaseline(sourceVersion, renderChart(key));
+		}
+	}
+
+	/**
+	 * @return true if the chart is loaded lazily and has not come into view
+	 *         yet
+	 */
+	private boolean isWaitingForViewport() {
+		for (Extension extension : getExtensions()) {
+			if (extension instanceof LazyChartLoading) {
+				return !((LazyChartLoading) extension).isShown();
 			}
 		}
-                // Workaround for a regression that Vaadin core update caused
-                // at some point
-                setResource("src", getSource());
+		return false;
+	}
+
+	/**
+	 * @return the incremental updates extension of this wrapper, null if
+	 *         updates are not sent incrementally
+	 */
+	private IncrementalSvgUpdates getIncrementalUpdates() {
+		if (mode != RenderingMode.SVG || svgBackend != SvgBackend.STREAMING) {
+			return null;
+		}
+		for (Extension extension : getExtensions()) {
+			if (extension instanceof IncrementalSvgUpdates) {
+				return (IncrementalSvgUpdates) extension;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the incremental updates extension of this wrapper, null if
+	 *         charts rendered for the key are not sent incrementally
+	 */
+	private IncrementalSvgUpdates getIncrementalUpdates(RenderKey key) {
+		IncrementalSvgUpdates updates = getIncrementalUpdates();
+		if (updates != null && !IncrementalSvgUpdates.isComparable(key)) {
+			// not worth rendering and parsing the chart for the diff
+			updates.clearBaseline();
+			return null;
+		}
+		return updates;
 	}
 
 	@Override
 	public void detach() {
 		super.detach();
+		if (pendingRefresh != null) {
+			pendingRefresh.cancel(false);
+			pendingRefresh = null;
+		}
 	}
 
 	/**
@@ -237,143 +743,779 @@ public class JFreeChartWrapper extends Embedded {
 		aspectRatio = svgAspectRatioSetting;
 	}
 
+	/**
+	 * Sets how many rendered versions of the chart (e.g. different sizes or
+	 * modes) are kept in memory. A repeated request for an unchanged chart is
+	 * then served from memory instead of drawing the chart again. The cache
+	 * is cleared whenever the chart fires a change event or the component is
+	 * marked as dirty.
+	 * 
+	 * @param size
+	 *            the number of cached payloads, 0 disables caching, default 4
+	 */
+	public void setRenderCacheSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative");
+		}
+		renderCacheSize = size;
+		renderCache = null;
+	}
+
+	public int getRenderCacheSize() {
+		return renderCacheSize;
+	}
+
+	/**
+	 * Opts in to the application wide {@link SharedChartCache}. Wrappers that
+	 * declare the same key and the same render settings share the rendered
+	 * bytes, so the chart is drawn once instead of once per viewer.
+	 * <p>
+	 * The key must identify the content of the chart. Use a new key or
+	 * {@link SharedChartCache#invalidate(String)} when the data is refreshed;
+	 * changes to the wrapped chart alone do not affect the shared renders.
+	 * 
+	 * @param chartKey
+	 *            the identity of the chart content, null (default) to use only
+	 *            the cache of this wrapper
+	 */
+	public void setSharedCacheKey(String chartKey) {
+		sharedCacheKey = chartKey;
+	}
+
+	public String getSharedCacheKey() {
+		return sharedCacheKey;
+	}
+
 	@Override
 	public Resource getSource() {
 		if (res == null) {
-			StreamSource streamSource = new StreamResource.StreamSource() {
-				
-				@Override
-				public InputStream getStream() {
-					int widht = getGraphWidth();
-					int height = getGraphHeight();
-
-					if (mode == RenderingMode.SVG) {
-					
-						DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory
-								.newInstance();
-						DocumentBuilder docBuilder = null;
-						try {
-							docBuilder = docBuilderFactory
-									.newDocumentBuilder();
-						} catch (ParserConfigurationException e1) {
-							throw new RuntimeException(e1);
-						}
-						Document document = docBuilder.newDocument();
-						Element svgelem = document.createElement("svg");
-						document.appendChild(svgelem);
-						
-						// Create an instance of the SVG Generator
-						SVGGraphics2D svgGenerator = new SVGGraphics2D(
-								document);
-						
-						// draw the chart in the SVG generator
-						chart.draw(svgGenerator, new Rectangle(widht,
-								height));
-						Element el = svgGenerator.getRoot();
-						el.setAttributeNS(null, "viewBox", "0 0 " + widht
-								+ " " + height + "");
-						el.setAttributeNS(null, "style",
-								"width:100%;height:100%;");
-						el.setAttributeNS(null, "preserveAspectRatio",
-								getSvgAspectRatio());
-						
-						// Write svg to buffer
-						ByteArrayOutputStream baoutputStream = new ByteArrayOutputStream();
-						Writer out;
-						try {
-							OutputStream outputStream = gzipEnabled ? new GZIPOutputStream(
-									baoutputStream) : baoutputStream;
-									out = new OutputStreamWriter(outputStream,
-											"UTF-8");
-									/*
-									 * don't use css, FF3 can'd deal with the result
-									 * perfectly: wrong font sizes
-									 */
-									boolean useCSS = false;
-									svgGenerator.stream(el, out, useCSS, false);
-									outputStream.flush();
-									outputStream.close();
-									return new ByteArrayInputStream(
-											baoutputStream.toByteArray());
-						} catch (UnsupportedEncodingException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						} catch (SVGGraphics2DIOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					} else {
-						// Draw png to bytestream
-						try {
-							byte[] bytes = ChartUtils.encodeAsPNG(chart
-									.createBufferedImage(widht, height));
-							return new ByteArrayInputStream(bytes);
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
+			res = createSource(1);
+		}
+		return res;
+	}
 
+	/**
+	 * Returns a resource of the chart for a display with the given device
+	 * pixel ratio. In PNG mode the image has that many pixels per CSS pixel
+	 * of the chart, so it stays sharp on high density displays. The ratio is
+	 * rounded up to 1, 1.5, 2 or 3, so that all displays share a few renders
+	 * that are cached like any other. SVG charts are the same for every
+	 * ratio.
+	 * 
+	 * @param devicePixelRatio
+	 *            the device pixel ratio of the display, e.g. 2 for most high
+	 *            density displays
+	 * @return the resource, the same as {@link #getSource()} for ratio 1
+	 * @see HiDpiPng
+	 */
+	public Resource getSource(double devicePixelRatio) {
+		float pixelRatio = snapPixelRatio(devicePixelRatio);
+		return pixelRatio == 1 || mode != RenderingMode.PNG ? getSource()
+				: createSource(pixelRatio);
+	}
+
+	/**
+	 * @return the smallest of the pixel ratios PNG images are rendered at (1,
+	 *         1.5, 2 and 3) that is at least the given device pixel ratio, 3
+	 *         for higher ratios
+	 */
+	public static float snapPixelRatio(double devicePixelRatio) {
+		for (float pixelRatio : PIXEL_RATIOS) {
+			if (pixelRatio >= devicePixelRatio) {
+				return pixelRatio;
+			}
+		}
+		return PIXEL_RATIOS[PIXEL_RATIOS.length - 1];
+	}
+
+	private Resource createSource(final float pixelRatio) {
+		StreamSource streamSource = new StreamResource.StreamSource() {
+
+			@Override
+			public InputStream getStream() {
+				return renderChart(createRenderKey(pixelRatio))
+						.getInputStream();
+			}
+		};
+
+		// the name changes with the content, so the browser reloads it
+		String name = "graph"
+				+ createRenderKey(pixelRatio).getETag().substring(1, 17);
+		return new StreamResource(streamSource, name) {
+
+			/*
+			 * The payload of the latest download, used to size the buffer
+			 * without rendering the chart again.
+			 */
+			private transient RenderedChart lastRendered;
+
+			@Override
+			public int getBufferSize() {
+				RenderedChart rendered = lastRendered;
+				return rendered != null ? rendered.getSize() : 0;
+			}
+
+			@Override
+			public long getCacheTime() {
+				return cacheTime;
+			}
+
+			@Override
+			public String getFilename() {
+				return super.getFilename()
+						+ RenderedChart.getFileExtension(mode);
+			}
+
+			@Override
+			public DownloadStream getStream() {
+				RenderKey key = createRenderKey(pixelRatio);
+				// the encoding is negotiated before rendering, so that
+				// the ETag of the right variant is known
+				boolean gzip = key.isGzip()
+						&& key.getMode() == RenderingMode.SVG
+						&& acceptsGzip();
+				String etag = key.getETag(gzip);
+				if (isNotModified(etag)) {
+					return new NotModifiedDownloadStream(etag,
+							getCacheTime());
+				}
+				CompletableFuture<Map.Entry<RenderKey, RenderedChart>> pending = pendingRender;
+				if (pending != null && !pending.isDone()
+						&& getCachedChart(key) == null) {
+					// wait for the render without holding the session
+					DownloadStream downloadStream = new PendingDownloadStream(
+							key, gzip, pendingRenderStarted, pending,
+							getFilename());
+					setHeaders(downloadStream, key, etag, gzip);
+					return downloadStream;
+				}
+				if (directStreaming) {
+					RenderedChart rendered = getCachedChart(key);
+					if (rendered == null) {
+						// rendered later, straight into the response
+						DownloadStream downloadStream = new DirectDownloadStream(
+								key, gzip, getFilename());
+						setHeaders(downloadStream, key, etag, gzip);
+						return downloadStream;
 					}
-					return null;
+					fireRendered(createRenderEvent(key, rendered, true));
+					lastRendered = rendered;
+					return createDownloadStream(key, rendered, gzip);
 				}
-			};
+				// render exactly once per download
+				RenderedChart rendered = renderChart(key);
+				lastRendered = rendered;
+				return createDownloadStream(key, rendered, gzip);
+			}
 
-			res = new StreamResource(streamSource, String.format("graph%d", System.currentTimeMillis())) {
+			private DownloadStream createDownloadStream(RenderKey key,
+					RenderedChart rendered, boolean gzip) {
+				gzip &= rendered.hasGzipVariant();
+				DownloadStream downloadStream = new DownloadStream(
+						gzip ? rendered.getGzipInputStream() : rendered
+								.getInputStream(), rendered.getMimeType(),
+						super.getFilename() + rendered.getFileExtension());
+				downloadStream.setBufferSize(gzip ? rendered.getGzipSize()
+						: rendered.getSize());
+				setHeaders(downloadStream, key, key.getETag(gzip), gzip);
+				return downloadStream;
+			}
 
-				@Override
-				public int getBufferSize() {
-					if (getStreamSource().getStream() != null) {
-						try {
-							return getStreamSource().getStream().available();
-						} catch (IOException e) {
-							return 0;
-						}
-					} else {
-						return 0;
-					}
+			private void setHeaders(DownloadStream downloadStream,
+					RenderKey key, String etag, boolean gzip) {
+				downloadStream.setCacheTime(getCacheTime());
+				downloadStream.setParameter("ETag", etag);
+				if (key.isGzip() && key.getMode() == RenderingMode.SVG) {
+					downloadStream.setParameter("Vary", "Accept-Encoding");
 				}
-                
-                
-				@Override
-				public long getCacheTime() {
+				if (gzip) {
+					downloadStream.setParameter("Content-Encoding", "gzip");
+				}
+			}
+
+			@Override
+			public String getMIMEType() {
+				return RenderedChart.getMimeType(mode);
+			}
+		};
+	}
+
+	/**
+	 * Returns the payload for the key, drawing the chart only if it is not
+	 * found from the render cache.
+	 * 
+	 * @throws UncheckedIOException
+	 *             if the chart cannot be drawn
+	 */
+	private RenderedChart renderChart(RenderKey key) {
+		RenderedChart rendered = getCachedChart(key);
+		if (rendered != null) {
+			fireRendered(createRenderEvent(key, rendered, true));
+			return rendered;
+		}
+		ChartRenderEvent event = new ChartRenderEvent(this, key, false);
+		rendered = drawChart(key, event);
+		cacheChart(key, rendered);
+		event.setPayloadBytes(rendered.getSize());
+		fireRendered(event);
+		return rendered;
+	}
+
+	/**
+	 * Prepares rendering the chart as the browser would request it now, for
+	 * {@link ChartBatchRenderer}. Must be called with the session locked.
+	 * 
+	 * @return the render, to be run while the session stays locked, or null
+	 *         if the chart is cached already or the wrapper is not attached
+	 */
+	Runnable prepareRender() {
+		if (!isAttached()) {
+			// the rendering mode may still change when attached
+			return null;
+		}
+		final RenderKey key = createRenderKey();
+		if (getCachedChart(key) != null) {
+			return null;
+		}
+		return () -> renderChart(key);
+	}
+
+	JFreeChart getChart() {
+		return chart;
+	}
+
+	/**
+	 * @return identifies the chart as it would be rendered now, changes
+	 *         whenever the chart or the settings of the wrapper change
+	 */
+	String getRenderVersion() {
+		return createRenderKey().getVersion();
+	}
+
+	/**
+	 * @return true if changes of the chart wait for a refresh, see
+	 *         {@link #setChangeCoalescingInterval(long)}
+	 */
+	boolean isRefreshPending() {
+		return pendingRefresh != null;
+	}
+
+	/**
+	 * Draws the chart as a symbol of a {@link ChartBundle}, at the size and
+	 * with the settings of this wrapper. Must be called with the session
+	 * locked.
+	 */
+	void drawSymbol(StreamingSVGGraphics2D g2, String id) throws IOException {
+		RenderKey key = createRenderKey();
+		ChartRenderEvent event = new ChartRenderEvent(this, key, false);
+		XYDecimation decimation = decimate(key, event);
+		try {
+			g2.startSymbol(id, key.getWidth(), key.getHeight(),
+					key.getAspectRatio());
+			Graphics2D symbol = (Graphics2D) g2.create();
+			try {
+				chart.draw(symbol, new Rectangle(key.getWidth(),
+						key.getHeight()));
+			} finally {
+				symbol.dispose();
+			}
+			g2.endSymbol();
+		} finally {
+			restoreDatasets(decimation);
+		}
+	}
+
+	private ChartRenderEvent createRenderEvent(RenderKey key,
+			RenderedChart rendered, boolean cacheHit) {
+		ChartRenderEvent event = new ChartRenderEvent(this, key, cacheHit);
+		event.setPayloadBytes(rendered.getSize());
+		if (rendered.hasGzipVariant()) {
+			event.setCompressedBytes(rendered.getGzipSize());
+		}
+		return event;
+	}
+
+	private void fireRendered(ChartRenderEvent event) {
+		for (ChartRenderListener listener : renderListeners) {
+			listener.chartRendered(event);
+		}
+	}
+
+	/**
+	 * Checks whether the current request is a conditional request for the
+	 * version of the chart the browser already has.
+	 */
+	static boolean isNotModified(String etag) {
+		VaadinRequest request = VaadinService.getCurrentRequest();
+		String ifNoneMatch = request != null ? request
+				.getHeader("If-None-Match") : null;
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(etag) || tag.equals("*")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the client of the current request accepts gzip encoded
+	 * responses.
+	 */
+	static boolean acceptsGzip() {
+		VaadinRequest request = VaadinService.getCurrentRequest();
+		return acceptsGzip(request != null ? request
+				.getHeader("Accept-Encoding") : null);
+	}
+
+	/**
+	 * Checks whether an Accept-Encoding header allows gzip. An entry for gzip
+	 * takes precedence over the wildcard, whatever their order.
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		double wildcard = 0;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			String name = parts[0].trim();
+			if (name.equalsIgnoreCase("gzip")) {
+				return quality(parts) > 0;
+			} else if (name.equals("*")) {
+				wildcard = quality(parts);
+			}
+		}
+		return wildcard > 0;
+	}
+
+	/**
+	 * @return the q parameter of an Accept-Encoding entry split at ';', 1 if
+	 *         it has none and 0 if it is malformed
+	 */
+	private static double quality(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			String param = parts[i].trim().replace(" ", "");
+			if (param.startsWith("q=")) {
+				try {
+					return Double.parseDouble(param.substring(2));
+				} catch (NumberFormatException e) {
 					return 0;
 				}
-                
-				@Override
-				public String getFilename() {
-					if (mode == RenderingMode.PNG) {
-						return super.getFilename() + ".png";
-					} else {
-					    return super.getFilename() + (gzipEnabled ? ".svgz" : ".svg");
-					}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * @return the key describing the chart as it would be rendered now
+	 */
+	private RenderKey createRenderKey() {
+		return createRenderKey(1);
+	}
+
+	/**
+	 * @param pixelRatio
+	 *            the pixel ratio of PNG images, see
+	 *            {@link #snapPixelRatio(double)}
+	 */
+	private RenderKey createRenderKey(float pixelRatio) {
+		SharedChartCache sharedCache = getSharedCache();
+		Object chartState = sharedCache != null ? sharedCache
+				.chartState(sharedCacheKey) : instanceId + "." + chartVersion;
+		return new RenderKey(chartState, getGraphWidth(), getGraphHeight(),
+				mode, svgBackend, gzipEnabled, getSvgAspectRatio(),
+				dataDecimation, mode == RenderingMode.PNG ? pngEncoder : null,
+				mode != RenderingMode.PNG ? svgMinifier : null,
+				mode == RenderingMode.PNG ? pixelRatio : 1);
+	}
+
+	/**
+	 * @return the payload for the key from the shared cache or the cache of
+	 *         this wrapper, null if not cached
+	 */
+	private RenderedChart getCachedChart(RenderKey key) {
+		SharedChartCache sharedCache = getSharedCache();
+		if (sharedCache != null) {
+			return sharedCache.get(key);
+		}
+		RenderCache cache = getRenderCache();
+		return cache != null ? cache.get(key) : null;
+	}
+
+	private void cacheChart(RenderKey key, RenderedChart rendered) {
+		SharedChartCache sharedCache = getSharedCache();
+		if (sharedCache != null) {
+			sharedCache.put(key, rendered);
+		} else {
+			RenderCache cache = getRenderCache();
+			if (cache != null) {
+				cache.put(key, rendered);
+			}
+		}
+	}
+
+	/**
+	 * @return the shared cache of the service or null if the wrapper has not
+	 *         opted in or is not attached
+	 */
+	private SharedChartCache getSharedCache() {
+		if (sharedCacheKey == null) {
+			return null;
+		}
+		VaadinSession session = getSession();
+		VaadinService service = session != null ? session.getService()
+				: VaadinService.getCurrent();
+		return service != null ? SharedChartCache.get(service) : null;
+	}
+
+	private RenderCache getRenderCache() {
+		if (renderCache == null && renderCacheSize > 0) {
+			renderCache = new RenderCache(renderCacheSize);
+		}
+		return renderCache;
+	}
+
+	/**
+	 * Forgets all rendered payloads, the next request draws the chart again.
+	 */
+	private void invalidateRenderedChart() {
+		chartVersion++;
+		if (renderCache != null) {
+			renderCache.clear();
+		}
+		schedulePrerender();
+	}
+
+	/**
+	 * Schedules marking the wrapper as dirty after the coalescing interval,
+	 * unless a refresh is already scheduled. Must be called with the session
+	 * locked.
+	 */
+	private void scheduleRefresh() {
+		if (pendingRefresh != null) {
+			return;
+		}
+		final UI ui = getUI();
+		pendingRefresh = RefreshScheduler.INSTANCE.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					ui.access(new Runnable() {
+
+						@Override
+						public void run() {
+							pendingRefresh = null;
+							if (isAttached()) {
+								markAsDirty();
+							}
+						}
+					});
+				} catch (UIDetachedException e) {
+					// nothing to refresh
 				}
-                
+			}
+		}, changeCoalescingInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Timer shared by all wrappers for delayed refreshes.
+	 */
+	private static final class RefreshScheduler {
+
+		static final ScheduledExecutorService INSTANCE = createScheduler();
+
+		private static ScheduledExecutorService createScheduler() {
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+					1, r -> {
+						Thread thread = new Thread(r, "chart-refresh");
+						thread.setDaemon(true);
+						return thread;
+					});
+			scheduler.setRemoveOnCancelPolicy(true);
+			return scheduler;
+		}
+	}
+
+	/**
+	 * Queues a background render of the current chart, unless one is already
+	 * queued. Must be called with the session locked.
+	 */
+	private void schedulePrerender() {
+		final Executor executor = renderExecutor;
+		final VaadinSession session = getSession();
+		if (executor == null || session == null || isWaitingForViewport()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (prerenderQueuedAt != 0
+				&& !pendingRender.isDone()
+				&& now - prerenderQueuedAt < TimeUnit.SECONDS
+						.toMillis(PRERENDER_WAIT_SECONDS)) {
+			// the queued render draws the latest state when it starts; a
+			// render given up by a request or queued for longer was probably
+			// discarded by the executor
+			return;
+		}
+		final CompletableFuture<Map.Entry<RenderKey, RenderedChart>> future = new CompletableFuture<Map.Entry<RenderKey, RenderedChart>>();
+		final CompletableFuture<Void> started = new CompletableFuture<Void>();
+		prerenderQueuedAt = now;
+		pendingRender = future;
+		pendingRenderStarted = started;
+		try {
+			executor.execute(new Runnable() {
+
 				@Override
-				public DownloadStream getStream() {
-					DownloadStream downloadStream = new DownloadStream(
-							getStreamSource().getStream(), getMIMEType(), getFilename());
-					if (gzipEnabled && mode == RenderingMode.SVG) {
-						downloadStream.setParameter("Content-Encoding", "gzip");
+				public void run() {
+					started.complete(null);
+					session.lock();
+					try {
+						// later changes need a new render
+						if (pendingRender == future) {
+							prerenderQueuedAt = 0;
+						}
+						RenderKey key = createRenderKey();
+						future.complete(new AbstractMap.SimpleImmutableEntry<RenderKey, RenderedChart>(
+								key, renderChart(key)));
+					} catch (RuntimeException e) {
+						future.completeExceptionally(e);
+					} finally {
+						session.unlock();
 					}
-					return downloadStream;
 				}
-                
-				@Override
-				public String getMIMEType() {
-					if (mode == RenderingMode.PNG) {
-						return "image/png";
-					} else {
-						return "image/svg+xml";
-					}
+			});
+		} catch (RejectedExecutionException e) {
+			// rendered on request instead
+			prerenderQueuedAt = 0;
+			pendingRender = null;
+			pendingRenderStarted = null;
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Waits for the given background render and returns its result if it
+	 * rendered the chart for the given key. Gives up the render if it does
+	 * not start in time, as the executor may have discarded it. Must not be
+	 * called with the session locked.
+	 * 
+	 * @return the rendered chart or null if the caller has to render it
+	 */
+	private RenderedChart awaitPrerender(Future<Void> started,
+			CompletableFuture<Map.Entry<RenderKey, RenderedChart>> future,
+			RenderKey key) {
+		try {
+			try {
+				started.get(PRERENDER_START_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// lets the next change queue a new render; if the render
+				// starts after all, it only fills the cache
+				future.completeExceptionally(e);
+				return getCachedChart(key);
+			}
+			Map.Entry<RenderKey, RenderedChart> result = future.get(
+					PRERENDER_WAIT_SECONDS, TimeUnit.SECONDS);
+			if (key.equals(result.getKey())) {
+				return result.getValue();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// rendered below
+		} catch (CancellationException e) {
+			// rendered below
+		} catch (TimeoutException e) {
+			// rendered below
+		}
+		return getCachedChart(key);
+	}
+
+	/**
+	 * Draws the chart as described by the key.
+	 * 
+	 * @throws UncheckedIOException
+	 *             if the chart cannot be written, e.g. the SVG backend fails
+	 */
+	private RenderedChart drawChart(RenderKey key, ChartRenderEvent event) {
+		PngBufferPool pool = PngBufferPool.getInstance();
+		ByteArrayOutputStream baoutputStream = pool.acquireBuffer();
+		XYDecimation decimation = decimate(key, event);
+		try {
+			if (key.getMode() == RenderingMode.SVG) {
+				writeSvg(key, baoutputStream, event);
+				byte[] bytes = baoutputStream.toByteArray();
+				// compressed once per chart version, not per download
+				byte[] gzipBytes = null;
+				if (key.isGzip()) {
+					long start = System.nanoTime();
+					gzipBytes = ParallelDeflater.getInstance().gzip(bytes);
+					event.addNanos(Phase.COMPRESS, System.nanoTime() - start);
+					event.setCompressedBytes(gzipBytes.length);
 				}
-			};
+				return new RenderedChart(bytes, gzipBytes, RenderingMode.SVG);
+			} else {
+				// Draw png to bytestream
+				writePng(key, baoutputStream, event);
+				return new RenderedChart(baoutputStream.toByteArray(), null,
+						RenderingMode.PNG);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to render the chart", e);
+		} finally {
+			restoreDatasets(decimation);
+			pool.releaseBuffer(baoutputStream);
 		}
-		return res;
 	}
-	
+
+	/**
+	 * Replaces large XY datasets of the chart with decimated views if the key
+	 * asks for it.
+	 * 
+	 * @return the replacement to restore after drawing or null
+	 */
+	private XYDecimation decimate(RenderKey key, ChartRenderEvent event) {
+		if (!key.isDecimated()) {
+			return null;
+		}
+		long start = System.nanoTime();
+		// one bucket per pixel column of the image
+		XYDecimation decimation = XYDecimation.apply(chart,
+				key.getImageWidth(), key.getImageHeight());
+		event.addNanos(Phase.DRAW, System.nanoTime() - start);
+		return decimation;
+	}
+
+	private void restoreDatasets(XYDecimation decimation) {
+		if (decimation != null) {
+			// the chart is back in the state it was rendered from, no
+			// wrapper of the chart takes it as a change
+			decimation.restore();
+		}
+	}
+
+	/**
+	 * Draws the chart as SVG to the given stream using the backend of the key,
+	 * recording the time spent to the event.
+	 */
+	private void writeSvg(RenderKey key, OutputStream outputStream,
+			ChartRenderEvent event) throws IOException {
+		writeSvg(key, outputStream, event, null);
+	}
+
+	/**
+	 * @param drawn
+	 *            run once the chart is no longer accessed, before the
+	 *            document is serialized; with the streaming backend after
+	 *            the whole document is written. May be null.
+	 */
+	private void writeSvg(RenderKey key, OutputStream outputStream,
+			ChartRenderEvent event, Runnable drawn) throws IOException {
+		int widht = key.getWidth();
+		int height = key.getHeight();
+		Writer out = new OutputStreamWriter(outputStream, "UTF-8");
+
+		if (key.getSvgBackend() == SvgBackend.STREAMING) {
+			StreamingSVGGraphics2D svgGenerator = new StreamingSVGGraphics2D(
+					new BufferedWriter(out, 8192), key.getSvgMinifier());
+			long start = System.nanoTime();
+			svgGenerator.startDocument(widht, height, key.getAspectRatio(),
+					key.getVersion());
+			chart.draw(svgGenerator, new Rectangle(widht, height));
+			svgGenerator.endDocument();
+			event.addNanos(Phase.DRAW, System.nanoTime() - start);
+			if (drawn != null) {
+				drawn.run();
+			}
+			return;
+		}
+
+		// Create an instance of the SVG Generator, with a pooled setup
+		SvgGeneratorPool generators = SvgGeneratorPool.acquire();
+		try {
+			SVGGraphics2D svgGenerator = generators.createGraphics();
+
+			// draw the chart in the SVG generator
+			long start = System.nanoTime();
+			chart.draw(svgGenerator, new Rectangle(widht, height));
+			event.addNanos(Phase.DRAW, System.nanoTime() - start);
+			if (drawn != null) {
+				drawn.run();
+			}
+			Element el = svgGenerator.getRoot();
+			el.setAttributeNS(null, "viewBox", "0 0 " + widht + " " + height
+					+ "");
+			el.setAttributeNS(null, "style", "width:100%;height:100%;");
+			el.setAttributeNS(null, "preserveAspectRatio",
+					key.getAspectRatio());
+
+			/*
+			 * don't use css, FF3 can'd deal with the result perfectly: wrong
+			 * font sizes
+			 */
+			boolean useCSS = false;
+			start = System.nanoTime();
+			SvgMinifier minifier = key.getSvgMinifier();
+			if (minifier != null) {
+				minifier.minify(el);
+				minifier.write(el, out);
+			} else {
+				svgGenerator.stream(el, out, useCSS, false);
+			}
+			out.flush();
+			event.addNanos(Phase.SERIALIZE, System.nanoTime() - start);
+		} finally {
+			generators.release();
+		}
+	}
+
+	/**
+	 * Draws the chart as PNG to the given stream, into an image from the
+	 * {@link PngBufferPool}, recording the time spent to the event.
+	 */
+	private void writePng(RenderKey key, OutputStream outputStream,
+			ChartRenderEvent event) throws IOException {
+		writePng(key, outputStream, event, null);
+	}
+
+	/**
+	 * @param drawn
+	 *            run once the chart is drawn, before the image is encoded.
+	 *            May be null.
+	 */
+	private void writePng(RenderKey key, OutputStream outputStream,
+			ChartRenderEvent event, Runnable drawn) throws IOException {
+		long start = System.nanoTime();
+		PngBufferPool pool = PngBufferPool.getInstance();
+		BufferedImage image = pool.acquireImage(key.getImageWidth(),
+				key.getImageHeight());
+		try {
+			Graphics2D g2 = image.createGraphics();
+			try {
+				// laid out at the size of the chart, drawn with more pixels
+				g2.scale(key.getPixelRatio(), key.getPixelRatio());
+				chart.draw(g2, new Rectangle(key.getWidth(), key.getHeight()));
+			} finally {
+				g2.dispose();
+			}
+			long drawnAt = System.nanoTime();
+			event.addNanos(Phase.DRAW, drawnAt - start);
+			if (drawn != null) {
+				drawn.run();
+			}
+			key.getPngEncoder().encode(image, outputStream);
+			event.addNanos(Phase.ENCODE, System.nanoTime() - drawnAt);
+		} finally {
+			pool.releaseImage(image);
+		}
+	}
+
     /**
      * {@inheritDoc}
      */
@@ -381,5 +1523,257 @@ public class JFreeChartWrapper extends Embedded {
     public void markAsDirty() {
         super.markAsDirty();
         res = null;
+        if (!updatingSource) {
+            invalidateRenderedChart();
+        }
     }
+
+	/**
+	 * Download stream that draws the chart directly to the response when it is
+	 * written, instead of reading a buffered payload.
+	 */
+	private class DirectDownloadStream extends DownloadStream {
+
+		private static final int BUFFER_SIZE = 8192;
+
+		private final RenderKey key;
+		private final boolean gzip;
+
+		DirectDownloadStream(RenderKey key, boolean gzip, String filename) {
+			super(null, RenderedChart.getMimeType(key.getMode()), filename);
+			this.key = key;
+			this.gzip = gzip;
+		}
+
+		@Override
+		public void writeResponse(VaadinRequest request,
+				VaadinResponse response) throws IOException {
+			writeHeaders(this, response);
+
+			// no content length, the container uses chunked transfer
+			CountingOutputStream out = new CountingOutputStream(
+					new BufferedOutputStream(response.getOutputStream(),
+							BUFFER_SIZE));
+			ChartRenderEvent event = new ChartRenderEvent(
+					JFreeChartWrapper.this, key, false);
+			VaadinSession session = getSession();
+			if (session != null) {
+				session.lock();
+			}
+			// the chart is drawn with the session locked, the output is
+			// encoded and sent to the browser without it
+			DrawRelease release = new DrawRelease(session);
+			try {
+				release.decimation = decimate(key, event);
+				if (key.getMode() == RenderingMode.SVG) {
+					CountingOutputStream svgOut = gzip ? new CountingOutputStream(
+							new GZIPOutputStream(out, BUFFER_SIZE)) : out;
+					writeSvg(key, svgOut, event, release);
+					svgOut.close();
+					event.setPayloadBytes(svgOut.getCount());
+					if (gzip) {
+						event.setCompressedBytes(out.getCount());
+					}
+				} else {
+					writePng(key, out, event, release);
+					out.close();
+					event.setPayloadBytes(out.getCount());
+				}
+			} finally {
+				release.run();
+			}
+			if (session != null) {
+				session.lock();
+			}
+			try {
+				fireRendered(event);
+			} finally {
+				if (session != null) {
+					session.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restores the decimated datasets and unlocks the session once the chart
+	 * has been drawn, the first time it is run.
+	 */
+	private class DrawRelease implements Runnable {
+
+		private final VaadinSession session;
+		private XYDecimation decimation;
+		private boolean released;
+
+		DrawRelease(VaadinSession session) {
+			this.session = session;
+		}
+
+		@Override
+		public void run() {
+			if (released) {
+				return;
+			}
+			released = true;
+			try {
+				restoreDatasets(decimation);
+			} finally {
+				if (session != null) {
+					session.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Download stream that waits for a background render when it is written.
+	 * If the render fails or produces a different version of the chart, the
+	 * chart is rendered on the request thread.
+	 */
+	private class PendingDownloadStream extends DownloadStream {
+
+		private final RenderKey key;
+		private final boolean gzip;
+		private final Future<Void> started;
+		private final CompletableFuture<Map.Entry<RenderKey, RenderedChart>> pending;
+
+		PendingDownloadStream(RenderKey key, boolean gzip,
+				Future<Void> started,
+				CompletableFuture<Map.Entry<RenderKey, RenderedChart>> pending,
+				String filename) {
+			super(null, RenderedChart.getMimeType(key.getMode()), filename);
+			this.key = key;
+			this.gzip = gzip;
+			this.started = started;
+			this.pending = pending;
+		}
+
+		@Override
+		public void writeResponse(VaadinRequest request,
+				VaadinResponse response) throws IOException {
+			RenderedChart rendered = awaitPrerender(started, pending, key);
+			if (rendered == null) {
+				VaadinSession session = getSession();
+				if (session != null) {
+					session.lock();
+				}
+				try {
+					rendered = renderChart(key);
+				} finally {
+					if (session != null) {
+						session.unlock();
+					}
+				}
+			}
+			boolean gzipped = gzip && rendered.hasGzipVariant();
+			writeHeaders(this, response);
+			OutputStream out = response.getOutputStream();
+			try {
+				copy(gzipped ? rendered.getGzipInputStream() : rendered
+						.getInputStream(), out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the headers of the download stream to the response, like
+	 * {@link DownloadStream#writeResponse(VaadinRequest, VaadinResponse)}
+	 * does.
+	 */
+	private static void writeHeaders(DownloadStream downloadStream,
+			VaadinResponse response) {
+		response.setContentType(downloadStream.getContentType());
+		response.setCacheTime(downloadStream.getCacheTime());
+		Iterator<String> names = downloadStream.getParameterNames();
+		while (names != null && names.hasNext()) {
+			String name = names.next();
+			response.setHeader(name, downloadStream.getParameter(name));
+		}
+		response.setHeader(DownloadStream.CONTENT_DISPOSITION, DownloadStream
+				.getContentDispositionFilename(downloadStream.getFileName()));
+	}
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out)
+			throws IOException {
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+	}
+
+	/**
+	 * Download stream answering a conditional request with
+	 * "304 Not Modified".
+	 */
+	private static class NotModifiedDownloadStream extends DownloadStream {
+
+		NotModifiedDownloadStream(String etag, long cacheTime) {
+			super(null, null, null);
+			setParameter("ETag", etag);
+			setCacheTime(cacheTime);
+		}
+
+		@Override
+		public void writeResponse(VaadinRequest request,
+				VaadinResponse response) throws IOException {
+			response.setStatus(304);
+			response.setCacheTime(getCacheTime());
+			response.setHeader("ETag", getParameter("ETag"));
+		}
+	}
+
+	/**
+	 * Invalidates rendered payloads when the chart changes.
+	 */
+	private class ChartInvalidator implements ChartChangeListener,
+			Serializable {
+
+		@Override
+		public void chartChanged(ChartChangeEvent event) {
+			if (XYDecimation.isRestoring()) {
+				return;
+			}
+			if (changeCoalescingInterval > 0 && getUI() != null) {
+				// rendered once when the refresh runs
+				chartVersion++;
+				if (renderCache != null) {
+					renderCache.clear();
+				}
+				scheduleRefresh();
+			} else {
+				invalidateRenderedChart();
+			}
+		}
+	}
 }
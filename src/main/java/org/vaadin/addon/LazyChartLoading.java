@@ -0,0 +1,118 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.server.AbstractJavaScriptExtension;
+import com.vaadin.shared.JavaScriptExtensionState;
+
+/**
+ * Loads a chart only when it scrolls into or near the visible area of the
+ * page.
+ * <p>
+ * Without it every chart of a long report is downloaded, and rendered on the
+ * server, as soon as the page is shown. With the extension the wrapper sends
+ * no resource to the browser until the browser reports, using an
+ * IntersectionObserver, that the chart is within a margin of the viewport.
+ * Background renders of the wrapper are also held back until then. Once
+ * loaded, the chart is updated like any other.
+ * <p>
+ * Browsers without IntersectionObserver load the chart right away.
+ */
+@SuppressWarnings("serial")
+@JavaScript("lazy-chart-loading.js")
+public class LazyChartLoading extends AbstractJavaScriptExtension {
+
+	/**
+	 * Default distance from the viewport at which charts are loaded, in
+	 * pixels.
+	 */
+	public static final int DEFAULT_MARGIN = 200;
+
+	/**
+	 * Shared state of the extension.
+	 */
+	public static class LazyChartLoadingState extends JavaScriptExtensionState {
+
+		/**
+		 * True when the chart has been loaded.
+		 */
+		public boolean shown;
+
+		/**
+		 * Distance from the viewport at which the chart is loaded.
+		 */
+		public int margin = DEFAULT_MARGIN;
+	}
+
+	private final JFreeChartWrapper wrapper;
+
+	private LazyChartLoading(JFreeChartWrapper wrapper) {
+		super(wrapper);
+		this.wrapper = wrapper;
+		addFunction("visible", arguments -> show());
+	}
+
+	/**
+	 * Defers loading the chart of the given wrapper until it is near the
+	 * viewport. Add the extension before the wrapper is attached, otherwise
+	 * the chart has already been sent.
+	 * 
+	 * @return the extension
+	 */
+	public static LazyChartLoading extend(JFreeChartWrapper wrapper) {
+		return new LazyChartLoading(wrapper);
+	}
+
+	/**
+	 * @param pixels
+	 *            how far outside of the viewport charts start loading,
+	 *            default {@link #DEFAULT_MARGIN}
+	 */
+	public void setMargin(int pixels) {
+		getState().margin = pixels;
+	}
+
+	public int getMargin() {
+		return getState(false).margin;
+	}
+
+	/**
+	 * @return true if the chart has come near the viewport and has been sent
+	 *         to the browser
+	 */
+	public boolean isShown() {
+		return getState(false).shown;
+	}
+
+	/**
+	 * Sends the chart to the browser, as when it scrolls into view.
+	 */
+	public void show() {
+		if (!isShown()) {
+			getState().shown = true;
+			wrapper.markAsDirty();
+		}
+	}
+
+	@Override
+	protected LazyChartLoadingState getState() {
+		return (LazyChartLoadingState) super.getState();
+	}
+
+	@Override
+	protected LazyChartLoadingState getState(boolean markAsDirty) {
+		return (LazyChartLoadingState) super.getState(markAsDirty);
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses large payloads on several threads, the way pigz does: the input
+ * is split into blocks that are deflated independently on a fork-join pool,
+ * each with the end of the previous block as its dictionary so that the
+ * compression ratio stays close to compressing the whole input at once. The
+ * blocks are stitched into one valid gzip or zlib stream.
+ * <p>
+ * Used for the gzip variant of SVG charts and for the image data of PNG
+ * charts. Inputs smaller than the {@link #setThreshold(int) threshold} are
+ * compressed on the calling thread, as splitting them does not pay off.
+ */
+public final class ParallelDeflater {
+
+	/**
+	 * Default size from which inputs are compressed in parallel, 1 MB.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	// input bytes per block and dictionary bytes carried over, as in pigz
+	static final int BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private static final ParallelDeflater instance = new ParallelDeflater();
+
+	private volatile int threshold = DEFAULT_THRESHOLD;
+	private volatile ForkJoinPool pool;
+
+	ParallelDeflater() {
+	}
+
+	/**
+	 * @return the deflater used by all wrappers
+	 */
+	public static ParallelDeflater getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sets the size from which inputs are compressed in parallel.
+	 * 
+	 * @param bytes
+	 *            the threshold, {@link Integer#MAX_VALUE} to always compress
+	 *            on the calling thread
+	 */
+	public void setThreshold(int bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException(
+					"Threshold must not be negative");
+		}
+		threshold = bytes;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the pool the blocks are compressed on.
+	 * 
+	 * @param pool
+	 *            the pool, null (default) for the common pool
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool != null ? pool : ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * @return true if an input of the given size is compressed in parallel
+	 */
+	boolean isParallel(long size) {
+		return size >= threshold && size > BLOCK_SIZE
+				&& getPool().getParallelism() > 1;
+	}
+
+	/**
+	 * Compresses the data to a gzip stream.
+	 */
+	public byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+				data.length / 4);
+		if (!isParallel(data.length)) {
+			GZIPOutputStream out = new GZIPOutputStream(compressed, 8192);
+			out.write(data);
+			out.close();
+			return compressed.toByteArray();
+		}
+		compressed.write(GZIP_HEADER);
+		List<ForkJoinTask<byte[]>> blocks = submit(data, 0, data.length,
+				Deflater.DEFAULT_COMPRESSION);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		join(blocks, compressed);
+		writeIntLE(compressed, (int) crc.getValue());
+		writeIntLE(compressed, data.length);
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Compresses a part of the data to a zlib stream written to the given
+	 * stream, in parallel if it is large enough.
+	 * 
+	 * @param level
+	 *            the deflate level from 0 to 9
+	 */
+	void zlib(byte[] data, int off, int len, int level, OutputStream out)
+			throws IOException {
+		int cmf = 0x78; // deflate with a 32K window
+		int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+		int flg = flevel << 6;
+		flg += 31 - (cmf * 256 + flg) % 31;
+		out.write(cmf);
+		out.write(flg);
+		Adler32 adler = new Adler32();
+		if (isParallel(len)) {
+			List<ForkJoinTask<byte[]>> blocks = submit(data, off, len, level);
+			adler.update(data, off, len);
+			join(blocks, out);
+		} else {
+			out.write(compressBlock(data, off, len, off, true, level));
+			adler.update(data, off, len);
+		}
+		int checksum = (int) adler.getValue();
+		out.write(checksum >>> 24);
+		out.write(checksum >>> 16);
+		out.write(checksum >>> 8);
+		out.write(checksum);
+	}
+
+	private List<ForkJoinTask<byte[]>> submit(final byte[] data,
+			final int off, final int len, final int level) {
+		ForkJoinPool pool = getPool();
+		List<ForkJoinTask<byte[]>> blocks = new ArrayList<ForkJoinTask<byte[]>>();
+		int end = off + len;
+		for (int start = off; start < end; start += BLOCK_SIZE) {
+			final int blockStart = start;
+			final int blockLength = Math.min(BLOCK_SIZE, end - start);
+			final boolean last = start + blockLength == end;
+			blocks.add(pool.submit(() -> compressBlock(data, blockStart,
+					blockLength, Math.max(off, blockStart - DICTIONARY_SIZE),
+					last, level)));
+		}
+		return blocks;
+	}
+
+	private static void join(List<ForkJoinTask<byte[]>> blocks,
+			OutputStream out) throws IOException {
+		for (int i = 0; i < blocks.size(); i++) {
+			try {
+				out.write(blocks.get(i).join());
+			} catch (IOException | RuntimeException e) {
+				for (int j = i + 1; j < blocks.size(); j++) {
+					blocks.get(j).cancel(false);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Deflates one block without zlib header and trailer. Blocks other than
+	 * the last one end with a sync flush, which aligns them to a byte
+	 * boundary so that the next block can simply be appended.
+	 * 
+	 * @param dictionaryStart
+	 *            the start of the input preceding the block used as the
+	 *            dictionary, equal to off for none
+	 */
+	static byte[] compressBlock(byte[] data, int off, int len,
+			int dictionaryStart, boolean last, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionaryStart < off) {
+				deflater.setDictionary(data, dictionaryStart, off
+						- dictionaryStart);
+			}
+			deflater.setInput(data, off, len);
+			byte[] out = new byte[len / 2 + 64];
+			int length = 0;
+			if (last) {
+				deflater.finish();
+			}
+			while (true) {
+				if (length == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				length += deflater.deflate(out, length, out.length - length,
+						last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				if (last ? deflater.finished() : length < out.length) {
+					return Arrays.copyOf(out, length);
+				}
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeIntLE(OutputStream out, int value)
+			throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+}
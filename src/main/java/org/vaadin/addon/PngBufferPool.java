@@ -0,0 +1,264 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Application wide pool of the memory needed to render charts as PNG: the
+ * images the charts are drawn into, the filtered rows of large images that are
+ * compressed in parallel and the buffers the encoded bytes are collected in.
+ * <p>
+ * Drawing a chart needs an image of width * height * 4 bytes, several
+ * megabytes for a large chart. Without the pool every render allocates a new
+ * one, which makes PNG rendering dominated by garbage collection under load.
+ * The pool keeps released images per size and released buffers, as long as
+ * their total size stays within a budget. Least recently used sizes are
+ * discarded first.
+ */
+public final class PngBufferPool {
+
+	/**
+	 * Default maximum size of the pooled images and buffers, 32 MB.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	// buffers larger than this are not kept
+	private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static final PngBufferPool instance = new PngBufferPool();
+
+	private final LinkedHashMap<Long, ArrayDeque<BufferedImage>> images = new LinkedHashMap<Long, ArrayDeque<BufferedImage>>(
+			16, 0.75f, true);
+	private final ArrayDeque<EncodeBuffer> buffers = new ArrayDeque<EncodeBuffer>();
+	private final ArrayDeque<byte[]> arrays = new ArrayDeque<byte[]>();
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private long bytes;
+
+	private long hits;
+	private long misses;
+
+	PngBufferPool() {
+	}
+
+	/**
+	 * @return the pool used by all wrappers
+	 */
+	public static PngBufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Takes a cleared, fully transparent image of the given size from the
+	 * pool, or creates one if the pool has none.
+	 */
+	BufferedImage acquireImage(int width, int height) {
+		BufferedImage image = null;
+		synchronized (this) {
+			ArrayDeque<BufferedImage> pooled = images.get(sizeKey(width,
+					height));
+			if (pooled != null && !pooled.isEmpty()) {
+				image = pooled.pop();
+				bytes -= imageSize(image);
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+		if (image == null) {
+			return new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_ARGB);
+		}
+		Graphics2D g2 = image.createGraphics();
+		try {
+			g2.setComposite(AlphaComposite.Clear);
+			g2.fillRect(0, 0, width, height);
+		} finally {
+			g2.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * Returns an image to the pool. The image must not be used afterwards.
+	 */
+	synchronized void releaseImage(BufferedImage image) {
+		long size = imageSize(image);
+		if (size > maxBytes) {
+			return;
+		}
+		Long key = sizeKey(image.getWidth(), image.getHeight());
+		ArrayDeque<BufferedImage> pooled = images.get(key);
+		if (pooled == null) {
+			pooled = new ArrayDeque<BufferedImage>();
+			images.put(key, pooled);
+		}
+		pooled.push(image);
+		bytes += size;
+		evict();
+	}
+
+	/**
+	 * Takes an empty buffer for collecting encoded bytes from the pool.
+	 */
+	synchronized ByteArrayOutputStream acquireBuffer() {
+		EncodeBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			return new EncodeBuffer();
+		}
+		bytes -= buffer.capacity();
+		buffer.reset();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer taken with {@link #acquireBuffer()} to the pool. The
+	 * buffer must not be used afterwards.
+	 */
+	synchronized void releaseBuffer(ByteArrayOutputStream buffer) {
+		if (!(buffer instanceof EncodeBuffer)) {
+			return;
+		}
+		EncodeBuffer encodeBuffer = (EncodeBuffer) buffer;
+		if (encodeBuffer.capacity() > MAX_BUFFER_SIZE) {
+			return;
+		}
+		buffers.push(encodeBuffer);
+		bytes += encodeBuffer.capacity();
+		evict();
+	}
+
+	/**
+	 * Takes an array of at least the given length from the pool, or creates
+	 * one if the pool has none. The content of the array is undefined.
+	 */
+	synchronized byte[] acquireArray(int length) {
+		for (Iterator<byte[]> it = arrays.iterator(); it.hasNext();) {
+			byte[] array = it.next();
+			if (array.length >= length) {
+				it.remove();
+				bytes -= array.length;
+				return array;
+			}
+		}
+		return new byte[length];
+	}
+
+	/**
+	 * Returns an array taken with {@link #acquireArray(int)} to the pool. The
+	 * array must not be used afterwards.
+	 */
+	synchronized void releaseArray(byte[] array) {
+		if (array.length > maxBytes) {
+			return;
+		}
+		arrays.push(array);
+		bytes += array.length;
+		evict();
+	}
+
+	private void evict() {
+		while (bytes > maxBytes && !buffers.isEmpty()) {
+			bytes -= buffers.removeLast().capacity();
+		}
+		while (bytes > maxBytes && !arrays.isEmpty()) {
+			bytes -= arrays.removeLast().length;
+		}
+		Iterator<ArrayDeque<BufferedImage>> it = images.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			ArrayDeque<BufferedImage> pooled = it.next();
+			while (bytes > maxBytes && !pooled.isEmpty()) {
+				bytes -= imageSize(pooled.removeLast());
+			}
+			if (pooled.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum total size of the pooled images and buffers. 0
+	 * disables pooling.
+	 */
+	public synchronized void setMaxSizeInBytes(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Size must not be negative");
+		}
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxSizeInBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the total size of the pooled images and buffers in bytes
+	 */
+	public synchronized long getSizeInBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Discards all pooled images and buffers.
+	 */
+	public synchronized void clear() {
+		images.clear();
+		buffers.clear();
+		arrays.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return the number of images taken from the pool
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of images that had to be created
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	private static Long sizeKey(int width, int height) {
+		return ((long) width << 32) | (height & 0xffffffffL);
+	}
+
+	private static long imageSize(BufferedImage image) {
+		return 4L * image.getWidth() * image.getHeight();
+	}
+
+	/**
+	 * Byte array output stream whose capacity is known.
+	 */
+	private static final class EncodeBuffer extends ByteArrayOutputStream {
+
+		EncodeBuffer() {
+			super(64 * 1024);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+}
@@ -0,0 +1,693 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder tuned for charts, used for {@link JFreeChartWrapper}s in
+ * PNG mode.
+ * <p>
+ * Charts are mostly flat areas of a few colors, which compress well without
+ * the per row filter heuristics of general purpose encoders. The encoder
+ * writes opaque images without an alpha channel and images with at most 256
+ * colors (e.g. charts drawn without antialiasing) as indexed color images
+ * with a palette, a quarter of the raw size of a true color image.
+ * <p>
+ * Encoders are immutable and can be shared by any number of wrappers and
+ * threads.
+ */
+@SuppressWarnings("serial")
+public class PngEncoder implements Serializable {
+
+	/**
+	 * How the rows of the image are filtered before compression, see the
+	 * PNG specification.
+	 */
+	public enum Filter {
+		/**
+		 * Rows are compressed as they are. Fastest, and usually also the
+		 * smallest for antialiased charts, where flat areas repeat exactly.
+		 */
+		NONE,
+		/** Each byte is stored as the difference to the pixel on its left. */
+		SUB,
+		/** Each byte is stored as the difference to the pixel above. */
+		UP,
+		/** Each byte is predicted from the pixels left, above and above left. */
+		PAETH,
+		/**
+		 * The filter of each row is chosen by trying all of them, like most
+		 * PNG encoders do. Good for photos and gradients, slowest.
+		 */
+		ADAPTIVE
+	}
+
+	/**
+	 * Default deflate level: charts compress almost as well as with higher
+	 * levels, in a fraction of the time.
+	 */
+	public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+			26, 10 };
+	private static final int COLOR_TYPE_TRUECOLOR = 2;
+	private static final int COLOR_TYPE_INDEXED = 3;
+	private static final int COLOR_TYPE_TRUECOLOR_ALPHA = 6;
+	private static final int IDAT_SIZE = 64 * 1024;
+
+	private final int compressionLevel;
+	private final Filter filter;
+	private final boolean palette;
+
+	/**
+	 * Creates an encoder with the default compression level and no filter,
+	 * writing images with a palette when possible.
+	 */
+	public PngEncoder() {
+		this(DEFAULT_COMPRESSION_LEVEL, Filter.NONE, true);
+	}
+
+	/**
+	 * @param compressionLevel
+	 *            the deflate level from 0 (no compression) to 9 (smallest)
+	 * @param filter
+	 *            the filter applied to rows before compression
+	 * @param palette
+	 *            true to write images with at most 256 colors with a palette
+	 */
+	public PngEncoder(int compressionLevel, Filter filter, boolean palette) {
+		if (compressionLevel < 0 || compressionLevel > 9) {
+			throw new IllegalArgumentException(
+					"Compression level must be between 0 and 9");
+		}
+		if (filter == null) {
+			throw new IllegalArgumentException("Filter must not be null");
+		}
+		this.compressionLevel = compressionLevel;
+		this.filter = filter;
+		this.palette = palette;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public Filter getFilter() {
+		return filter;
+	}
+
+	public boolean isPalette() {
+		return palette;
+	}
+
+	/**
+	 * Writes the image as PNG. The stream is not closed.
+	 */
+	public void encode(BufferedImage image, OutputStream out)
+			throws IOException {
+		Pixels pixels = new Pixels(image);
+		int colorType;
+		int[] colors = null;
+		if (palette && (colors = pixels.findPalette()) != null) {
+			colorType = COLOR_TYPE_INDEXED;
+		} else if (pixels.isOpaque()) {
+			colorType = COLOR_TYPE_TRUECOLOR;
+		} else {
+			colorType = COLOR_TYPE_TRUECOLOR_ALPHA;
+		}
+
+		out.write(SIGNATURE);
+		ChunkWriter chunks = new ChunkWriter(out);
+		byte[] header = new byte[13];
+		putInt(header, 0, pixels.width);
+		putInt(header, 4, pixels.height);
+		header[8] = 8; // bit depth
+		header[9] = (byte) colorType;
+		chunks.write("IHDR", header, header.length);
+		if (colors != null) {
+			writePalette(chunks, colors);
+		}
+
+		RowFilter rows = new RowFilter(pixels, colorType, colors, filter);
+		IdatOutputStream idat = new IdatOutputStream(chunks);
+		long rawSize = (long) pixels.height * rows.getFilteredLength();
+		ParallelDeflater parallel = ParallelDeflater.getInstance();
+		if (rawSize < Integer.MAX_VALUE && parallel.isParallel(rawSize)) {
+			// as large as the image, reused like it
+			PngBufferPool pool = PngBufferPool.getInstance();
+			byte[] raw = pool.acquireArray((int) rawSize);
+			try {
+				for (int y = 0; y < pixels.height; y++) {
+					System.arraycopy(rows.filter(y), 0, raw,
+							y * rows.getFilteredLength(),
+							rows.getFilteredLength());
+				}
+				parallel.zlib(raw, 0, (int) rawSize, compressionLevel, idat);
+			} finally {
+				pool.releaseArray(raw);
+			}
+		} else {
+			deflate(rows, idat);
+		}
+		idat.flush();
+		chunks.write("IEND", new byte[0], 0);
+	}
+
+	/**
+	 * Filters and compresses the rows one by one on the calling thread.
+	 */
+	private void deflate(RowFilter rows, OutputStream out) throws IOException {
+		int height = rows.pixels.height;
+		Deflater deflater = new Deflater(compressionLevel);
+		try {
+			byte[] buffer = new byte[IDAT_SIZE];
+			for (int y = 0; y <= height; y++) {
+				if (y < height) {
+					deflater.setInput(rows.filter(y), 0,
+							rows.getFilteredLength());
+				} else {
+					deflater.finish();
+				}
+				while (y < height ? !deflater.needsInput() : !deflater
+						.finished()) {
+					out.write(buffer, 0, deflater.deflate(buffer));
+				}
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writePalette(ChunkWriter chunks, int[] colors)
+			throws IOException {
+		byte[] plte = new byte[colors.length * 3];
+		byte[] trns = new byte[colors.length];
+		int trnsLength = 0;
+		for (int i = 0; i < colors.length; i++) {
+			int argb = colors[i];
+			plte[i * 3] = (byte) (argb >> 16);
+			plte[i * 3 + 1] = (byte) (argb >> 8);
+			plte[i * 3 + 2] = (byte) argb;
+			trns[i] = (byte) (argb >>> 24);
+			if (argb >>> 24 != 0xff) {
+				trnsLength = i + 1;
+			}
+		}
+		chunks.write("PLTE", plte, plte.length);
+		if (trnsLength > 0) {
+			chunks.write("tRNS", trns, trnsLength);
+		}
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PngEncoder)) {
+			return false;
+		}
+		PngEncoder other = (PngEncoder) obj;
+		return compressionLevel == other.compressionLevel
+				&& filter == other.filter && palette == other.palette;
+	}
+
+	@Override
+	public int hashCode() {
+		return (compressionLevel * 31 + filter.hashCode()) * 31
+				+ (palette ? 1 : 0);
+	}
+
+	/**
+	 * @return the settings affecting the output, e.g. "6:NONE:palette"
+	 */
+	@Override
+	public String toString() {
+		return compressionLevel + ":" + filter + (palette ? ":palette" : "");
+	}
+
+	/**
+	 * Read access to the ARGB pixels of an image, directly from the data
+	 * buffer for the integer packed images charts are drawn into.
+	 */
+	static final class Pixels {
+
+		final int width;
+		final int height;
+		private final BufferedImage image;
+		private final int[] data;
+		private final int offset;
+		private final int stride;
+		private final boolean hasAlpha;
+
+		Pixels(BufferedImage image) {
+			this.image = image;
+			width = image.getWidth();
+			height = image.getHeight();
+			int type = image.getType();
+			if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+					&& image.getRaster().getDataBuffer() instanceof DataBufferInt
+					&& image.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+				DataBufferInt buffer = (DataBufferInt) image.getRaster()
+						.getDataBuffer();
+				SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) image
+						.getSampleModel();
+				data = buffer.getData();
+				stride = model.getScanlineStride();
+				offset = buffer.getOffset()
+						- image.getRaster().getSampleModelTranslateY()
+						* stride
+						- image.getRaster().getSampleModelTranslateX();
+			} else {
+				data = null;
+				stride = 0;
+				offset = 0;
+			}
+			hasAlpha = type != BufferedImage.TYPE_INT_RGB
+					&& image.getColorModel().hasAlpha();
+		}
+
+		/**
+		 * Copies the ARGB pixels of a row to the given array.
+		 */
+		void row(int y, int[] row) {
+			if (data != null) {
+				System.arraycopy(data, offset + y * stride, row, 0, width);
+				if (!hasAlpha) {
+					for (int x = 0; x < width; x++) {
+						row[x] |= 0xff000000;
+					}
+				}
+			} else {
+				image.getRGB(0, y, width, 1, row, 0, width);
+			}
+		}
+
+		boolean isOpaque() {
+			if (!hasAlpha) {
+				return true;
+			}
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				row(y, row);
+				for (int x = 0; x < width; x++) {
+					if (row[x] >>> 24 != 0xff) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the distinct colors of the image, transparent ones first,
+		 *         or null if there are more than 256
+		 */
+		int[] findPalette() {
+			ColorIndex index = new ColorIndex();
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				row(y, row);
+				int previous = ~row[0];
+				for (int x = 0; x < width; x++) {
+					int argb = normalize(row[x]);
+					if (argb != previous) {
+						if (!index.add(argb)) {
+							return null;
+						}
+						previous = argb;
+					}
+				}
+			}
+			int[] colors = index.colors();
+			// transparent first, keeps the tRNS chunk short
+			int[] sorted = new int[colors.length];
+			int n = 0;
+			for (int argb : colors) {
+				if (argb >>> 24 != 0xff) {
+					sorted[n++] = argb;
+				}
+			}
+			for (int argb : colors) {
+				if (argb >>> 24 == 0xff) {
+					sorted[n++] = argb;
+				}
+			}
+			return sorted;
+		}
+	}
+
+	/**
+	 * All fully transparent pixels are written the same.
+	 */
+	static int normalize(int argb) {
+		return argb >>> 24 == 0 ? 0 : argb;
+	}
+
+	/**
+	 * An open addressing hash table from colors to palette indexes, holding
+	 * at most 256 colors.
+	 */
+	static final class ColorIndex {
+
+		private static final int SLOTS = 1024;
+		private final int[] keys = new int[SLOTS];
+		private final short[] values = new short[SLOTS];
+		private final boolean[] used = new boolean[SLOTS];
+		private int size;
+
+		/**
+		 * @return false if the color is new and the table is full
+		 */
+		boolean add(int argb) {
+			int slot = slot(argb);
+			if (used[slot]) {
+				return true;
+			}
+			if (size == 256) {
+				return false;
+			}
+			used[slot] = true;
+			keys[slot] = argb;
+			values[slot] = (short) size++;
+			return true;
+		}
+
+		/**
+		 * @return the index of a color that has been added
+		 */
+		int indexOf(int argb) {
+			return values[slot(argb)];
+		}
+
+		void reindex(int[] colors) {
+			for (int i = 0; i < colors.length; i++) {
+				values[slot(colors[i])] = (short) i;
+			}
+		}
+
+		int[] colors() {
+			int[] colors = new int[size];
+			for (int slot = 0; slot < SLOTS; slot++) {
+				if (used[slot]) {
+					colors[values[slot]] = keys[slot];
+				}
+			}
+			return colors;
+		}
+
+		private int slot(int argb) {
+			int slot = (argb * 0x9E3779B9) >>> 22;
+			while (used[slot] && keys[slot] != argb) {
+				slot = (slot + 1) & (SLOTS - 1);
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * Converts the pixels of one row to the bytes of the chosen color type
+	 * and filters them.
+	 */
+	static final class RowFilter {
+
+		private final Pixels pixels;
+		private final int colorType;
+		private final Filter filter;
+		private final ColorIndex palette;
+		private final int bytesPerPixel;
+		private final int[] argb;
+		private byte[] current;
+		private byte[] previous;
+		// filter type byte followed by the filtered row, one per filter
+		private final byte[][] filtered;
+		private int best;
+
+		RowFilter(Pixels pixels, int colorType, int[] colors, Filter filter) {
+			this.pixels = pixels;
+			this.colorType = colorType;
+			this.filter = filter;
+			if (colors != null) {
+				palette = new ColorIndex();
+				for (int color : colors) {
+					palette.add(color);
+				}
+				palette.reindex(colors);
+			} else {
+				palette = null;
+			}
+			bytesPerPixel = colorType == COLOR_TYPE_INDEXED ? 1
+					: colorType == COLOR_TYPE_TRUECOLOR ? 3 : 4;
+			int rowLength = pixels.width * bytesPerPixel;
+			argb = new int[pixels.width];
+			current = new byte[rowLength];
+			previous = new byte[rowLength];
+			filtered = new byte[5][rowLength + 1];
+			for (int i = 0; i < filtered.length; i++) {
+				filtered[i][0] = (byte) i;
+			}
+		}
+
+		/**
+		 * @return the filtered row y, valid until the next call; rows must be
+		 *         filtered in order from the first one
+		 */
+		byte[] filter(int y) {
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+			if (y == 0) {
+				Arrays.fill(previous, (byte) 0);
+			}
+			convert(y);
+			switch (filter) {
+			case NONE:
+				best = 0;
+				System.arraycopy(current, 0, filtered[0], 1, current.length);
+				break;
+			case SUB:
+				best = 1;
+				sub();
+				break;
+			case UP:
+				best = 2;
+				up();
+				break;
+			case PAETH:
+				best = 4;
+				paeth();
+				break;
+			default:
+				adaptive();
+				break;
+			}
+			return filtered[best];
+		}
+
+		int getFilteredLength() {
+			return current.length + 1;
+		}
+
+		private void convert(int y) {
+			pixels.row(y, argb);
+			byte[] row = current;
+			int width = pixels.width;
+			switch (colorType) {
+			case COLOR_TYPE_INDEXED:
+				int lastColor = ~argb[0];
+				int lastIndex = 0;
+				for (int x = 0; x < width; x++) {
+					int color = normalize(argb[x]);
+					if (color != lastColor) {
+						lastIndex = palette.indexOf(color);
+						lastColor = color;
+					}
+					row[x] = (byte) lastIndex;
+				}
+				break;
+			case COLOR_TYPE_TRUECOLOR:
+				for (int x = 0, i = 0; x < width; x++, i += 3) {
+					int c = argb[x];
+					row[i] = (byte) (c >> 16);
+					row[i + 1] = (byte) (c >> 8);
+					row[i + 2] = (byte) c;
+				}
+				break;
+			default:
+				for (int x = 0, i = 0; x < width; x++, i += 4) {
+					int c = argb[x];
+					row[i] = (byte) (c >> 16);
+					row[i + 1] = (byte) (c >> 8);
+					row[i + 2] = (byte) c;
+					row[i + 3] = (byte) (c >>> 24);
+				}
+				break;
+			}
+		}
+
+		private void sub() {
+			byte[] out = filtered[1];
+			int bpp = bytesPerPixel;
+			for (int i = 0; i < current.length; i++) {
+				int left = i >= bpp ? current[i - bpp] : 0;
+				out[i + 1] = (byte) (current[i] - left);
+			}
+		}
+
+		private void up() {
+			byte[] out = filtered[2];
+			for (int i = 0; i < current.length; i++) {
+				out[i + 1] = (byte) (current[i] - previous[i]);
+			}
+		}
+
+		private void average() {
+			byte[] out = filtered[3];
+			int bpp = bytesPerPixel;
+			for (int i = 0; i < current.length; i++) {
+				int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+				out[i + 1] = (byte) (current[i] - ((left + (previous[i] & 0xff)) >> 1));
+			}
+		}
+
+		private void paeth() {
+			byte[] out = filtered[4];
+			int bpp = bytesPerPixel;
+			for (int i = 0; i < current.length; i++) {
+				int a = i >= bpp ? current[i - bpp] & 0xff : 0;
+				int b = previous[i] & 0xff;
+				int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+				out[i + 1] = (byte) (current[i] - predictor);
+			}
+		}
+
+		/**
+		 * Picks the filter with the smallest sum of absolute differences,
+		 * the heuristic recommended by the PNG specification.
+		 */
+		private void adaptive() {
+			System.arraycopy(current, 0, filtered[0], 1, current.length);
+			sub();
+			up();
+			average();
+			paeth();
+			long bestSum = Long.MAX_VALUE;
+			for (int f = 0; f < filtered.length; f++) {
+				long sum = 0;
+				byte[] out = filtered[f];
+				for (int i = 1; i < out.length && sum < bestSum; i++) {
+					sum += Math.abs(out[i]);
+				}
+				if (sum < bestSum) {
+					bestSum = sum;
+					best = f;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Splits the compressed image data into IDAT chunks.
+	 */
+	private static final class IdatOutputStream extends OutputStream {
+
+		private final ChunkWriter chunks;
+		private final byte[] buffer = new byte[IDAT_SIZE];
+		private int length;
+
+		IdatOutputStream(ChunkWriter chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (length == buffer.length) {
+				flush();
+			}
+			buffer[length++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (length == buffer.length) {
+					flush();
+				}
+				int n = Math.min(len, buffer.length - length);
+				System.arraycopy(b, off, buffer, length, n);
+				length += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Writes the buffered data as a chunk.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (length > 0) {
+				chunks.write("IDAT", buffer, length);
+				length = 0;
+			}
+		}
+	}
+
+	/**
+	 * Writes length, type, data and checksum of chunks.
+	 */
+	private static final class ChunkWriter {
+
+		private final OutputStream out;
+		private final CRC32 crc = new CRC32();
+		private final byte[] header = new byte[8];
+
+		ChunkWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		void write(String type, byte[] data, int length) throws IOException {
+			putInt(header, 0, length);
+			for (int i = 0; i < 4; i++) {
+				header[4 + i] = (byte) type.charAt(i);
+			}
+			crc.reset();
+			crc.update(header, 4, 4);
+			crc.update(data, 0, length);
+			out.write(header);
+			out.write(data, 0, length);
+			byte[] checksum = new byte[4];
+			putInt(checksum, 0, (int) crc.getValue());
+			out.write(checksum);
+		}
+	}
+}
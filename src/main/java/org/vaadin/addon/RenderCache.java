@@ -0,0 +1,178 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of rendered charts, bounded both by the number
+ * of entries and by the total size of the cached payloads.
+ */
+class RenderCache {
+
+	private final int maxEntries;
+	private volatile long maxBytes;
+
+	private final LinkedHashMap<RenderKey, RenderedChart> entries = new LinkedHashMap<RenderKey, RenderedChart>(
+			16, 0.75f, true);
+	private long bytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxEntries
+	 *            the number of payloads kept before the least recently used
+	 *            one is evicted
+	 */
+	RenderCache(int maxEntries) {
+		this(maxEntries, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the number of payloads kept before the least recently used
+	 *            one is evicted
+	 * @param maxBytes
+	 *            the total payload size kept before the least recently used
+	 *            entries are evicted
+	 */
+	RenderCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the cached payload for the key or null if there is none
+	 */
+	public synchronized RenderedChart get(RenderKey key) {
+		RenderedChart rendered = entries.get(key);
+		if (rendered != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return rendered;
+	}
+
+	/**
+	 * Caches a payload, evicting the least recently used ones if the cache
+	 * grows too large. Payloads larger than the whole cache are not stored.
+	 */
+	public synchronized void put(RenderKey key, RenderedChart rendered) {
+		if (rendered.getMemorySize() > maxBytes) {
+			return;
+		}
+		RenderedChart previous = entries.put(key, rendered);
+		if (previous != null) {
+			bytes -= previous.getMemorySize();
+		} else {
+			added(key);
+		}
+		bytes += rendered.getMemorySize();
+		evict();
+	}
+
+	/**
+	 * Removes all payloads rendered from the given chart state.
+	 */
+	public synchronized void invalidate(Object chartState) {
+		Iterator<Map.Entry<RenderKey, RenderedChart>> it = entries.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<RenderKey, RenderedChart> entry = it.next();
+			Object state = entry.getKey().getChartState();
+			if (state == null ? chartState == null : state.equals(chartState)) {
+				bytes -= entry.getValue().getMemorySize();
+				it.remove();
+				removed(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached payloads.
+	 */
+	public synchronized void clear() {
+		for (RenderKey key : entries.keySet()) {
+			removed(key);
+		}
+		entries.clear();
+		bytes = 0;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<RenderKey, RenderedChart>> it = entries.entrySet()
+				.iterator();
+		while (it.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+			Map.Entry<RenderKey, RenderedChart> entry = it.next();
+			bytes -= entry.getValue().getMemorySize();
+			it.remove();
+			evictions++;
+			removed(entry.getKey());
+		}
+	}
+
+	/**
+	 * Called with the cache locked when a payload for a new key is stored.
+	 */
+	void added(RenderKey key) {
+	}
+
+	/**
+	 * Called with the cache locked when the payload of the key is removed,
+	 * evicted or invalidated.
+	 */
+	void removed(RenderKey key) {
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the total size of the cached payloads in bytes
+	 */
+	public synchronized long getSizeInBytes() {
+		return bytes;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+}
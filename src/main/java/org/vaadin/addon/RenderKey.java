@@ -0,0 +1,233 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.vaadin.addon.JFreeChartWrapper.RenderingMode;
+import org.vaadin.addon.JFreeChartWrapper.SvgBackend;
+
+/**
+ * Identifies one rendering of a chart: the state of the chart plus every
+ * parameter that affects the produced bytes. Two equal keys always produce
+ * equal payloads, so a key can be used to look up a previously rendered chart.
+ */
+@SuppressWarnings("serial")
+final class RenderKey implements Serializable {
+
+	private final Object chartState;
+	private final int width;
+	private final int height;
+	private final RenderingMode mode;
+	private final SvgBackend svgBackend;
+	private final boolean gzip;
+	private final String aspectRatio;
+	private final boolean decimated;
+	private final PngEncoder pngEncoder;
+	private final SvgMinifier svgMinifier;
+	private final float pixelRatio;
+
+	/**
+	 * @param chartState
+	 *            identifies the content of the chart, e.g. a version number
+	 *            that changes whenever the chart changes
+	 * @param pngEncoder
+	 *            the encoder writing the chart in PNG mode, null otherwise
+	 * @param svgMinifier
+	 *            the minifier of the chart in SVG mode, null if not minified
+	 * @param pixelRatio
+	 *            the number of image pixels per CSS pixel of the chart in PNG
+	 *            mode, 1 otherwise
+	 */
+	RenderKey(Object chartState, int width, int height, RenderingMode mode,
+			SvgBackend svgBackend, boolean gzip, String aspectRatio,
+			boolean decimated, PngEncoder pngEncoder, SvgMinifier svgMinifier,
+			float pixelRatio) {
+		this.chartState = chartState;
+		this.width = width;
+		this.height = height;
+		this.mode = mode;
+		this.svgBackend = svgBackend;
+		this.gzip = gzip;
+		this.aspectRatio = aspectRatio;
+		this.decimated = decimated;
+		this.pngEncoder = pngEncoder;
+		this.svgMinifier = svgMinifier;
+		this.pixelRatio = pixelRatio;
+	}
+
+	public Object getChartState() {
+		return chartState;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public RenderingMode getMode() {
+		return mode;
+	}
+
+	public SvgBackend getSvgBackend() {
+		return svgBackend;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	public String getAspectRatio() {
+		return aspectRatio;
+	}
+
+	public boolean isDecimated() {
+		return decimated;
+	}
+
+	public PngEncoder getPngEncoder() {
+		return pngEncoder;
+	}
+
+	public SvgMinifier getSvgMinifier() {
+		return svgMinifier;
+	}
+
+	public float getPixelRatio() {
+		return pixelRatio;
+	}
+
+	/**
+	 * @return the width of the image in pixels, the width of the chart
+	 *         multiplied by the pixel ratio
+	 */
+	public int getImageWidth() {
+		return Math.round(width * pixelRatio);
+	}
+
+	/**
+	 * @return the height of the image in pixels, the height of the chart
+	 *         multiplied by the pixel ratio
+	 */
+	public int getImageHeight() {
+		return Math.round(height * pixelRatio);
+	}
+
+	/**
+	 * @return a string identifying the payload rendered for this key, the
+	 *         entity tag without quotes
+	 */
+	public String getVersion() {
+		String etag = getETag();
+		return etag.substring(1, etag.length() - 1);
+	}
+
+	/**
+	 * @param gzipEncoded
+	 *            true for the gzip content encoded variant of the payload
+	 * @return a strong HTTP entity tag (including the quotes) identifying the
+	 *         payload rendered for this key
+	 */
+	public String getETag(boolean gzipEncoded) {
+		String etag = getETag();
+		return gzipEncoded ? etag.substring(0, etag.length() - 1) + "-gzip\""
+				: etag;
+	}
+
+	/**
+	 * @return a strong HTTP entity tag (including the quotes) identifying the
+	 *         payload rendered for this key
+	 */
+	public String getETag() {
+		return '"' + hash(toString()) + '"';
+	}
+
+	/**
+	 * @return the SHA-1 hash of the string as hexadecimal digits
+	 */
+	static String hash(String s) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RenderKey)) {
+			return false;
+		}
+		RenderKey other = (RenderKey) obj;
+		return width == other.width && height == other.height
+				&& mode == other.mode && svgBackend == other.svgBackend
+				&& gzip == other.gzip && decimated == other.decimated
+				&& pixelRatio == other.pixelRatio
+				&& equal(chartState, other.chartState)
+				&& equal(aspectRatio, other.aspectRatio)
+				&& equal(pngEncoder, other.pngEncoder)
+				&& equal(svgMinifier, other.svgMinifier);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = chartState == null ? 0 : chartState.hashCode();
+		result = 31 * result + width;
+		result = 31 * result + height;
+		result = 31 * result + (mode == null ? 0 : mode.hashCode());
+		result = 31 * result
+				+ (svgBackend == null ? 0 : svgBackend.hashCode());
+		result = 31 * result + (gzip ? 1 : 0);
+		result = 31 * result + (decimated ? 1 : 0);
+		result = 31 * result + Float.floatToIntBits(pixelRatio);
+		result = 31 * result
+				+ (aspectRatio == null ? 0 : aspectRatio.hashCode());
+		result = 31 * result
+				+ (pngEncoder == null ? 0 : pngEncoder.hashCode());
+		result = 31 * result
+				+ (svgMinifier == null ? 0 : svgMinifier.hashCode());
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return chartState + ":" + width + "x" + height + ":" + mode + ":"
+				+ svgBackend + (gzip ? ":gzip" : "") + ":" + aspectRatio
+				+ (decimated ? ":decimated" : "")
+				+ (pngEncoder != null ? ":png:" + pngEncoder : "")
+				+ (svgMinifier != null ? ":min:" + svgMinifier : "")
+				+ (pixelRatio != 1 ? ":" + pixelRatio + "x" : "");
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Serializable;
+
+import org.vaadin.addon.JFreeChartWrapper.RenderingMode;
+
+/**
+ * The result of drawing a chart once: the encoded bytes together with the
+ * information needed to serve them (MIME type and file extension) and,
+ * optionally, a gzip compressed copy of the bytes.
+ *
+ * A single instance is shared by everything that needs to know about one
+ * download, so the chart does not have to be drawn again just to find out
+ * e.g. the size of the payload.
+ */
+@SuppressWarnings("serial")
+final class RenderedChart implements Serializable {
+
+	private final byte[] bytes;
+	private final byte[] gzipBytes;
+	private final RenderingMode mode;
+
+	/**
+	 * @param bytes
+	 *            the rendered chart
+	 * @param gzipBytes
+	 *            the same bytes gzip compressed or null if there is no
+	 *            compressed variant
+	 * @param mode
+	 *            the format of the bytes
+	 */
+	RenderedChart(byte[] bytes, byte[] gzipBytes, RenderingMode mode) {
+		this.bytes = bytes;
+		this.gzipBytes = gzipBytes;
+		this.mode = mode;
+	}
+
+	/**
+	 * @return a new stream reading the rendered bytes
+	 */
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(bytes);
+	}
+
+	/**
+	 * @return the number of bytes in the payload
+	 */
+	public int getSize() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return true if a gzip compressed copy of the payload is available
+	 */
+	public boolean hasGzipVariant() {
+		return gzipBytes != null;
+	}
+
+	/**
+	 * @return a new stream reading the gzip compressed bytes, to be served
+	 *         with a matching Content-Encoding header
+	 */
+	public InputStream getGzipInputStream() {
+		return new ByteArrayInputStream(gzipBytes);
+	}
+
+	/**
+	 * @return the number of bytes in the compressed payload
+	 */
+	public int getGzipSize() {
+		return gzipBytes.length;
+	}
+
+	/**
+	 * @return the number of bytes held by this object, both variants
+	 *         included
+	 */
+	public int getMemorySize() {
+		return bytes.length + (gzipBytes != null ? gzipBytes.length : 0);
+	}
+
+	public RenderingMode getMode() {
+		return mode;
+	}
+
+	public String getMimeType() {
+		return getMimeType(mode);
+	}
+
+	public String getFileExtension() {
+		return getFileExtension(mode);
+	}
+
+	static String getMimeType(RenderingMode mode) {
+		if (mode == RenderingMode.PNG) {
+			return "image/png";
+		} else {
+			return "image/svg+xml";
+		}
+	}
+
+	static String getFileExtension(RenderingMode mode) {
+		if (mode == RenderingMode.PNG) {
+			return ".png";
+		} else {
+			return ".svg";
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vaadin.server.ServiceDestroyEvent;
+import com.vaadin.server.ServiceDestroyListener;
+import com.vaadin.server.VaadinService;
+
+/**
+ * Application wide cache of rendered charts, shared by all sessions and UIs of
+ * one {@link VaadinService}.
+ * <p>
+ * Wrappers opt in with {@link JFreeChartWrapper#setSharedCacheKey(String)}.
+ * All wrappers that declare the same key and render with the same size, mode
+ * and settings are served the same bytes, so a chart shown to many users is
+ * drawn only once. The key must identify the content of the chart: when the
+ * data behind it changes, either use a new key (e.g. include the time of the
+ * data refresh) or call {@link #invalidate(String)}. Changes to the chart
+ * of a single wrapper do not invalidate the key, as other sessions may still
+ * show the previous content under it.
+ * <p>
+ * Every invalidation starts a new generation of the key, which is part of the
+ * entity tag and resource name of the charts rendered for it, so browsers
+ * load the chart again instead of validating the stale one. Generations are
+ * numbered across all keys and remembered only for keys with cached charts,
+ * so keys that are used once do not accumulate.
+ * <p>
+ * The cache is bounded by the total size of the cached payloads and evicts
+ * the least recently used charts first.
+ */
+public class SharedChartCache {
+
+	/**
+	 * Default maximum size of the cached payloads, 32 MB.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private static final Map<VaadinService, SharedChartCache> caches = new ConcurrentHashMap<VaadinService, SharedChartCache>();
+
+	private final RenderCache cache = new RenderCache(Integer.MAX_VALUE,
+			DEFAULT_MAX_BYTES) {
+
+		@Override
+		void added(RenderKey key) {
+			String chartKey = ((ChartState) key.getChartState()).chartKey;
+			generations.get(chartKey).renders++;
+		}
+
+		@Override
+		void removed(RenderKey key) {
+			String chartKey = ((ChartState) key.getChartState()).chartKey;
+			if (--generations.get(chartKey).renders == 0) {
+				generations.remove(chartKey);
+			}
+		}
+	};
+	// the generation of the keys with cached charts, guarded by this cache;
+	// the other keys are at the current generation
+	private final Map<String, Generation> generations = new HashMap<String, Generation>();
+	// incremented by every invalidation
+	private long generation;
+
+	SharedChartCache() {
+	}
+
+	/**
+	 * Gets the cache of the given service, creating it on first use. The cache
+	 * is discarded when the service is destroyed.
+	 */
+	public static SharedChartCache get(final VaadinService service) {
+		SharedChartCache cache = caches.get(service);
+		if (cache == null) {
+			synchronized (caches) {
+				cache = caches.get(service);
+				if (cache == null) {
+					cache = new SharedChartCache();
+					caches.put(service, cache);
+					service.addServiceDestroyListener(new ServiceDestroyListener() {
+
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						public void serviceDestroy(ServiceDestroyEvent event) {
+							caches.remove(service);
+						}
+					});
+				}
+			}
+		}
+		return cache;
+	}
+
+	RenderedChart get(RenderKey key) {
+		return cache.get(key);
+	}
+
+	synchronized void put(RenderKey key, RenderedChart rendered) {
+		ChartState state = (ChartState) key.getChartState();
+		Generation current = generations.get(state.chartKey);
+		if (current == null) {
+			if (state.generation != generation) {
+				// rendered before an invalidation, possibly of this key
+				return;
+			}
+			current = new Generation(generation);
+			generations.put(state.chartKey, current);
+		} else if (state.generation != current.generation) {
+			return;
+		}
+		cache.put(key, rendered);
+		if (current.renders == 0) {
+			// too large to be cached
+			generations.remove(state.chartKey);
+		}
+	}
+
+	/**
+	 * Removes all rendered versions of the chart with the given key, e.g.
+	 * after the data behind the chart has been refreshed.
+	 */
+	public synchronized void invalidate(String chartKey) {
+		Generation stale = generations.get(chartKey);
+		generation++;
+		if (stale != null) {
+			cache.invalidate(new ChartState(chartKey, stale.generation));
+		}
+	}
+
+	/**
+	 * Removes all cached charts. Charts rendered before are not loaded again,
+	 * as their content has not changed.
+	 */
+	public synchronized void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Sets the maximum total size of the cached payloads. Least recently used
+	 * charts are evicted when the limit is exceeded.
+	 */
+	public synchronized void setMaxSizeInBytes(long maxBytes) {
+		cache.setMaxBytes(maxBytes);
+	}
+
+	public long getMaxSizeInBytes() {
+		return cache.getMaxBytes();
+	}
+
+	/**
+	 * @return the total size of the cached payloads in bytes
+	 */
+	public long getSizeInBytes() {
+		return cache.getSizeInBytes();
+	}
+
+	/**
+	 * @return the number of cached payloads
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * @return how many requests were served from the cache
+	 */
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	/**
+	 * @return how many requests had to render the chart
+	 */
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	/**
+	 * @return how many payloads have been evicted to keep the cache in its
+	 *         size limit
+	 */
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	/**
+	 * @return the number of chart keys whose generation is remembered
+	 */
+	synchronized int getGenerationCount() {
+		return generations.size();
+	}
+
+	/**
+	 * @return the state of the chart with the given key for render keys, the
+	 *         key and its current generation
+	 */
+	synchronized Object chartState(String chartKey) {
+		Generation current = generations.get(chartKey);
+		return new ChartState(chartKey, current != null ? current.generation
+				: generation);
+	}
+
+	/**
+	 * The generation of a key and the number of its cached charts.
+	 */
+	private static final class Generation {
+
+		final long generation;
+		int renders;
+
+		Generation(long generation) {
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Chart state of render keys of shared charts.
+	 */
+	private static final class ChartState {
+
+		final String chartKey;
+		final long generation;
+
+		ChartState(String chartKey, long generation) {
+			this.chartKey = chartKey;
+			this.generation = generation;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ChartState)) {
+				return false;
+			}
+			ChartState other = (ChartState) obj;
+			return generation == other.generation
+					&& chartKey.equals(other.chartKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return chartKey.hashCode() * 31
+					+ (int) (generation ^ (generation >>> 32));
+		}
+
+		@Override
+		public String toString() {
+			return "shared:" + chartKey + ":" + generation;
+		}
+	}
+}
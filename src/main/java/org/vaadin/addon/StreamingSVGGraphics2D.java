@@ -0,0 +1,1184 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.GradientPaint;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.LinearGradientPaint;
+import java.awt.MultipleGradientPaint;
+import java.awt.Paint;
+import java.awt.RadialGradientPaint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.AttributedCharacterIterator;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.batik.ext.awt.g2d.AbstractGraphics2D;
+import org.apache.batik.ext.awt.g2d.GraphicContext;
+
+/**
+ * A {@link Graphics2D} that writes SVG elements to a {@link Writer} as they are
+ * drawn, without building a DOM tree first.
+ * <p>
+ * Shapes are written in device coordinates (the current transform is applied
+ * to the path data), so most elements need no transform attribute. Only text
+ * and images that are drawn with a non-translating transform get one.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * StreamingSVGGraphics2D g2 = new StreamingSVGGraphics2D(writer);
+ * g2.startDocument(width, height, &quot;none&quot;);
+ * chart.draw(g2, new Rectangle(width, height));
+ * g2.endDocument();
+ * </pre>
+ *
+ * As {@link Graphics2D} methods cannot throw {@link IOException}, the first
+ * write error is stored and rethrown from {@link #endDocument()} or
+ * {@link #checkError()}; nothing is written after it.
+ * <p>
+ * With a {@link SvgMinifier}, coordinates and path data are written in the
+ * compact form of the minifier and adjacent lines drawn with the same opaque
+ * stroke are written as one path. Equal gradients and clip paths are defined
+ * once, and with {@link SvgMinifier#isStyleClasses() style classes} the style
+ * sheet is written at the end of the document. With
+ * {@link SvgMinifier#isMarkers() markers}, a small shape drawn in a solid color
+ * is defined as a symbol the second time it is drawn, and it and every later
+ * copy are written as uses of the symbol.
+ */
+public class StreamingSVGGraphics2D extends AbstractGraphics2D {
+
+	private static final String SVG_NS = "http://www.w3.org/2000/svg";
+	private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	/*
+	 * Used to compute font metrics, like in Batik's SVGGraphics2D.
+	 */
+	private static final Graphics2D fmg;
+	static {
+		BufferedImage bi = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+		fmg = bi.createGraphics();
+	}
+
+	/**
+	 * State shared by a graphics and all graphics created from it.
+	 */
+	private static final class Output {
+
+		final Writer out;
+		final SvgMinifier minifier;
+		final StringBuilder buf = new StringBuilder(256);
+		// start of a path element and its path data, written when the next
+		// element is not a line of the same style
+		String pendingStroke;
+		StringBuilder pendingPath;
+		IOException error;
+		int nextId;
+		String idPrefix = "";
+		String lastClipPath;
+		String lastClipId;
+		// ids of the clip paths and gradients written, by their content,
+		// when minifying
+		final Map<String, String> clipPaths;
+		final Map<String, String> gradients;
+		// style classes by their declarations and the declarations of the
+		// element in the buffer, when writing style classes
+		final Map<String, String> styles;
+		final StringBuilder style;
+		// ids of the symbols of markers by their path data, null for shapes
+		// drawn once, when writing markers
+		final Map<String, String> markers;
+		// the clip path of the open group of markers
+		String markerClip;
+
+		Output(Writer out, SvgMinifier minifier) {
+			this.out = out;
+			this.minifier = minifier;
+			clipPaths = minifier != null ? new HashMap<String, String>() : null;
+			gradients = minifier != null ? new HashMap<String, String>() : null;
+			styles = minifier != null && minifier.isStyleClasses()
+					? new LinkedHashMap<String, String>() : null;
+			style = new StringBuilder();
+			markers = minifier != null && minifier.isMarkers()
+					? new HashMap<String, String>() : null;
+		}
+
+		/**
+		 * Forgets the definitions written, e.g. at the end of a symbol.
+		 */
+		void clearDefinitions() {
+			lastClipPath = null;
+			if (minifier != null) {
+				clipPaths.clear();
+				gradients.clear();
+			}
+			if (markers != null) {
+				markers.clear();
+			}
+		}
+
+		/**
+		 * Writes a stroke, or adds it to the pending one if the start of the
+		 * element in the buffer equals that of the pending one.
+		 */
+		void stroke(StringBuilder d) {
+			endMarkers();
+			if (pendingStroke != null && pendingStroke.contentEquals(buf)) {
+				pendingPath.append(d);
+			} else {
+				writePending();
+				pendingStroke = buf.toString();
+				pendingPath = d;
+			}
+			buf.setLength(0);
+		}
+
+		private void writePending() {
+			if (pendingStroke != null) {
+				String start = pendingStroke;
+				StringBuilder d = pendingPath;
+				pendingStroke = null;
+				pendingPath = null;
+				if (error == null) {
+					try {
+						out.append(start).append(" d=\"").append(d)
+								.append("\"/>\n");
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+			}
+		}
+
+		void flush() {
+			writePending();
+			endMarkers();
+			writeBuffer();
+		}
+
+		/**
+		 * Writes the marker in the buffer, leaving the group of markers
+		 * open.
+		 */
+		void flushMarker() {
+			writePending();
+			writeBuffer();
+		}
+
+		private void endMarkers() {
+			if (markerClip != null) {
+				markerClip = null;
+				if (error == null) {
+					try {
+						out.append("</g>\n");
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+			}
+		}
+
+		private void writeBuffer() {
+			if (error == null && buf.length() > 0) {
+				try {
+					out.append(buf);
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			buf.setLength(0);
+		}
+	}
+
+	private final Output output;
+
+	/**
+	 * @param out
+	 *            the writer the SVG elements are written to
+	 */
+	public StreamingSVGGraphics2D(Writer out) {
+		this(out, null);
+	}
+
+	/**
+	 * @param out
+	 *            the writer the SVG elements are written to
+	 * @param minifier
+	 *            the minifier for coordinates and path data, or null to write
+	 *            them with four decimals like Batik
+	 */
+	public StreamingSVGGraphics2D(Writer out, SvgMinifier minifier) {
+		super(false);
+		output = new Output(out, minifier);
+		gc = new GraphicContext();
+	}
+
+	private StreamingSVGGraphics2D(StreamingSVGGraphics2D g) {
+		super(g);
+		output = g.output;
+	}
+
+	/**
+	 * Writes the XML declaration and the opening svg element.
+	 *
+	 * @param width
+	 *            the width of the view box
+	 * @param height
+	 *            the height of the view box
+	 * @param preserveAspectRatio
+	 *            value of the preserveAspectRatio attribute
+	 */
+	public void startDocument(int width, int height, String preserveAspectRatio) {
+		startDocument(width, height, preserveAspectRatio, null);
+	}
+
+	/**
+	 * Writes the XML declaration and the opening svg element.
+	 *
+	 * @param width
+	 *            the width of the view box
+	 * @param height
+	 *            the height of the view box
+	 * @param preserveAspectRatio
+	 *            value of the preserveAspectRatio attribute
+	 * @param version
+	 *            value of a data-version attribute identifying the content
+	 *            of the document, or null to leave it out
+	 */
+	public void startDocument(int width, int height,
+			String preserveAspectRatio, String version) {
+		StringBuilder b = output.buf;
+		b.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		b.append("<svg xmlns=\"").append(SVG_NS).append("\" xmlns:xlink=\"")
+				.append(XLINK_NS).append("\" viewBox=\"0 0 ").append(width)
+				.append(' ').append(height)
+				.append("\" style=\"width:100%;height:100%;\"");
+		if (preserveAspectRatio != null) {
+			b.append(" preserveAspectRatio=\"");
+			escape(b, preserveAspectRatio);
+			b.append('"');
+		}
+		if (version != null) {
+			b.append(" data-version=\"");
+			escape(b, version);
+			b.append('"');
+		}
+		b.append(">\n");
+		output.flush();
+	}
+
+	/**
+	 * Closes the svg element opened by
+	 * {@link #startDocument(int, int, String)} and flushes the writer.
+	 *
+	 * @throws IOException
+	 *             if writing any part of the document failed
+	 */
+	public void endDocument() throws IOException {
+		if (output.styles != null && !output.styles.isEmpty()) {
+			// the style sheet applies to the whole document wherever it is;
+			// the declarations are already escaped
+			output.buf.append("<style>")
+					.append(SvgMinifier.styleSheet(output.styles))
+					.append("</style>\n");
+		}
+		output.buf.append("</svg>\n");
+		output.flush();
+		checkError();
+		output.out.flush();
+	}
+
+	/**
+	 * Writes the opening element of a symbol, for documents showing several
+	 * charts. Draw the chart with a graphics {@link #create() created} from
+	 * this one and close the symbol with {@link #endSymbol()}. Ids of clip
+	 * paths and gradients written in the symbol start with the id of the
+	 * symbol, keeping them unique in the document.
+	 *
+	 * @param id
+	 *            the id of the symbol
+	 * @param width
+	 *            the width of the view box of the symbol
+	 * @param height
+	 *            the height of the view box of the symbol
+	 * @param preserveAspectRatio
+	 *            value of the preserveAspectRatio attribute
+	 */
+	public void startSymbol(String id, int width, int height,
+			String preserveAspectRatio) {
+		StringBuilder b = output.buf;
+		b.append("<symbol id=\"");
+		escape(b, id);
+		b.append("\" viewBox=\"0 0 ").append(width).append(' ').append(height)
+				.append('"');
+		if (preserveAspectRatio != null) {
+			b.append(" preserveAspectRatio=\"");
+			escape(b, preserveAspectRatio);
+			b.append('"');
+		}
+		b.append(">\n");
+		output.flush();
+		output.idPrefix = id + "-";
+		output.clearDefinitions();
+	}
+
+	/**
+	 * Closes the symbol opened by
+	 * {@link #startSymbol(String, int, int, String)}.
+	 *
+	 * @throws IOException
+	 *             if writing any part of the document failed
+	 */
+	public void endSymbol() throws IOException {
+		output.buf.append("</symbol>\n");
+		output.flush();
+		output.idPrefix = "";
+		output.clearDefinitions();
+		checkError();
+	}
+
+	/**
+	 * Writes a use element showing a symbol in the given area.
+	 */
+	public void use(String symbolId, int x, int y, int width, int height) {
+		StringBuilder b = output.buf;
+		b.append("<use xlink:href=\"#");
+		escape(b, symbolId);
+		b.append("\" x=\"").append(x).append("\" y=\"").append(y)
+				.append("\" width=\"").append(width).append("\" height=\"")
+				.append(height).append("\"/>\n");
+		output.flush();
+	}
+
+	/**
+	 * @throws IOException
+	 *             the first error that occurred while writing, if any
+	 */
+	public void checkError() throws IOException {
+		if (output.error != null) {
+			throw output.error;
+		}
+	}
+
+	@Override
+	public Graphics create() {
+		return new StreamingSVGGraphics2D(this);
+	}
+
+	@Override
+	public void dispose() {
+		// the output is owned by the creator of the first graphics
+	}
+
+	@Override
+	public GraphicsConfiguration getDeviceConfiguration() {
+		return fmg.getDeviceConfiguration();
+	}
+
+	@Override
+	public FontMetrics getFontMetrics(Font f) {
+		return fmg.getFontMetrics(f);
+	}
+
+	@Override
+	public void setXORMode(Color c1) {
+		// not supported
+	}
+
+	@Override
+	public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+		// not supported
+	}
+
+	@Override
+	public void draw(Shape s) {
+		Stroke stroke = gc.getStroke();
+		if (!(stroke instanceof BasicStroke)) {
+			fill(stroke.createStrokedShape(s));
+			return;
+		}
+		BasicStroke bs = (BasicStroke) stroke;
+		if (marker(s, bs)) {
+			return;
+		}
+		StringBuilder d = new StringBuilder();
+		path(d, s.getPathIterator(gc.getTransform()));
+		if (d.length() == 0) {
+			// nothing to draw
+			return;
+		}
+		StringBuilder b = output.buf;
+		Paint p = gc.getPaint();
+		String paint = paint(p, s);
+		b.append("<path");
+		strokeStyle(b, paint, bs);
+		clip(b);
+		styleClass(b);
+		SvgMinifier minifier = output.minifier;
+		float[] dash = bs.getDashArray();
+		if (minifier != null && minifier.isMergeStrokes()
+				&& (dash == null || dash.length == 0) && p instanceof Color
+				&& alpha(p) == 1) {
+			output.stroke(d);
+			return;
+		}
+		b.append(" d=\"").append(d).append("\"/>\n");
+		output.flush();
+	}
+
+	@Override
+	public void fill(Shape s) {
+		if (marker(s, null)) {
+			return;
+		}
+		PathIterator it = s.getPathIterator(gc.getTransform());
+		boolean evenOdd = it.getWindingRule() == PathIterator.WIND_EVEN_ODD;
+		StringBuilder d = new StringBuilder();
+		path(d, it);
+		if (d.length() == 0) {
+			// nothing to fill
+			return;
+		}
+		String paint = paint(gc.getPaint(), s);
+		StringBuilder b = output.buf;
+		b.append("<path");
+		fillStyle(b, paint, evenOdd);
+		clip(b);
+		styleClass(b);
+		b.append(" d=\"").append(d).append("\"/>\n");
+		output.flush();
+	}
+
+	/**
+	 * Writes a small shape that was drawn before at another position as a use
+	 * of a symbol, when writing markers. Shapes painted with a gradient are
+	 * not markers, as the gradient would move with the symbol.
+	 *
+	 * @param stroke
+	 *            the stroke to outline the shape with, or null to fill it
+	 * @return true if the shape was written
+	 */
+	private boolean marker(Shape s, BasicStroke stroke) {
+		Paint p = gc.getPaint();
+		if (output.markers == null || !(p instanceof Color)) {
+			return false;
+		}
+		PathIterator it = s.getPathIterator(gc.getTransform());
+		boolean evenOdd = it.getWindingRule() == PathIterator.WIND_EVEN_ODD;
+		double[] origin = new double[2];
+		String d = output.minifier.markerPath(it, origin);
+		if (d == null) {
+			return false;
+		}
+		if (!output.markers.containsKey(d)) {
+			// most shapes are drawn only once, a symbol would not pay off
+			output.markers.put(d, null);
+			return false;
+		}
+		StringBuilder b = output.buf;
+		String clip = clipId(b);
+		String id = output.markers.get(d);
+		if (id == null) {
+			id = output.idPrefix + "marker" + output.nextId++;
+			// the shape extends to all sides of its first point
+			b.append("<symbol id=\"").append(id)
+					.append("\" overflow=\"visible\"><path d=\"").append(d)
+					.append("\"/></symbol>\n");
+			output.markers.put(d, id);
+		}
+		// a clip path of the use would move with its position, so uses are
+		// grouped into an element with the clip path
+		if (clip == null ? output.markerClip != null : !clip
+				.equals(output.markerClip)) {
+			if (output.markerClip != null) {
+				b.append("</g>\n");
+			}
+			if (clip != null) {
+				b.append("<g clip-path=\"url(#").append(clip).append(")\">\n");
+			}
+			output.markerClip = clip;
+		}
+		b.append("<use xlink:href=\"#").append(id).append("\" x=\"");
+		coordinate(b, origin[0]);
+		b.append("\" y=\"");
+		coordinate(b, origin[1]);
+		b.append('"');
+		if (stroke == null) {
+			fillStyle(b, color((Color) p), evenOdd);
+		} else {
+			strokeStyle(b, color((Color) p), stroke);
+		}
+		styleClass(b);
+		b.append("/>\n");
+		output.flushMarker();
+		return true;
+	}
+
+	/**
+	 * Adds the properties of a shape filled with the paint.
+	 */
+	private void fillStyle(StringBuilder b, String paint, boolean evenOdd) {
+		endProperty(property(b, "fill").append(paint));
+		opacity(b, "fill-opacity", gc.getPaint());
+		if (evenOdd) {
+			endProperty(property(b, "fill-rule").append("evenodd"));
+		}
+	}
+
+	/**
+	 * Adds the properties of a shape outlined with the paint and stroke.
+	 */
+	private void strokeStyle(StringBuilder b, String paint, BasicStroke bs) {
+		endProperty(property(b, "fill").append("none"));
+		endProperty(property(b, "stroke").append(paint));
+		opacity(b, "stroke-opacity", gc.getPaint());
+		AffineTransform t = gc.getTransform();
+		double scale = Math.sqrt(Math.abs(t.getDeterminant()));
+		double width = bs.getLineWidth() * scale;
+		if (width != 1) {
+			StringBuilder v = property(b, "stroke-width");
+			number(v, width);
+			endProperty(v);
+		}
+		if (bs.getEndCap() == BasicStroke.CAP_ROUND) {
+			endProperty(property(b, "stroke-linecap").append("round"));
+		} else if (bs.getEndCap() == BasicStroke.CAP_SQUARE) {
+			endProperty(property(b, "stroke-linecap").append("square"));
+		}
+		if (bs.getLineJoin() == BasicStroke.JOIN_ROUND) {
+			endProperty(property(b, "stroke-linejoin").append("round"));
+		} else if (bs.getLineJoin() == BasicStroke.JOIN_BEVEL) {
+			endProperty(property(b, "stroke-linejoin").append("bevel"));
+		} else if (bs.getMiterLimit() != 4) {
+			StringBuilder v = property(b, "stroke-miterlimit");
+			number(v, bs.getMiterLimit());
+			endProperty(v);
+		}
+		float[] dash = bs.getDashArray();
+		if (dash != null && dash.length > 0) {
+			StringBuilder v = property(b, "stroke-dasharray");
+			for (int i = 0; i < dash.length; i++) {
+				if (i > 0) {
+					v.append(',');
+				}
+				number(v, dash[i] * scale);
+			}
+			endProperty(v);
+			if (bs.getDashPhase() != 0) {
+				v = property(b, "stroke-dashoffset");
+				number(v, bs.getDashPhase() * scale);
+				endProperty(v);
+			}
+		}
+	}
+
+	@Override
+	public void drawString(String str, float x, float y) {
+		if (str == null || str.isEmpty()) {
+			return;
+		}
+		AffineTransform t = gc.getTransform();
+		String paint = paint(gc.getPaint(), null);
+		Font font = gc.getFont();
+		StringBuilder b = output.buf;
+		b.append("<text");
+		if (t.getType() == AffineTransform.TYPE_IDENTITY
+				|| t.getType() == AffineTransform.TYPE_TRANSLATION) {
+			b.append(" x=\"");
+			coordinate(b, x + t.getTranslateX());
+			b.append("\" y=\"");
+			coordinate(b, y + t.getTranslateY());
+			b.append('"');
+		} else {
+			b.append(" x=\"");
+			coordinate(b, x);
+			b.append("\" y=\"");
+			coordinate(b, y);
+			b.append("\" transform=\"");
+			matrix(b, t);
+			b.append('"');
+		}
+		endProperty(property(b, "fill").append(paint));
+		opacity(b, "fill-opacity", gc.getPaint());
+		endProperty(property(b, "font-family").append(fontFamily(font)));
+		StringBuilder size = property(b, "font-size");
+		number(size, font.getSize2D());
+		if (output.styles != null) {
+			// lengths without unit are only allowed in attributes
+			size.append("px");
+		}
+		endProperty(size);
+		if (font.isBold()) {
+			endProperty(property(b, "font-weight").append("bold"));
+		}
+		if (font.isItalic()) {
+			endProperty(property(b, "font-style").append("italic"));
+		}
+		clip(b);
+		styleClass(b);
+		if (output.minifier == null || !SvgMinifier.isCollapsed(str)) {
+			b.append(" xml:space=\"preserve\"");
+		}
+		b.append('>');
+		escape(b, str);
+		b.append("</text>\n");
+		output.flush();
+	}
+
+	@Override
+	public void drawString(AttributedCharacterIterator iterator, float x,
+			float y) {
+		StringBuilder text = new StringBuilder();
+		for (char c = iterator.first(); c != AttributedCharacterIterator.DONE; c = iterator
+				.next()) {
+			text.append(c);
+		}
+		drawString(text.toString(), x, y);
+	}
+
+	@Override
+	public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+		int width = img.getWidth(observer);
+		int height = img.getHeight(observer);
+		if (width < 0 || height < 0) {
+			return false;
+		}
+		return drawImage(img, x, y, width, height, observer);
+	}
+
+	@Override
+	public boolean drawImage(Image img, int x, int y, int width, int height,
+			ImageObserver observer) {
+		if (width <= 0 || height <= 0) {
+			return true;
+		}
+		String data = encodeImage(img, observer);
+		if (data == null) {
+			return false;
+		}
+		AffineTransform t = gc.getTransform();
+		StringBuilder b = output.buf;
+		b.append("<image x=\"").append(x).append("\" y=\"").append(y)
+				.append("\" width=\"").append(width).append("\" height=\"")
+				.append(height).append("\" preserveAspectRatio=\"none\"");
+		if (!t.isIdentity()) {
+			b.append(" transform=\"");
+			matrix(b, t);
+			b.append('"');
+		}
+		clip(b);
+		styleClass(b);
+		b.append(" xlink:href=\"data:image/png;base64,").append(data)
+				.append("\"/>\n");
+		output.flush();
+		return true;
+	}
+
+	@Override
+	public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+		BufferedImage image;
+		if (img instanceof BufferedImage) {
+			image = (BufferedImage) img;
+		} else {
+			image = new BufferedImage(img.getWidth(), img.getHeight(),
+					BufferedImage.TYPE_INT_ARGB);
+			image.setData(img.getData());
+		}
+		drawImage(image, xform, null);
+	}
+
+	@Override
+	public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+		drawRenderedImage(img.createDefaultRendering(), xform);
+	}
+
+	private static String encodeImage(Image img, ImageObserver observer) {
+		RenderedImage image;
+		if (img instanceof RenderedImage) {
+			image = (RenderedImage) img;
+		} else {
+			BufferedImage bi = new BufferedImage(img.getWidth(observer),
+					img.getHeight(observer), BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = bi.createGraphics();
+			g.drawImage(img, 0, 0, observer);
+			g.dispose();
+			image = bi;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(image, "png", bytes);
+		} catch (IOException e) {
+			return null;
+		}
+		return Base64.getEncoder().encodeToString(bytes.toByteArray());
+	}
+
+	/**
+	 * Adds a clip-path property for the current clip.
+	 */
+	private void clip(StringBuilder b) {
+		String id = clipId(b);
+		if (id != null) {
+			endProperty(property(b, "clip-path").append("url(#").append(id)
+					.append(')'));
+		}
+	}
+
+	/**
+	 * Returns the id of the clip path for the current clip, writing the
+	 * definition first if it differs from the previous one, or when
+	 * minifying, from all previous ones.
+	 *
+	 * @return the id, or null if there is no clip
+	 */
+	private String clipId(StringBuilder b) {
+		Shape clip = gc.getClip();
+		if (clip == null) {
+			return null;
+		}
+		StringBuilder d = new StringBuilder();
+		path(d, clip.getPathIterator(gc.getTransform()));
+		String clipPath = d.toString();
+		String id;
+		if (output.clipPaths != null) {
+			id = output.clipPaths.get(clipPath);
+		} else {
+			id = clipPath.equals(output.lastClipPath) ? output.lastClipId
+					: null;
+		}
+		if (id == null) {
+			id = output.idPrefix + "clip" + output.nextId++;
+			StringBuilder def = new StringBuilder(clipPath.length() + 64);
+			def.append("<clipPath id=\"").append(id)
+					.append("\"><path d=\"").append(clipPath)
+					.append("\"/></clipPath>\n");
+			// definition must be written before the element using it
+			b.insert(0, def);
+			output.lastClipPath = clipPath;
+			output.lastClipId = id;
+			if (output.clipPaths != null) {
+				output.clipPaths.put(clipPath, id);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the SVG paint for the given paint, writing gradient definitions
+	 * as needed. Must be called before the element is started in the buffer.
+	 *
+	 * @param shape
+	 *            the shape painted, or null if it is not known
+	 */
+	private String paint(Paint paint, Shape shape) {
+		if (paint instanceof Color) {
+			return color((Color) paint);
+		}
+		AffineTransform t = gc.getTransform();
+		StringBuilder b = new StringBuilder(256);
+		if (paint instanceof GradientPaint) {
+			GradientPaint gp = (GradientPaint) paint;
+			Point2D p1 = t.transform(gp.getPoint1(), null);
+			Point2D p2 = t.transform(gp.getPoint2(), null);
+			if (output.minifier != null && p1.equals(p2)
+					&& gp.getColor2().getAlpha() == 255) {
+				// a gradient of zero length paints the color of the last stop
+				return color(gp.getColor2());
+			}
+			double[] vector = { p1.getX(), p1.getY(), p2.getX(), p2.getY() };
+			b.append("<linearGradient");
+			if (output.minifier != null && shape != null) {
+				Rectangle2D box = SvgMinifier.lineBounds(shape
+						.getPathIterator(t));
+				double[] relative = box == null ? null : SvgMinifier
+						.boundingBoxGradient(vector[0], vector[1], vector[2],
+								vector[3], box);
+				if (relative != null) {
+					vector = relative;
+				} else {
+					b.append(" gradientUnits=\"userSpaceOnUse\"");
+				}
+			} else {
+				b.append(" gradientUnits=\"userSpaceOnUse\"");
+			}
+			b.append(" x1=\"");
+			number(b, vector[0]);
+			b.append("\" y1=\"");
+			number(b, vector[1]);
+			b.append("\" x2=\"");
+			number(b, vector[2]);
+			b.append("\" y2=\"");
+			number(b, vector[3]);
+			b.append('"');
+			if (gp.isCyclic()) {
+				b.append(" spreadMethod=\"reflect\"");
+			}
+			b.append('>');
+			stop(b, 0, gp.getColor1());
+			stop(b, 1, gp.getColor2());
+			b.append("</linearGradient>\n");
+			return gradient("linearGradient", b);
+		}
+		if (paint instanceof MultipleGradientPaint) {
+			MultipleGradientPaint mgp = (MultipleGradientPaint) paint;
+			AffineTransform gt = new AffineTransform(t);
+			gt.concatenate(mgp.getTransform());
+			String tag;
+			if (paint instanceof LinearGradientPaint) {
+				LinearGradientPaint lgp = (LinearGradientPaint) paint;
+				tag = "linearGradient";
+				b.append("<linearGradient gradientUnits=\"userSpaceOnUse\" x1=\"");
+				number(b, lgp.getStartPoint().getX());
+				b.append("\" y1=\"");
+				number(b, lgp.getStartPoint().getY());
+				b.append("\" x2=\"");
+				number(b, lgp.getEndPoint().getX());
+				b.append("\" y2=\"");
+				number(b, lgp.getEndPoint().getY());
+				b.append('"');
+			} else if (paint instanceof RadialGradientPaint) {
+				RadialGradientPaint rgp = (RadialGradientPaint) paint;
+				tag = "radialGradient";
+				b.append("<radialGradient gradientUnits=\"userSpaceOnUse\" cx=\"");
+				number(b, rgp.getCenterPoint().getX());
+				b.append("\" cy=\"");
+				number(b, rgp.getCenterPoint().getY());
+				b.append("\" r=\"");
+				number(b, rgp.getRadius());
+				b.append("\" fx=\"");
+				number(b, rgp.getFocusPoint().getX());
+				b.append("\" fy=\"");
+				number(b, rgp.getFocusPoint().getY());
+				b.append('"');
+			} else {
+				return color(gc.getColor());
+			}
+			if (!gt.isIdentity()) {
+				b.append(" gradientTransform=\"");
+				matrix(b, gt);
+				b.append('"');
+			}
+			if (mgp.getCycleMethod() == MultipleGradientPaint.CycleMethod.REFLECT) {
+				b.append(" spreadMethod=\"reflect\"");
+			} else if (mgp.getCycleMethod() == MultipleGradientPaint.CycleMethod.REPEAT) {
+				b.append(" spreadMethod=\"repeat\"");
+			}
+			b.append('>');
+			float[] fractions = mgp.getFractions();
+			Color[] colors = mgp.getColors();
+			for (int i = 0; i < fractions.length; i++) {
+				stop(b, fractions[i], colors[i]);
+			}
+			b.append("</").append(tag).append(">\n");
+			return gradient(tag, b);
+		}
+		// other paints (e.g. textures) are not supported, use plain color
+		return color(gc.getColor());
+	}
+
+	/**
+	 * Writes the gradient definition to the buffer, unless an equal one was
+	 * written before when minifying.
+	 *
+	 * @param gradient
+	 *            the definition without an id
+	 * @return the paint referring to the gradient
+	 */
+	private String gradient(String tag, StringBuilder gradient) {
+		String content = null;
+		if (output.gradients != null) {
+			content = gradient.toString();
+			String id = output.gradients.get(content);
+			if (id != null) {
+				return "url(#" + id + ")";
+			}
+		}
+		String id = output.idPrefix + "gradient" + output.nextId++;
+		int end = tag.length() + 1;
+		output.buf.append(gradient, 0, end).append(" id=\"").append(id)
+				.append('"').append(gradient, end, gradient.length());
+		if (content != null) {
+			output.gradients.put(content, id);
+		}
+		return "url(#" + id + ")";
+	}
+
+	private void stop(StringBuilder b, float offset, Color color) {
+		b.append("<stop offset=\"");
+		number(b, offset);
+		b.append("\" stop-color=\"").append(color(color)).append('"');
+		if (color.getAlpha() < 255) {
+			b.append(" stop-opacity=\"");
+			number(b, color.getAlpha() / 255.0);
+			b.append('"');
+		}
+		b.append("/>");
+	}
+
+	/**
+	 * Adds an opacity property combining the alpha of the paint and the
+	 * alpha of the current composite, if it is not fully opaque.
+	 */
+	private void opacity(StringBuilder b, String property, Paint paint) {
+		double alpha = alpha(paint);
+		if (alpha < 1) {
+			StringBuilder v = property(b, property);
+			number(v, alpha);
+			endProperty(v);
+		}
+	}
+
+	/**
+	 * Starts a style property of the element in the buffer: an attribute, or
+	 * a declaration of its class when writing style classes. Append the value
+	 * to the returned builder and end the property with
+	 * {@link #endProperty(StringBuilder)}.
+	 */
+	private StringBuilder property(StringBuilder b, String name) {
+		if (output.styles == null) {
+			return b.append(' ').append(name).append("=\"");
+		}
+		StringBuilder style = output.style;
+		if (style.length() > 0) {
+			style.append(';');
+		}
+		return style.append(name).append(':');
+	}
+
+	private void endProperty(StringBuilder b) {
+		if (output.styles == null) {
+			b.append('"');
+		}
+	}
+
+	/**
+	 * Adds the class attribute for the declarations of the element in the
+	 * buffer, when writing style classes.
+	 */
+	private void styleClass(StringBuilder b) {
+		StringBuilder style = output.style;
+		if (output.styles != null && style.length() > 0) {
+			b.append(" class=\"")
+					.append(SvgMinifier.styleClass(output.styles,
+							style.toString())).append('"');
+			style.setLength(0);
+		}
+	}
+
+	/**
+	 * @return the alpha of the paint combined with the alpha of the current
+	 *         composite
+	 */
+	private double alpha(Paint paint) {
+		double alpha = 1;
+		if (paint instanceof Color) {
+			alpha = ((Color) paint).getAlpha() / 255.0;
+		}
+		Composite composite = gc.getComposite();
+		if (composite instanceof AlphaComposite) {
+			alpha *= ((AlphaComposite) composite).getAlpha();
+		}
+		return alpha;
+	}
+
+	private String color(Color c) {
+		if (output.minifier != null) {
+			return SvgMinifier.color(c.getRed(), c.getGreen(), c.getBlue());
+		}
+		char[] hex = new char[7];
+		hex[0] = '#';
+		hex(hex, 1, c.getRed());
+		hex(hex, 3, c.getGreen());
+		hex(hex, 5, c.getBlue());
+		return new String(hex);
+	}
+
+	private static void hex(char[] chars, int offset, int value) {
+		chars[offset] = Character.forDigit(value >> 4, 16);
+		chars[offset + 1] = Character.forDigit(value & 0xf, 16);
+	}
+
+	private static String fontFamily(Font font) {
+		String family = font.getFamily();
+		if (Font.DIALOG.equals(family) || Font.SANS_SERIF.equals(family)
+				|| Font.DIALOG_INPUT.equals(family)) {
+			return "sans-serif";
+		} else if (Font.SERIF.equals(family)) {
+			return "serif";
+		} else if (Font.MONOSPACED.equals(family)) {
+			return "monospace";
+		}
+		StringBuilder b = new StringBuilder();
+		b.append('\'');
+		escape(b, family);
+		b.append("',sans-serif");
+		return b.toString();
+	}
+
+	private static void matrix(StringBuilder b, AffineTransform t) {
+		b.append("matrix(");
+		number(b, t.getScaleX());
+		b.append(' ');
+		number(b, t.getShearY());
+		b.append(' ');
+		number(b, t.getShearX());
+		b.append(' ');
+		number(b, t.getScaleY());
+		b.append(' ');
+		number(b, t.getTranslateX());
+		b.append(' ');
+		number(b, t.getTranslateY());
+		b.append(')');
+	}
+
+	private void path(StringBuilder b, PathIterator it) {
+		if (output.minifier != null) {
+			output.minifier.path(b, it);
+			return;
+		}
+		double[] c = new double[6];
+		boolean first = true;
+		while (!it.isDone()) {
+			if (!first) {
+				b.append(' ');
+			}
+			first = false;
+			switch (it.currentSegment(c)) {
+			case PathIterator.SEG_MOVETO:
+				b.append('M');
+				point(b, c, 0);
+				break;
+			case PathIterator.SEG_LINETO:
+				b.append('L');
+				point(b, c, 0);
+				break;
+			case PathIterator.SEG_QUADTO:
+				b.append('Q');
+				point(b, c, 0);
+				b.append(' ');
+				point(b, c, 2);
+				break;
+			case PathIterator.SEG_CUBICTO:
+				b.append('C');
+				point(b, c, 0);
+				b.append(' ');
+				point(b, c, 2);
+				b.append(' ');
+				point(b, c, 4);
+				break;
+			case PathIterator.SEG_CLOSE:
+				b.append('Z');
+				break;
+			default:
+				break;
+			}
+			it.next();
+		}
+	}
+
+	private static void point(StringBuilder b, double[] coords, int offset) {
+		number(b, coords[offset]);
+		b.append(' ');
+		number(b, coords[offset + 1]);
+	}
+
+	/**
+	 * Appends a coordinate, rounded by the minifier if there is one.
+	 */
+	private void coordinate(StringBuilder b, double value) {
+		if (output.minifier != null) {
+			output.minifier.number(b, value);
+		} else {
+			number(b, value);
+		}
+	}
+
+	/**
+	 * Appends the number with at most four decimals and without trailing
+	 * zeros.
+	 */
+	static void number(StringBuilder b, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			b.append('0');
+			return;
+		}
+		long scaled = Math.round(value * 10000);
+		if (scaled < 0) {
+			b.append('-');
+			scaled = -scaled;
+		}
+		b.append(scaled / 10000);
+		int fraction = (int) (scaled % 10000);
+		if (fraction != 0) {
+			b.append('.');
+			int divisor = 1000;
+			while (fraction != 0) {
+				b.append((char) ('0' + fraction / divisor));
+				fraction %= divisor;
+				divisor /= 10;
+			}
+		}
+	}
+
+	static void escape(StringBuilder b, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				b.append("&amp;");
+				break;
+			case '<':
+				b.append("&lt;");
+				break;
+			case '>':
+				b.append("&gt;");
+				break;
+			case '"':
+				b.append("&quot;");
+				break;
+			default:
+				// characters not allowed in XML 1.0 are dropped
+				if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+					b.append(c);
+				}
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.batik.svggen.SVGGeneratorContext;
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.apache.batik.svggen.SVGIDGenerator;
+import org.w3c.dom.Document;
+
+/**
+ * Pool of the objects needed to set up Batik's {@link SVGGraphics2D}: a
+ * document builder and a generator context with its image, style, extension
+ * and error handlers.
+ * <p>
+ * Creating them for every render means a service loader lookup for the
+ * {@link DocumentBuilderFactory}, which scans the class path and is slow in
+ * application servers with many libraries, plus constructing the handlers.
+ * Pooled entries are used by one render at a time; every render gets a new
+ * document and a new id generator, so the output does not depend on earlier
+ * renders.
+ */
+final class SvgGeneratorPool {
+
+	private static final int MAX_POOLED = 2 * Runtime.getRuntime()
+			.availableProcessors();
+
+	private static final DocumentBuilderFactory factory = DocumentBuilderFactory
+			.newInstance();
+	private static final ConcurrentLinkedQueue<SvgGeneratorPool> pool = new ConcurrentLinkedQueue<SvgGeneratorPool>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private final DocumentBuilder builder;
+	private final SVGGeneratorContext context;
+	// set as the document of the context between renders
+	private final Document empty;
+
+	private SvgGeneratorPool() {
+		try {
+			// factories are not required to be thread safe
+			synchronized (factory) {
+				builder = factory.newDocumentBuilder();
+			}
+		} catch (ParserConfigurationException e) {
+			throw new RuntimeException(e);
+		}
+		empty = builder.newDocument();
+		context = SVGGeneratorContext.createDefault(empty);
+	}
+
+	/**
+	 * Takes an entry from the pool, or creates one if the pool is empty. The
+	 * entry must be {@link #release() released} when the graphics created
+	 * from it is no longer used, including streaming its document.
+	 */
+	static SvgGeneratorPool acquire() {
+		SvgGeneratorPool entry = pool.poll();
+		if (entry == null) {
+			return new SvgGeneratorPool();
+		}
+		pooled.decrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Returns the entry to the pool, unless the pool is full.
+	 */
+	void release() {
+		builder.reset();
+		// the last document is not kept reachable from the pool
+		context.setDOMFactory(empty);
+		if (pooled.incrementAndGet() <= MAX_POOLED) {
+			pool.offer(this);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Creates a generator drawing into a new document with an svg root
+	 * element, equal to {@code new SVGGraphics2D(document)}.
+	 */
+	SVGGraphics2D createGraphics() {
+		Document document = builder.newDocument();
+		document.appendChild(document.createElement("svg"));
+		context.setDOMFactory(document);
+		context.setIDGenerator(new SVGIDGenerator());
+		return new SVGGraphics2D(context, false);
+	}
+}
@@ -0,0 +1,1608 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.IllegalPathStateException;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.vaadin.addon.JFreeChartWrapper.SvgBackend;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Makes SVG charts smaller without visibly changing them, used for
+ * {@link JFreeChartWrapper}s in SVG mode.
+ * <p>
+ * Coordinates are rounded to a configurable number of decimals and path data
+ * is written in the compact syntax of SVG: relative coordinates where they
+ * are shorter, horizontal and vertical line commands, repeated commands left
+ * out and no separators where a sign or decimal point separates numbers.
+ * Consecutive line segments along the same line are merged into one, and so
+ * are adjacent lines drawn with the same opaque stroke (e.g. grid lines and
+ * tick marks). Attributes repeating the default or inherited value are left
+ * out.
+ * <p>
+ * Equal gradient and clip path definitions are written once. Gradients along
+ * the x or y axis, which JFreeChart fits to every bar of a bar chart, are
+ * written relative to the bounding box of the shape, so that the bars of a
+ * series share one definition. Optionally, the style properties of the
+ * elements (fill, stroke, font, clip path...) are replaced with classes of a
+ * style sheet, so that every distinct combination is written only once.
+ * <p>
+ * Optionally, small shapes drawn more than once, like the shapes of the data
+ * items of scatter and line charts, are defined once as a symbol and drawn
+ * with use elements that only give the position and style. Shapes with short
+ * path data, like squares, are written as paths as they would not get any
+ * smaller.
+ * <p>
+ * The {@link SvgBackend#STREAMING} backend writes minified elements directly.
+ * With the {@link SvgBackend#BATIK} backend the generated DOM is minified and
+ * written without the indentation and document type declaration Batik adds.
+ * <p>
+ * Minifiers are immutable and can be shared by any number of wrappers and
+ * threads.
+ */
+@SuppressWarnings("serial")
+public class SvgMinifier implements Serializable {
+
+	/**
+	 * Default number of decimals: a hundredth of a pixel is not visible even
+	 * on high density displays.
+	 */
+	public static final int DEFAULT_DECIMALS = 2;
+
+	private static final int MAX_DECIMALS = 6;
+	private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000,
+			100000, 1000000 };
+	// larger coordinates are not checked for merging, the products of their
+	// differences would overflow
+	private static final long MAX_MERGED_DELTA = 1L << 30;
+	// larger shapes are not written as markers
+	private static final double MAX_MARKER_SIZE = 32;
+	// shorter path data, like that of a square, takes fewer characters than
+	// the reference and position of a use
+	private static final int MIN_MARKER_PATH_LENGTH = 32;
+	// the user data key of the marker path data of a path element, taken from
+	// the path data before it is rounded
+	private static final String MARKER_PATH = "org.vaadin.addon.markerPath";
+
+	private static final String SVG_NS = "http://www.w3.org/2000/svg";
+	private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	/*
+	 * Inherited properties written by Batik and their initial values, or
+	 * null if the initial value is never written.
+	 */
+	private static final Map<String, String> INHERITED = new HashMap<String, String>();
+	static {
+		INHERITED.put("clip-rule", "nonzero");
+		INHERITED.put("color-interpolation", "sRGB");
+		INHERITED.put("color-rendering", "auto");
+		INHERITED.put("fill", "#000");
+		INHERITED.put("fill-opacity", "1");
+		INHERITED.put("fill-rule", "nonzero");
+		INHERITED.put("font-family", null);
+		INHERITED.put("font-size", null);
+		INHERITED.put("font-style", "normal");
+		INHERITED.put("font-weight", "normal");
+		INHERITED.put("image-rendering", "auto");
+		INHERITED.put("shape-rendering", "auto");
+		INHERITED.put("stroke", "none");
+		INHERITED.put("stroke-dasharray", "none");
+		INHERITED.put("stroke-dashoffset", "0");
+		INHERITED.put("stroke-linecap", "butt");
+		INHERITED.put("stroke-linejoin", "miter");
+		INHERITED.put("stroke-miterlimit", "4");
+		INHERITED.put("stroke-opacity", "1");
+		INHERITED.put("stroke-width", "1");
+		INHERITED.put("text-rendering", "auto");
+		INHERITED.put("visibility", "visible");
+	}
+
+	private static final Set<String> COORDINATES = new HashSet<String>(
+			Arrays.asList("x", "y", "x1", "y1", "x2", "y2", "cx", "cy", "r",
+					"rx", "ry", "fx", "fy", "width", "height"));
+	private static final Set<String> COLORS = new HashSet<String>(
+			Arrays.asList("fill", "stroke", "stop-color", "flood-color",
+					"lighting-color", "color"));
+	// properties without effect on elements that are not stroked or filled
+	private static final String[] STROKE_PROPERTIES = { "stroke-opacity",
+			"stroke-width", "stroke-linecap", "stroke-linejoin",
+			"stroke-miterlimit", "stroke-dasharray", "stroke-dashoffset" };
+	private static final String[] FILL_PROPERTIES = { "fill-opacity",
+			"fill-rule" };
+	// properties that are moved to style classes
+	private static final Set<String> PROPERTIES = new HashSet<String>(
+			INHERITED.keySet());
+	static {
+		PROPERTIES.add("opacity");
+		PROPERTIES.add("clip-path");
+	}
+	private static final Set<String> DEFINITIONS = new HashSet<String>(
+			Arrays.asList("clipPath", "linearGradient", "radialGradient"));
+
+	private final int decimals;
+	private final boolean mergeStrokes;
+	private final boolean styleClasses;
+	private final boolean markers;
+
+	/**
+	 * Creates a minifier rounding to the default number of decimals and
+	 * merging adjacent strokes, without style classes and markers.
+	 */
+	public SvgMinifier() {
+		this(DEFAULT_DECIMALS, true);
+	}
+
+	/**
+	 * @param decimals
+	 *            the number of decimals coordinates are rounded to, from 0
+	 *            (whole pixels) to 6
+	 * @param mergeStrokes
+	 *            true to merge adjacent lines with the same opaque stroke
+	 *            into one path element
+	 */
+	public SvgMinifier(int decimals, boolean mergeStrokes) {
+		this(decimals, mergeStrokes, false);
+	}
+
+	/**
+	 * @param decimals
+	 *            the number of decimals coordinates are rounded to, from 0
+	 *            (whole pixels) to 6
+	 * @param mergeStrokes
+	 *            true to merge adjacent lines with the same opaque stroke
+	 *            into one path element
+	 * @param styleClasses
+	 *            true to write the style properties of the elements as
+	 *            classes of a style sheet instead of attributes
+	 */
+	public SvgMinifier(int decimals, boolean mergeStrokes,
+			boolean styleClasses) {
+		this(decimals, mergeStrokes, styleClasses, false);
+	}
+
+	/**
+	 * @param decimals
+	 *            the number of decimals coordinates are rounded to, from 0
+	 *            (whole pixels) to 6
+	 * @param mergeStrokes
+	 *            true to merge adjacent lines with the same opaque stroke
+	 *            into one path element
+	 * @param styleClasses
+	 *            true to write the style properties of the elements as
+	 *            classes of a style sheet instead of attributes
+	 * @param markers
+	 *            true to define small shapes drawn more than once as symbols
+	 *            and draw them with use elements
+	 */
+	public SvgMinifier(int decimals, boolean mergeStrokes,
+			boolean styleClasses, boolean markers) {
+		if (decimals < 0 || decimals > MAX_DECIMALS) {
+			throw new IllegalArgumentException("Decimals must be between 0 and "
+					+ MAX_DECIMALS);
+		}
+		this.decimals = decimals;
+		this.mergeStrokes = mergeStrokes;
+		this.styleClasses = styleClasses;
+		this.markers = markers;
+	}
+
+	public int getDecimals() {
+		return decimals;
+	}
+
+	public boolean isMergeStrokes() {
+		return mergeStrokes;
+	}
+
+	public boolean isStyleClasses() {
+		return styleClasses;
+	}
+
+	public boolean isMarkers() {
+		return markers;
+	}
+
+	/**
+	 * Appends the coordinate rounded to the decimals of this minifier,
+	 * without trailing zeros or a leading zero before the decimal point.
+	 */
+	void number(StringBuilder b, double value) {
+		appendUnits(b, toUnits(value));
+	}
+
+	/**
+	 * Returns the path data of a small shape relative to its first point, to
+	 * draw the shape as a marker. Equal shapes at different positions have
+	 * the same relative path data.
+	 *
+	 * @param origin
+	 *            receives the point the path data is relative to: the first
+	 *            point rounded to the decimals of this minifier
+	 * @return the relative path data, or null if the shape has no area, is
+	 *         too large for a marker or is written shorter as a path
+	 */
+	String markerPath(PathIterator it, double[] origin) {
+		Path2D path = new Path2D.Double(it.getWindingRule());
+		path.append(it, false);
+		// the bounds include the control points of curves
+		Rectangle2D bounds = path.getBounds2D();
+		if (bounds.getWidth() <= 0 || bounds.getHeight() <= 0
+				|| bounds.getWidth() > MAX_MARKER_SIZE
+				|| bounds.getHeight() > MAX_MARKER_SIZE) {
+			return null;
+		}
+		double[] c = new double[6];
+		path.getPathIterator(null).currentSegment(c);
+		origin[0] = toUnits(c[0]) / (double) POWERS_OF_TEN[decimals];
+		origin[1] = toUnits(c[1]) / (double) POWERS_OF_TEN[decimals];
+		// relative to the exact point, so that equal shapes at fractional
+		// positions are not rounded differently
+		StringBuilder d = new StringBuilder();
+		path(d, path.getPathIterator(AffineTransform.getTranslateInstance(
+				-c[0], -c[1])));
+		return d.length() < MIN_MARKER_PATH_LENGTH ? null : d.toString();
+	}
+
+	/**
+	 * @return the value as a whole number of the smallest written fractions,
+	 *         e.g. hundredths with two decimals
+	 */
+	private long toUnits(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return 0;
+		}
+		return Math.round(value * POWERS_OF_TEN[decimals]);
+	}
+
+	private void appendUnits(StringBuilder b, long units) {
+		if (units < 0) {
+			b.append('-');
+			units = -units;
+		}
+		long scale = POWERS_OF_TEN[decimals];
+		long integer = units / scale;
+		long fraction = units % scale;
+		if (integer != 0 || fraction == 0) {
+			b.append(integer);
+		}
+		if (fraction != 0) {
+			b.append('.');
+			for (long divisor = scale / 10; fraction != 0; divisor /= 10) {
+				b.append((char) ('0' + fraction / divisor));
+				fraction %= divisor;
+			}
+		}
+	}
+
+	/**
+	 * Appends the path as compact path data.
+	 */
+	void path(StringBuilder b, PathIterator it) {
+		PathWriter writer = new PathWriter(b);
+		double[] c = new double[6];
+		long[] points = new long[6];
+		while (!it.isDone()) {
+			int type = it.currentSegment(c);
+			switch (type) {
+			case PathIterator.SEG_MOVETO:
+				writer.moveTo(toUnits(c[0]), toUnits(c[1]));
+				break;
+			case PathIterator.SEG_LINETO:
+				writer.lineTo(toUnits(c[0]), toUnits(c[1]));
+				break;
+			case PathIterator.SEG_QUADTO:
+			case PathIterator.SEG_CUBICTO:
+				int count = type == PathIterator.SEG_QUADTO ? 4 : 6;
+				for (int i = 0; i < count; i++) {
+					points[i] = toUnits(c[i]);
+				}
+				writer.curveTo(type == PathIterator.SEG_QUADTO ? 'Q' : 'C',
+						points, count);
+				break;
+			case PathIterator.SEG_CLOSE:
+				writer.closePath();
+				break;
+			default:
+				break;
+			}
+			it.next();
+		}
+		writer.finish();
+	}
+
+	/**
+	 * Writes path segments in compact syntax, holding back each line segment
+	 * until it is known whether the next one continues it.
+	 */
+	private final class PathWriter {
+
+		private final StringBuilder b;
+		private final long[] values = new long[2];
+		private final long[] deltas = new long[6];
+
+		// current point and start of the subpath, as written
+		private long x;
+		private long y;
+		private long startX;
+		private long startY;
+		// a line to the pending point that has not been written yet
+		private boolean pending;
+		private long pendingX;
+		private long pendingY;
+		// true if nothing has been drawn since the last move
+		private boolean moved;
+		// the command the next coordinates continue without repeating it
+		private char implicit;
+		// true if the last written number has a decimal point
+		private boolean decimal;
+		private boolean empty = true;
+
+		PathWriter(StringBuilder b) {
+			this.b = b;
+		}
+
+		void moveTo(long mx, long my) {
+			flushLine();
+			values[0] = mx;
+			values[1] = my;
+			char command;
+			if (empty) {
+				// relative to the origin, which is the same as absolute
+				command = 'M';
+				write(command, values, 2);
+			} else {
+				deltas[0] = mx - x;
+				deltas[1] = my - y;
+				command = writeShorter('M', values, 'm', deltas, 2);
+			}
+			implicit = command == 'M' ? 'L' : 'l';
+			x = startX = mx;
+			y = startY = my;
+			moved = true;
+			empty = false;
+		}
+
+		void lineTo(long lx, long ly) {
+			if (pending) {
+				if (lx == pendingX && ly == pendingY) {
+					return;
+				}
+				if ((pendingX == x && pendingY == y)
+						|| sameDirection(pendingX - x, pendingY - y, lx
+								- pendingX, ly - pendingY)) {
+					pendingX = lx;
+					pendingY = ly;
+					return;
+				}
+				writeLine();
+			} else if (lx == x && ly == y && !moved) {
+				return;
+			}
+			pending = true;
+			pendingX = lx;
+			pendingY = ly;
+		}
+
+		void curveTo(char command, long[] points, int count) {
+			flushLine();
+			for (int i = 0; i < count; i += 2) {
+				deltas[i] = points[i] - x;
+				deltas[i + 1] = points[i + 1] - y;
+			}
+			implicit = writeShorter(command, points,
+					Character.toLowerCase(command), deltas, count);
+			x = points[count - 2];
+			y = points[count - 1];
+			moved = false;
+		}
+
+		void closePath() {
+			if (pending && pendingX == startX && pendingY == startY
+					&& (x != startX || y != startY)) {
+				// closing draws the same line
+				pending = false;
+			}
+			flushLine();
+			b.append('Z');
+			implicit = 0;
+			x = startX;
+			y = startY;
+			moved = false;
+		}
+
+		void finish() {
+			flushLine();
+		}
+
+		private void flushLine() {
+			if (pending) {
+				writeLine();
+			}
+		}
+
+		private void writeLine() {
+			pending = false;
+			long dx = pendingX - x;
+			long dy = pendingY - y;
+			if (dy == 0) {
+				values[0] = pendingX;
+				deltas[0] = dx;
+				implicit = writeShorter('H', values, 'h', deltas, 1);
+			} else if (dx == 0) {
+				values[0] = pendingY;
+				deltas[0] = dy;
+				implicit = writeShorter('V', values, 'v', deltas, 1);
+			} else {
+				values[0] = pendingX;
+				values[1] = pendingY;
+				deltas[0] = dx;
+				deltas[1] = dy;
+				implicit = writeShorter('L', values, 'l', deltas, 2);
+			}
+			x = pendingX;
+			y = pendingY;
+			moved = false;
+		}
+
+		/**
+		 * Writes the shorter of the absolute and the relative form of a
+		 * segment, the relative one if they are equally long.
+		 *
+		 * @return the command written
+		 */
+		private char writeShorter(char absoluteCommand, long[] absolute,
+				char relativeCommand, long[] relative, int count) {
+			if (length(relativeCommand, relative, count) <= length(
+					absoluteCommand, absolute, count)) {
+				write(relativeCommand, relative, count);
+				return relativeCommand;
+			}
+			write(absoluteCommand, absolute, count);
+			return absoluteCommand;
+		}
+
+		/**
+		 * Writes the segment, leaving out the command if it continues the
+		 * previous one and separators where a sign or point separates the
+		 * numbers.
+		 */
+		private void write(char command, long[] numbers, int count) {
+			boolean separate = command == implicit;
+			if (!separate) {
+				b.append(command);
+			}
+			for (int i = 0; i < count; i++) {
+				long units = numbers[i];
+				if (separate && needsSeparator(units, decimal)) {
+					b.append(' ');
+				}
+				appendUnits(b, units);
+				decimal = units % POWERS_OF_TEN[decimals] != 0;
+				separate = true;
+			}
+		}
+
+		/**
+		 * @return the number of characters {@link #write(char, long[], int)}
+		 *         would write
+		 */
+		private int length(char command, long[] numbers, int count) {
+			boolean separate = command == implicit;
+			boolean lastDecimal = decimal;
+			int length = separate ? 0 : 1;
+			for (int i = 0; i < count; i++) {
+				long units = numbers[i];
+				if (separate && needsSeparator(units, lastDecimal)) {
+					length++;
+				}
+				length += unitsLength(units);
+				lastDecimal = units % POWERS_OF_TEN[decimals] != 0;
+				separate = true;
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * @return true if the number needs a space to separate it from the
+	 *         previous one, i.e. does not start with a sign or with a point
+	 *         following a number that has one
+	 */
+	private boolean needsSeparator(long units, boolean previousDecimal) {
+		return units >= 0
+				&& !(previousDecimal && units < POWERS_OF_TEN[decimals] && units != 0);
+	}
+
+	/**
+	 * @return the number of characters {@link #appendUnits(StringBuilder, long)}
+	 *         appends
+	 */
+	private int unitsLength(long units) {
+		int length = 0;
+		if (units < 0) {
+			length++;
+			units = -units;
+		}
+		long scale = POWERS_OF_TEN[decimals];
+		long integer = units / scale;
+		long fraction = units % scale;
+		if (integer != 0 || fraction == 0) {
+			length++;
+			for (long i = integer; i >= 10; i /= 10) {
+				length++;
+			}
+		}
+		if (fraction != 0) {
+			length += 1 + decimals;
+			for (long f = fraction; f % 10 == 0; f /= 10) {
+				length--;
+			}
+		}
+		return length;
+	}
+
+	private static boolean sameDirection(long dx1, long dy1, long dx2, long dy2) {
+		if (Math.abs(dx1) > MAX_MERGED_DELTA || Math.abs(dy1) > MAX_MERGED_DELTA
+				|| Math.abs(dx2) > MAX_MERGED_DELTA
+				|| Math.abs(dy2) > MAX_MERGED_DELTA) {
+			return false;
+		}
+		return dx1 * dy2 == dy1 * dx2 && dx1 * dx2 + dy1 * dy2 > 0;
+	}
+
+	/**
+	 * Parses path data with the commands written by Batik and this minifier
+	 * (moves, lines, quadratic and cubic curves, absolute and relative).
+	 *
+	 * @return the path, null if the data contains other commands or is
+	 *         malformed
+	 */
+	static Path2D parsePath(String d) {
+		Path2D.Double path = new Path2D.Double();
+		double[] c = new double[6];
+		char command = 0;
+		int[] position = { 0 };
+		try {
+			while (true) {
+				int i = skipSeparators(d, position[0]);
+				if (i >= d.length()) {
+					return path;
+				}
+				char ch = d.charAt(i);
+				if (Character.isLetter(ch)) {
+					command = ch;
+					position[0] = i + 1;
+					if (command == 'Z' || command == 'z') {
+						path.closePath();
+					}
+					continue;
+				}
+				int count;
+				switch (Character.toUpperCase(command)) {
+				case 'H':
+				case 'V':
+					count = 1;
+					break;
+				case 'M':
+				case 'L':
+					count = 2;
+					break;
+				case 'Q':
+					count = 4;
+					break;
+				case 'C':
+					count = 6;
+					break;
+				default:
+					return null;
+				}
+				for (int k = 0; k < count; k++) {
+					c[k] = parseNumber(d, position);
+				}
+				Point2D current = path.getCurrentPoint();
+				boolean relative = Character.isLowerCase(command)
+						&& current != null;
+				double ox = relative ? current.getX() : 0;
+				double oy = relative ? current.getY() : 0;
+				switch (Character.toUpperCase(command)) {
+				case 'M':
+					path.moveTo(ox + c[0], oy + c[1]);
+					// further coordinates are lines
+					command = command == 'M' ? 'L' : 'l';
+					break;
+				case 'L':
+					path.lineTo(ox + c[0], oy + c[1]);
+					break;
+				case 'H':
+					path.lineTo(ox + c[0], current.getY());
+					break;
+				case 'V':
+					path.lineTo(current.getX(), oy + c[0]);
+					break;
+				case 'Q':
+					path.quadTo(ox + c[0], oy + c[1], ox + c[2], oy + c[3]);
+					break;
+				default:
+					path.curveTo(ox + c[0], oy + c[1], ox + c[2], oy + c[3],
+							ox + c[4], oy + c[5]);
+					break;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (IllegalPathStateException e) {
+			return null;
+		} catch (NullPointerException e) {
+			// horizontal or vertical line without a current point
+			return null;
+		}
+	}
+
+	private static int skipSeparators(String s, int i) {
+		while (i < s.length()
+				&& (Character.isWhitespace(s.charAt(i)) || s.charAt(i) == ',')) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Parses the number starting at the position, after separators, and
+	 * moves the position past it.
+	 */
+	private static double parseNumber(String s, int[] position) {
+		int start = skipSeparators(s, position[0]);
+		int i = start;
+		if (i < s.length() && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			i++;
+		}
+		boolean point = false;
+		while (i < s.length()) {
+			char c = s.charAt(i);
+			if (c == '.' && !point) {
+				point = true;
+			} else if (c == 'e' || c == 'E') {
+				i++;
+				if (i < s.length() && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+					i++;
+				}
+				while (i < s.length() && Character.isDigit(s.charAt(i))) {
+					i++;
+				}
+				break;
+			} else if (!Character.isDigit(c)) {
+				break;
+			}
+			i++;
+		}
+		position[0] = i;
+		return Double.parseDouble(s.substring(start, i));
+	}
+
+	/**
+	 * @return the shortest hexadecimal notation of the color, e.g. "#f50"
+	 */
+	static String color(int red, int green, int blue) {
+		char[] hex;
+		if (red % 17 == 0 && green % 17 == 0 && blue % 17 == 0) {
+			hex = new char[] { '#', Character.forDigit(red / 17, 16),
+					Character.forDigit(green / 17, 16),
+					Character.forDigit(blue / 17, 16) };
+		} else {
+			hex = new char[] { '#', Character.forDigit(red >> 4, 16),
+					Character.forDigit(red & 0xf, 16),
+					Character.forDigit(green >> 4, 16),
+					Character.forDigit(green & 0xf, 16),
+					Character.forDigit(blue >> 4, 16),
+					Character.forDigit(blue & 0xf, 16) };
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return the shortest notation of a color attribute value, the value
+	 *         itself if it is not a color in the notations Batik writes
+	 */
+	static String color(String value) {
+		try {
+			if (value.startsWith("rgb(") && value.endsWith(")")) {
+				String[] rgb = value.substring(4, value.length() - 1).split(",");
+				if (rgb.length == 3) {
+					return color(component(rgb[0]), component(rgb[1]),
+							component(rgb[2]));
+				}
+			} else if (value.length() == 7 && value.charAt(0) == '#') {
+				int rgb = Integer.parseInt(value.substring(1), 16);
+				return color(rgb >> 16, (rgb >> 8) & 0xff, rgb & 0xff);
+			} else if ("black".equals(value)) {
+				return "#000";
+			} else if ("white".equals(value)) {
+				return "#fff";
+			}
+		} catch (NumberFormatException e) {
+			// not a color
+		}
+		return value;
+	}
+
+	private static int component(String value) {
+		int component = Integer.parseInt(value.trim());
+		if (component < 0 || component > 255) {
+			throw new NumberFormatException(value);
+		}
+		return component;
+	}
+
+	/**
+	 * @return true if the text looks the same without xml:space="preserve",
+	 *         i.e. has no white space that would be collapsed
+	 */
+	static boolean isCollapsed(String text) {
+		if (text.isEmpty()) {
+			return true;
+		}
+		if (text.charAt(0) == ' ' || text.charAt(text.length() - 1) == ' ') {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\t' || c == '\n' || c == '\r'
+					|| (c == ' ' && text.charAt(i - 1) == ' ')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the bounding box of a path of straight lines, null if the path
+	 *         is empty or has curves
+	 */
+	static Rectangle2D lineBounds(PathIterator it) {
+		double[] c = new double[6];
+		Rectangle2D bounds = null;
+		for (; !it.isDone(); it.next()) {
+			int type = it.currentSegment(c);
+			if (type == PathIterator.SEG_QUADTO
+					|| type == PathIterator.SEG_CUBICTO) {
+				return null;
+			} else if (type == PathIterator.SEG_CLOSE) {
+				continue;
+			} else if (bounds == null) {
+				bounds = new Rectangle2D.Double(c[0], c[1], 0, 0);
+			} else {
+				bounds.add(c[0], c[1]);
+			}
+		}
+		return bounds;
+	}
+
+	/**
+	 * Converts the vector of a linear gradient to units of the bounding box
+	 * of the shape it paints. Only gradients along the x or y axis look the
+	 * same in both units, as the bounding box units scale the gradient
+	 * normal too.
+	 *
+	 * @return x1, y1, x2 and y2 relative to the bounding box, or null if the
+	 *         gradient cannot be converted
+	 */
+	static double[] boundingBoxGradient(double x1, double y1, double x2,
+			double y2, Rectangle2D box) {
+		double width = box.getWidth();
+		double height = box.getHeight();
+		if (width <= 0 || height <= 0 || (x1 == x2) == (y1 == y2)) {
+			return null;
+		}
+		if (y1 == y2) {
+			return new double[] { (x1 - box.getX()) / width, 0,
+					(x2 - box.getX()) / width, 0 };
+		}
+		return new double[] { 0, (y1 - box.getY()) / height, 0,
+				(y2 - box.getY()) / height };
+	}
+
+	/**
+	 * Returns the class with the given declarations, adding it to the
+	 * classes if there is none yet.
+	 */
+	static String styleClass(Map<String, String> classes, String declarations) {
+		String name = classes.get(declarations);
+		if (name == null) {
+			// a to z, aa to zz, aaa...
+			StringBuilder b = new StringBuilder();
+			for (int i = classes.size(); i >= 0; i = i / 26 - 1) {
+				b.insert(0, (char) ('a' + i % 26));
+			}
+			name = b.toString();
+			classes.put(declarations, name);
+		}
+		return name;
+	}
+
+	/**
+	 * @return the style sheet defining the classes, mapped from their
+	 *         declarations
+	 */
+	static String styleSheet(Map<String, String> classes) {
+		StringBuilder b = new StringBuilder();
+		for (Map.Entry<String, String> c : classes.entrySet()) {
+			b.append('.').append(c.getValue()).append('{').append(c.getKey())
+					.append('}');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Minifies the document generated by Batik in place.
+	 */
+	void minify(Element root) {
+		Map<String, String> initial = new HashMap<String, String>();
+		for (Map.Entry<String, String> property : INHERITED.entrySet()) {
+			if (property.getValue() != null) {
+				initial.put(property.getKey(), property.getValue());
+			}
+		}
+		minify(root, initial);
+		Map<String, Element> definitions = new LinkedHashMap<String, Element>();
+		List<Element> elements = new ArrayList<Element>();
+		elements.add(root);
+		elements(root, elements, definitions);
+		simplifyGradients(elements, definitions);
+		mergeDefinitions(elements, definitions);
+		if (markers && drawMarkers(root, elements)) {
+			elements.clear();
+			elements.add(root);
+			elements(root, elements, new HashMap<String, Element>());
+		}
+		if (styleClasses) {
+			styleClasses(root, elements);
+		}
+	}
+
+	/**
+	 * Minifies the element and its descendants.
+	 *
+	 * @param inherited
+	 *            the values of inherited properties of the parent
+	 */
+	private void minify(Element element, Map<String, String> inherited) {
+		minifyAttributes(element, inherited);
+		if (!hasElementChildren(element)) {
+			return;
+		}
+		Map<String, String> values = new HashMap<String, String>(inherited);
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Node attr = attributes.item(i);
+			if (INHERITED.containsKey(attr.getNodeName())) {
+				values.put(attr.getNodeName(), attr.getNodeValue());
+			}
+		}
+
+		Node child = element.getFirstChild();
+		while (child != null) {
+			Node next = child.getNextSibling();
+			if (child.getNodeType() == Node.COMMENT_NODE) {
+				element.removeChild(child);
+			} else if (child.getNodeType() == Node.ELEMENT_NODE) {
+				Element e = (Element) child;
+				if ("line".equals(e.getTagName())) {
+					e = lineToPath(e);
+				}
+				minify(e, values);
+				String tag = e.getTagName();
+				if ((("g".equals(tag) || "defs".equals(tag)) && !e
+						.hasChildNodes()) || isEmptyShape(e)) {
+					element.removeChild(e);
+				} else if ("g".equals(tag) && !e.hasAttributes()) {
+					// a group without attributes changes nothing, its
+					// children are already minified
+					while (e.hasChildNodes()) {
+						element.insertBefore(e.getFirstChild(), e);
+					}
+					element.removeChild(e);
+				}
+			}
+			child = next;
+		}
+		if (mergeStrokes) {
+			mergeStrokes(element, values);
+		}
+	}
+
+	/**
+	 * @return true if the element is a shape that is not rendered: a path
+	 *         without path data or a rectangle without area
+	 */
+	private static boolean isEmptyShape(Element e) {
+		if (e.hasAttribute("id")) {
+			return false;
+		} else if ("path".equals(e.getTagName())) {
+			return e.getAttribute("d").trim().isEmpty();
+		} else if ("rect".equals(e.getTagName())) {
+			return number(e, "width") == 0 || number(e, "height") == 0;
+		}
+		return false;
+	}
+
+	private static boolean hasElementChildren(Element element) {
+		for (Node n = element.getFirstChild(); n != null; n = n
+				.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void minifyAttributes(Element element,
+			Map<String, String> inherited) {
+		String tag = element.getTagName();
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			String name = attr.getName();
+			String value = attr.getValue();
+			String minified = value;
+			if (COLORS.contains(name)) {
+				minified = color(value);
+			} else if (COORDINATES.contains(name)) {
+				minified = coordinate(value);
+			} else if ("d".equals(name)) {
+				Path2D path = parsePath(value);
+				if (path != null) {
+					StringBuilder d = new StringBuilder(value.length());
+					path(d, path.getPathIterator(null));
+					minified = d.toString();
+					if (markers) {
+						element.setUserData(MARKER_PATH, markerPath(
+								path.getPathIterator(null), new double[2]),
+								null);
+					}
+				}
+			}
+			if (!minified.equals(value)) {
+				attr.setValue(minified);
+			}
+		}
+
+		boolean leaf = !hasElementChildren(element);
+		boolean stroked = !"none".equals(value(element, "stroke", inherited));
+		boolean filled = !"none".equals(value(element, "fill", inherited));
+		for (int i = attributes.getLength() - 1; i >= 0; i--) {
+			Attr attr = (Attr) attributes.item(i);
+			String name = attr.getName();
+			String value = attr.getValue();
+			boolean redundant;
+			if (INHERITED.containsKey(name)) {
+				redundant = value.equals(inherited.get(name))
+						|| (leaf && !stroked && contains(STROKE_PROPERTIES,
+								name))
+						|| (leaf && !filled && contains(FILL_PROPERTIES, name));
+			} else if ("x".equals(name) || "y".equals(name)) {
+				redundant = "0".equals(value) && !"svg".equals(tag);
+			} else if ("opacity".equals(name)) {
+				redundant = "1".equals(value);
+			} else if ("clipPathUnits".equals(name)) {
+				redundant = "userSpaceOnUse".equals(value);
+			} else if ("xml:space".equals(name)) {
+				redundant = leaf && isCollapsed(element.getTextContent());
+			} else {
+				redundant = false;
+			}
+			if (redundant) {
+				element.removeAttributeNode(attr);
+			}
+		}
+	}
+
+	private String coordinate(String value) {
+		try {
+			StringBuilder b = new StringBuilder();
+			number(b, Double.parseDouble(value));
+			return b.toString();
+		} catch (NumberFormatException e) {
+			// e.g. a percentage
+			return value;
+		}
+	}
+
+	private static boolean contains(String[] names, String name) {
+		for (String n : names) {
+			if (n.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String value(Element element, String property,
+			Map<String, String> inherited) {
+		return element.hasAttribute(property) ? element.getAttribute(property)
+				: inherited.get(property);
+	}
+
+	/**
+	 * Replaces a line element with the equivalent path, which is shorter and
+	 * can be merged with other paths.
+	 */
+	private static Element lineToPath(Element line) {
+		Element path = line.getOwnerDocument().createElementNS(
+				line.getNamespaceURI(), "path");
+		NamedNodeMap attributes = line.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			String name = attr.getName();
+			if (!name.equals("x1") && !name.equals("y1") && !name.equals("x2")
+					&& !name.equals("y2")) {
+				path.setAttributeNS(attr.getNamespaceURI(), name,
+						attr.getValue());
+			}
+		}
+		path.setAttributeNS(null, "d", "M" + attribute(line, "x1") + " "
+				+ attribute(line, "y1") + " L" + attribute(line, "x2") + " "
+				+ attribute(line, "y2"));
+		line.getParentNode().replaceChild(path, line);
+		return path;
+	}
+
+	private static String attribute(Element element, String name) {
+		String value = element.getAttribute(name);
+		return value.isEmpty() ? "0" : value;
+	}
+
+	/**
+	 * Merges adjacent child paths that are only stroked, with equal
+	 * attributes, into one path.
+	 */
+	private void mergeStrokes(Element parent, Map<String, String> inherited) {
+		Element first = null;
+		StringBuilder merged = null;
+		for (Node child = parent.getFirstChild(); child != null;) {
+			Node next = child.getNextSibling();
+			if (child.getNodeType() != Node.ELEMENT_NODE) {
+				first = endMerge(first, merged);
+			} else {
+				Element e = (Element) child;
+				if (first != null && sameAttributes(first, e)
+						&& e.getAttribute("d").startsWith("M")) {
+					if (merged == null) {
+						merged = new StringBuilder(first.getAttribute("d"));
+					}
+					merged.append(e.getAttribute("d"));
+					parent.removeChild(e);
+				} else {
+					endMerge(first, merged);
+					merged = null;
+					first = isMergeable(e, inherited) ? e : null;
+				}
+			}
+			child = next;
+		}
+		endMerge(first, merged);
+	}
+
+	private static Element endMerge(Element first, StringBuilder merged) {
+		if (first != null && merged != null) {
+			first.setAttribute("d", merged.toString());
+			first.setUserData(MARKER_PATH, null, null);
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the element is a path that looks the same when drawn
+	 *         together with another path of the same style: not filled,
+	 *         opaque and not dashed, as overlapping parts would differ
+	 *         otherwise
+	 */
+	private static boolean isMergeable(Element e, Map<String, String> inherited) {
+		return "path".equals(e.getTagName()) && !e.hasAttribute("id")
+				&& !e.hasAttribute("opacity")
+				&& "none".equals(value(e, "fill", inherited))
+				&& "1".equals(value(e, "stroke-opacity", inherited))
+				&& "none".equals(value(e, "stroke-dasharray", inherited));
+	}
+
+	private static boolean sameAttributes(Element a, Element b) {
+		NamedNodeMap attributes = a.getAttributes();
+		if (attributes.getLength() != b.getAttributes().getLength()) {
+			return false;
+		}
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			if (!attr.getName().equals("d")) {
+				Attr other = b.getAttributeNode(attr.getName());
+				if (other == null || !other.getValue().equals(attr.getValue())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the descendants of the element in document order, and the
+	 * definitions among them by id.
+	 */
+	private static void elements(Element element, List<Element> elements,
+			Map<String, Element> definitions) {
+		for (Node n = element.getFirstChild(); n != null; n = n
+				.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				Element e = (Element) n;
+				elements.add(e);
+				if (DEFINITIONS.contains(e.getTagName()) && e.hasAttribute("id")) {
+					definitions.put(e.getAttribute("id"), e);
+				}
+				elements(e, elements, definitions);
+			}
+		}
+	}
+
+	/**
+	 * Replaces references to linear gradients of zero length with the color
+	 * they paint, and makes rectangles and paths of straight lines painted
+	 * with a gradient along the x or y axis refer to a copy of the gradient
+	 * relative to their bounding box. The copies of gradients fitted to the
+	 * shapes are equal and merged by {@link #mergeDefinitions(List, Map)}.
+	 */
+	private static void simplifyGradients(List<Element> elements,
+			Map<String, Element> definitions) {
+		int copies = 0;
+		for (Element e : elements) {
+			for (String property : new String[] { "fill", "stroke" }) {
+				Element gradient = definitions.get(reference(e
+						.getAttributeNode(property)));
+				if (gradient == null
+						|| !"linearGradient".equals(gradient.getTagName())
+						|| gradient.hasAttributeNS(XLINK_NS, "href")) {
+					continue;
+				}
+				String color = zeroLengthColor(gradient);
+				if (color != null) {
+					e.setAttribute(property, color);
+					continue;
+				}
+				if (!"userSpaceOnUse".equals(gradient
+						.getAttribute("gradientUnits"))
+						|| gradient.hasAttribute("gradientTransform")) {
+					continue;
+				}
+				Rectangle2D box = bounds(e);
+				double[] vector = box == null ? null : boundingBoxGradient(
+						number(gradient, "x1"), number(gradient, "y1"),
+						number(gradient, "x2"), number(gradient, "y2"), box);
+				if (vector == null) {
+					continue;
+				}
+				Element copy = (Element) gradient.cloneNode(true);
+				String id;
+				do {
+					id = "bbox" + ++copies;
+				} while (definitions.containsKey(id));
+				copy.setAttribute("id", id);
+				copy.removeAttribute("gradientUnits");
+				String[] names = { "x1", "y1", "x2", "y2" };
+				for (int i = 0; i < names.length; i++) {
+					StringBuilder value = new StringBuilder();
+					StreamingSVGGraphics2D.number(value, vector[i]);
+					copy.setAttribute(names[i], value.toString());
+				}
+				gradient.getParentNode().insertBefore(copy,
+						gradient.getNextSibling());
+				definitions.put(id, copy);
+				e.setAttribute(property, "url(#" + id + ")");
+			}
+		}
+	}
+
+	/**
+	 * @return the color of the last stop of a linear gradient of zero length,
+	 *         which is the color it paints, or null if the gradient has a
+	 *         length or the last stop is not opaque
+	 */
+	private static String zeroLengthColor(Element gradient) {
+		if (number(gradient, "x1") != number(gradient, "x2")
+				|| number(gradient, "y1") != number(gradient, "y2")) {
+			return null;
+		}
+		Element stop = null;
+		for (Node n = gradient.getLastChild(); n != null && stop == null; n = n
+				.getPreviousSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				stop = (Element) n;
+			}
+		}
+		if (stop == null || !stop.hasAttribute("stop-color")
+				|| (stop.hasAttribute("stop-opacity") && number(stop,
+						"stop-opacity") != 1)) {
+			return null;
+		}
+		return color(stop.getAttribute("stop-color"));
+	}
+
+	/**
+	 * @return the bounding box of a rectangle or a path of straight lines,
+	 *         null for other elements
+	 */
+	private static Rectangle2D bounds(Element e) {
+		if ("rect".equals(e.getTagName())) {
+			return new Rectangle2D.Double(number(e, "x"), number(e, "y"),
+					number(e, "width"), number(e, "height"));
+		} else if ("path".equals(e.getTagName())) {
+			Path2D path = parsePath(e.getAttribute("d"));
+			return path == null ? null : lineBounds(path.getPathIterator(null));
+		}
+		return null;
+	}
+
+	/**
+	 * @return the numeric value of the attribute, 0 if it is missing and NaN
+	 *         if it is not a number
+	 */
+	private static double number(Element e, String name) {
+		String value = e.getAttribute(name);
+		try {
+			return value.isEmpty() ? 0 : Double.parseDouble(value);
+		} catch (NumberFormatException ex) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * @return the id referenced by the attribute, as url(#id) or in a link,
+	 *         or null if it is not a reference
+	 */
+	private static String reference(Attr attr) {
+		if (attr == null) {
+			return null;
+		}
+		String value = attr.getValue();
+		if (value.startsWith("url(#") && value.endsWith(")")) {
+			return value.substring(5, value.length() - 1);
+		} else if (value.startsWith("#") && "href".equals(attr.getLocalName())) {
+			return value.substring(1);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes definitions that are equal to an earlier one or not referenced
+	 * at all, updating the references.
+	 */
+	private static void mergeDefinitions(List<Element> elements,
+			Map<String, Element> definitions) {
+		Map<String, String> contents = new HashMap<String, String>();
+		Map<String, String> merged = new HashMap<String, String>();
+		for (Map.Entry<String, Element> definition : definitions.entrySet()) {
+			String content = content(definition.getValue());
+			String first = contents.get(content);
+			if (first == null) {
+				contents.put(content, definition.getKey());
+			} else {
+				merged.put(definition.getKey(), first);
+			}
+		}
+		Set<String> referenced = new HashSet<String>();
+		for (Element e : elements) {
+			NamedNodeMap attributes = e.getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attr = (Attr) attributes.item(i);
+				String id = reference(attr);
+				if (id == null) {
+					continue;
+				}
+				if (merged.containsKey(id)) {
+					id = merged.get(id);
+					attr.setValue(attr.getValue().startsWith("#") ? "#" + id
+							: "url(#" + id + ")");
+				}
+				referenced.add(id);
+			}
+		}
+		for (Map.Entry<String, Element> definition : definitions.entrySet()) {
+			if (!referenced.contains(definition.getKey())) {
+				Element e = definition.getValue();
+				Node parent = e.getParentNode();
+				parent.removeChild(e);
+				if ("defs".equals(parent.getNodeName())
+						&& !parent.hasChildNodes()) {
+					parent.getParentNode().removeChild(parent);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the element as XML without its id, equal for elements that
+	 *         define the same thing
+	 */
+	private static String content(Element element) {
+		StringBuilder b = new StringBuilder();
+		b.append(element.getTagName());
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			if (!"id".equals(attr.getName())) {
+				b.append(' ').append(attr.getName()).append('=')
+						.append(attr.getValue());
+			}
+		}
+		for (Node n = element.getFirstChild(); n != null; n = n
+				.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				try {
+					write(b, (Element) n, false, null);
+				} catch (IOException e) {
+					// nothing is written without a writer
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Replaces small paths with equal path data relative to their first point
+	 * with uses of a symbol. As the clip path of a use would move with its
+	 * position, adjacent uses with the same clip path are grouped into an
+	 * element with the clip path.
+	 *
+	 * @return true if any path was replaced
+	 */
+	private boolean drawMarkers(Element root, List<Element> elements) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Map<Element, String> shapes = new LinkedHashMap<Element, String>();
+		Map<Element, double[]> origins = new HashMap<Element, double[]>();
+		for (Element e : elements) {
+			if (!"path".equals(e.getTagName()) || e.getParentNode() == null
+					|| DEFINITIONS.contains(e.getParentNode().getNodeName())
+					|| e.hasAttribute("id")
+					|| e.getAttribute("fill").startsWith("url(")
+					|| e.getAttribute("stroke").startsWith("url(")) {
+				// the paint server would move with the symbol
+				continue;
+			}
+			String d = (String) e.getUserData(MARKER_PATH);
+			if (d != null) {
+				// the rounded path data starts at the rounded first point
+				double[] origin = new double[6];
+				parsePath(e.getAttribute("d")).getPathIterator(null)
+						.currentSegment(origin);
+				Integer count = counts.get(d);
+				counts.put(d, count == null ? 1 : count + 1);
+				shapes.put(e, d);
+				origins.put(e, origin);
+			}
+		}
+		Document document = root.getOwnerDocument();
+		Element defs = null;
+		Map<String, String> ids = new HashMap<String, String>();
+		List<Element> groups = new ArrayList<Element>();
+		for (Map.Entry<Element, String> shape : shapes.entrySet()) {
+			String d = shape.getValue();
+			if (counts.get(d) < 2) {
+				continue;
+			}
+			String id = ids.get(d);
+			if (id == null) {
+				if (defs == null) {
+					defs = document.createElementNS(SVG_NS, "defs");
+					root.insertBefore(defs, root.getFirstChild());
+				}
+				id = "marker" + (ids.size() + 1);
+				Element symbol = document.createElementNS(SVG_NS, "symbol");
+				symbol.setAttribute("id", id);
+				// the shape extends to all sides of its first point
+				symbol.setAttribute("overflow", "visible");
+				Element path = document.createElementNS(SVG_NS, "path");
+				path.setAttribute("d", d);
+				symbol.appendChild(path);
+				defs.appendChild(symbol);
+				ids.put(d, id);
+			}
+			Element e = shape.getKey();
+			Element use = document.createElementNS(SVG_NS, "use");
+			NamedNodeMap attributes = e.getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attr = (Attr) attributes.item(i);
+				if (!"d".equals(attr.getName())
+						&& !"clip-path".equals(attr.getName())) {
+					use.setAttributeNS(attr.getNamespaceURI(), attr.getName(),
+							attr.getValue());
+				}
+			}
+			use.setAttributeNS(XLINK_NS, "xlink:href", "#" + id);
+			double[] origin = origins.get(e);
+			String[] names = { "x", "y" };
+			for (int i = 0; i < names.length; i++) {
+				StringBuilder value = new StringBuilder();
+				number(value, origin[i]);
+				if (!"0".equals(value.toString())) {
+					use.setAttribute(names[i], value.toString());
+				}
+			}
+			String clip = e.getAttribute("clip-path");
+			if (clip.isEmpty()) {
+				e.getParentNode().replaceChild(use, e);
+				continue;
+			}
+			// the elements are in document order, so the group of the
+			// previous use is the last one
+			Node previous = e.getPreviousSibling();
+			Element group = groups.isEmpty() ? null : groups
+					.get(groups.size() - 1);
+			if (group == null || previous != group
+					|| !clip.equals(group.getAttribute("clip-path"))) {
+				group = document.createElementNS(SVG_NS, "g");
+				group.setAttribute("clip-path", clip);
+				groups.add(group);
+				e.getParentNode().insertBefore(group, e);
+			}
+			group.appendChild(use);
+			e.getParentNode().removeChild(e);
+		}
+		return defs != null;
+	}
+
+	/**
+	 * Moves the style properties of the elements to classes of a style sheet,
+	 * one for each distinct combination of properties.
+	 */
+	private static void styleClasses(Element root, List<Element> elements) {
+		Map<String, String> classes = new LinkedHashMap<String, String>();
+		List<String> names = new ArrayList<String>();
+		for (Element e : elements) {
+			NamedNodeMap attributes = e.getAttributes();
+			names.clear();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				String name = attributes.item(i).getNodeName();
+				if (PROPERTIES.contains(name)) {
+					names.add(name);
+				}
+			}
+			if (names.isEmpty()) {
+				continue;
+			}
+			Collections.sort(names);
+			StringBuilder declarations = new StringBuilder();
+			for (String name : names) {
+				String value = e.getAttribute(name);
+				if (declarations.length() > 0) {
+					declarations.append(';');
+				}
+				declarations.append(name).append(':').append(value);
+				if ("font-size".equals(name) && !Double.isNaN(number(e, name))) {
+					// lengths without unit are only allowed in attributes
+					declarations.append("px");
+				}
+				e.removeAttribute(name);
+			}
+			String name = styleClass(classes, declarations.toString());
+			if (e.hasAttribute("class")) {
+				name += ' ' + e.getAttribute("class");
+			}
+			e.setAttribute("class", name);
+		}
+		if (!classes.isEmpty()) {
+			Element style = root.getOwnerDocument().createElementNS(SVG_NS,
+					"style");
+			style.appendChild(root.getOwnerDocument().createTextNode(
+					styleSheet(classes)));
+			root.insertBefore(style, root.getFirstChild());
+		}
+	}
+
+	/**
+	 * Writes the document without indentation, comments or a document type
+	 * declaration.
+	 */
+	void write(Element root, Writer out) throws IOException {
+		StringBuilder b = new StringBuilder(8192);
+		b.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		write(b, root, true, out);
+		b.append('\n');
+		out.append(b);
+	}
+
+	private static void write(StringBuilder b, Element element, boolean root,
+			Writer out) throws IOException {
+		String tag = element.getTagName();
+		b.append('<').append(tag);
+		if (root) {
+			b.append(" xmlns=\"").append(SVG_NS).append("\" xmlns:xlink=\"")
+					.append(XLINK_NS).append('"');
+		}
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			String name = attr.getName();
+			if (!name.equals("xmlns") && !name.startsWith("xmlns:")) {
+				b.append(' ').append(name).append("=\"");
+				StreamingSVGGraphics2D.escape(b, attr.getValue());
+				b.append('"');
+			}
+		}
+		if (!element.hasChildNodes()) {
+			b.append("/>");
+			return;
+		}
+		b.append('>');
+		for (Node n = element.getFirstChild(); n != null; n = n
+				.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				write(b, (Element) n, false, out);
+			} else if (n.getNodeType() == Node.TEXT_NODE
+					|| n.getNodeType() == Node.CDATA_SECTION_NODE) {
+				StreamingSVGGraphics2D.escape(b, n.getNodeValue());
+			}
+		}
+		b.append("</").append(tag).append('>');
+		if (out != null && b.length() >= 8192) {
+			out.append(b);
+			b.setLength(0);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SvgMinifier)) {
+			return false;
+		}
+		SvgMinifier other = (SvgMinifier) obj;
+		return decimals == other.decimals
+				&& mergeStrokes == other.mergeStrokes
+				&& styleClasses == other.styleClasses
+				&& markers == other.markers;
+	}
+
+	@Override
+	public int hashCode() {
+		return decimals * 8 + (mergeStrokes ? 4 : 0) + (styleClasses ? 2 : 0)
+				+ (markers ? 1 : 0);
+	}
+
+	/**
+	 * @return the settings affecting the output, e.g.
+	 *         "2:merge:classes:markers"
+	 */
+	@Override
+	public String toString() {
+		return decimals + (mergeStrokes ? ":merge" : "")
+				+ (styleClasses ? ":classes" : "")
+				+ (markers ? ":markers" : "");
+	}
+}
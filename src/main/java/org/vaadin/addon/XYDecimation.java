@@ -0,0 +1,334 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.addon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.CombinedDomainXYPlot;
+import org.jfree.chart.plot.CombinedRangeXYPlot;
+import org.jfree.chart.plot.Plot;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.DeviationRenderer;
+import org.jfree.chart.renderer.xy.StandardXYItemRenderer;
+import org.jfree.chart.renderer.xy.XYAreaRenderer;
+import org.jfree.chart.renderer.xy.XYAreaRenderer2;
+import org.jfree.chart.renderer.xy.XYDotRenderer;
+import org.jfree.chart.renderer.xy.XYErrorRenderer;
+import org.jfree.chart.renderer.xy.XYItemRenderer;
+import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.chart.renderer.xy.XYStepAreaRenderer;
+import org.jfree.data.DomainOrder;
+import org.jfree.data.Range;
+import org.jfree.data.xy.AbstractXYDataset;
+import org.jfree.data.xy.XYDataset;
+
+/**
+ * Replaces the datasets of the XY plots of a chart with decimated views for
+ * the duration of one render, so that the number of drawn items depends on
+ * the size of the chart in pixels instead of the size of the data.
+ * <p>
+ * Each series is divided into one bucket per pixel column of the domain axis,
+ * and of each bucket only the first, the minimum, the maximum and the last
+ * item are kept (plus the first missing value, to keep gaps in lines). Lines
+ * and areas drawn from the kept items look the same as drawn from all items.
+ * <p>
+ * Only series with many more items than pixels, ascending x values and a
+ * renderer that draws each item independently of any interval or z values
+ * are decimated, the others are drawn as they are. The datasets of the chart
+ * are not modified, they are restored by {@link #restore()}. The plots do not
+ * send change events while their datasets are replaced. Putting the originals
+ * back does send one to every listener of the chart, once per decimated
+ * render. Wrappers and bundles of the chart ignore it, see
+ * {@link #isRestoring()}, but other listeners registered by the application
+ * receive it like a real change.
+ */
+final class XYDecimation {
+
+	// series with fewer items per pixel column are not decimated
+	private static final int MIN_ITEMS_PER_COLUMN = 4;
+
+	// set while the thread puts original datasets back; the change events are
+	// delivered synchronously, so listeners of the chart run in this thread
+	private static final ThreadLocal<Boolean> restoring = new ThreadLocal<Boolean>();
+
+	private final List<XYPlot> plots = new ArrayList<XYPlot>();
+	private final List<Integer> indexes = new ArrayList<Integer>();
+	private final List<XYDataset> originals = new ArrayList<XYDataset>();
+	private final List<Boolean> notifyFlags = new ArrayList<Boolean>();
+
+	private XYDecimation() {
+	}
+
+	/**
+	 * Replaces the datasets of the chart with decimated views where it is
+	 * worth it.
+	 * 
+	 * @param width
+	 *            the width of the chart in pixels
+	 * @param height
+	 *            the height of the chart in pixels
+	 * @return the replacement to restore after drawing, null if no dataset was
+	 *         replaced
+	 */
+	static XYDecimation apply(JFreeChart chart, int width, int height) {
+		XYDecimation decimation = new XYDecimation();
+		decimation.decimate(chart.getPlot(), width, height);
+		return decimation.plots.isEmpty() ? null : decimation;
+	}
+
+	private void decimate(Plot plot, int width, int height) {
+		if (plot instanceof CombinedDomainXYPlot) {
+			for (Object subplot : ((CombinedDomainXYPlot) plot).getSubplots()) {
+				decimate((Plot) subplot, width, height);
+			}
+		} else if (plot instanceof CombinedRangeXYPlot) {
+			for (Object subplot : ((CombinedRangeXYPlot) plot).getSubplots()) {
+				decimate((Plot) subplot, width, height);
+			}
+		} else if (plot instanceof XYPlot) {
+			XYPlot xyPlot = (XYPlot) plot;
+			int columns = xyPlot.getOrientation().isHorizontal() ? height
+					: width;
+			for (int i = 0; i < xyPlot.getDatasetCount(); i++) {
+				XYDataset dataset = xyPlot.getDataset(i);
+				XYItemRenderer renderer = xyPlot.getRendererForDataset(dataset);
+				ValueAxis axis = xyPlot.getDomainAxisForDataset(i);
+				if (dataset == null || axis == null
+						|| !isDecimatable(renderer)) {
+					continue;
+				}
+				DecimatedXYDataset view = DecimatedXYDataset.create(dataset,
+						axis.getRange(), columns);
+				if (view != null) {
+					replace(xyPlot, i, view);
+				}
+			}
+		}
+	}
+
+	private void replace(XYPlot plot, int index, XYDataset view) {
+		plots.add(plot);
+		indexes.add(index);
+		originals.add(plot.getDataset(index));
+		notifyFlags.add(plot.isNotify());
+		plot.setNotify(false);
+		plot.setDataset(index, view);
+	}
+
+	/**
+	 * Puts the original datasets back, in reverse order.
+	 */
+	void restore() {
+		restoring.set(Boolean.TRUE);
+		try {
+			for (int i = plots.size() - 1; i >= 0; i--) {
+				XYPlot plot = plots.get(i);
+				plot.setDataset(indexes.get(i), originals.get(i));
+				// sends a change event for the restored datasets
+				plot.setNotify(notifyFlags.get(i));
+			}
+		} finally {
+			restoring.remove();
+		}
+	}
+
+	/**
+	 * @return true if the current thread is putting original datasets back,
+	 *         so a change event of a chart does not change its content
+	 */
+	static boolean isRestoring() {
+		return restoring.get() != null;
+	}
+
+	/**
+	 * @return true if the renderer draws items the same way when items
+	 *         hidden by their neighbours are left out
+	 */
+	static boolean isDecimatable(XYItemRenderer renderer) {
+		if (renderer instanceof XYErrorRenderer
+				|| renderer instanceof DeviationRenderer) {
+			// also draw intervals of the items
+			return false;
+		}
+		return renderer instanceof XYLineAndShapeRenderer
+				|| renderer instanceof StandardXYItemRenderer
+				|| renderer instanceof XYAreaRenderer
+				|| renderer instanceof XYAreaRenderer2
+				|| renderer instanceof XYStepAreaRenderer
+				|| renderer instanceof XYDotRenderer;
+	}
+
+	/**
+	 * A view of the items of another dataset that survived decimation.
+	 */
+	@SuppressWarnings({ "serial", "rawtypes" })
+	static final class DecimatedXYDataset extends AbstractXYDataset {
+
+		private final XYDataset source;
+		// indexes of the kept items per series, null if all are kept
+		private final int[][] items;
+
+		private DecimatedXYDataset(XYDataset source, int[][] items) {
+			this.source = source;
+			this.items = items;
+		}
+
+		/**
+		 * @return the decimated view or null if no series of the dataset is
+		 *         worth decimating
+		 */
+		static DecimatedXYDataset create(XYDataset source, Range range,
+				int columns) {
+			if (columns <= 0 || range.getLength() <= 0
+					|| source.getDomainOrder() == DomainOrder.DESCENDING) {
+				return null;
+			}
+			int[][] items = new int[source.getSeriesCount()][];
+			boolean decimated = false;
+			for (int series = 0; series < items.length; series++) {
+				if (source.getItemCount(series) > MIN_ITEMS_PER_COLUMN
+						* columns) {
+					items[series] = decimate(source, series, range, columns);
+					decimated |= items[series] != null;
+				}
+			}
+			return decimated ? new DecimatedXYDataset(source, items) : null;
+		}
+
+		/**
+		 * @return the indexes of the kept items or null if the series can not
+		 *         be decimated, because its x values are not ascending
+		 */
+		private static int[] decimate(XYDataset source, int series,
+				Range range, int columns) {
+			int count = source.getItemCount(series);
+			double lower = range.getLowerBound();
+			double scale = columns / range.getLength();
+			int[] kept = new int[64];
+			int keptCount = 0;
+			// first, min, max, missing and last item of the current bucket
+			int[] bucket = new int[5];
+			Arrays.fill(bucket, -1);
+			int current = Integer.MIN_VALUE;
+			double previousX = Double.NEGATIVE_INFINITY;
+			double min = 0;
+			double max = 0;
+			for (int item = 0; item < count; item++) {
+				double x = source.getXValue(series, item);
+				if (!(x >= previousX)) {
+					// descending or missing x value
+					return null;
+				}
+				previousX = x;
+				// items outside the axis range share a bucket on both sides
+				int column = x < lower ? -1 : (int) Math.min(columns,
+						(x - lower) * scale);
+				double y = source.getYValue(series, item);
+				if (column != current) {
+					keptCount = flush(bucket, kept, keptCount);
+					if (keptCount + 5 > kept.length) {
+						kept = Arrays.copyOf(kept, kept.length * 2);
+					}
+					current = column;
+					Arrays.fill(bucket, -1);
+					bucket[0] = item;
+				}
+				bucket[4] = item;
+				if (Double.isNaN(y)) {
+					if (bucket[3] < 0) {
+						bucket[3] = item;
+					}
+				} else {
+					if (bucket[1] < 0 || y < min) {
+						bucket[1] = item;
+						min = y;
+					}
+					if (bucket[2] < 0 || y > max) {
+						bucket[2] = item;
+						max = y;
+					}
+				}
+			}
+			keptCount = flush(bucket, kept, keptCount);
+			return keptCount < count ? Arrays.copyOf(kept, keptCount) : null;
+		}
+
+		/**
+		 * Appends the distinct items of the bucket in ascending order.
+		 */
+		private static int flush(int[] bucket, int[] kept, int keptCount) {
+			if (bucket[0] < 0) {
+				return keptCount;
+			}
+			Arrays.sort(bucket);
+			int previous = -1;
+			for (int item : bucket) {
+				if (item > previous) {
+					kept[keptCount++] = item;
+					previous = item;
+				}
+			}
+			return keptCount;
+		}
+
+		private int sourceItem(int series, int item) {
+			return items[series] == null ? item : items[series][item];
+		}
+
+		@Override
+		public int getSeriesCount() {
+			return source.getSeriesCount();
+		}
+
+		@Override
+		public Comparable getSeriesKey(int series) {
+			return source.getSeriesKey(series);
+		}
+
+		@Override
+		public DomainOrder getDomainOrder() {
+			return source.getDomainOrder();
+		}
+
+		@Override
+		public int getItemCount(int series) {
+			return items[series] == null ? source.getItemCount(series)
+					: items[series].length;
+		}
+
+		@Override
+		public Number getX(int series, int item) {
+			return source.getX(series, sourceItem(series, item));
+		}
+
+		@Override
+		public double getXValue(int series, int item) {
+			return source.getXValue(series, sourceItem(series, item));
+		}
+
+		@Override
+		public Number getY(int series, int item) {
+			return source.getY(series, sourceItem(series, item));
+		}
+
+		@Override
+		public double getYValue(int series, int item) {
+			return source.getYValue(series, sourceItem(series, item));
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Client side of org.vaadin.addon.HiDpiPng: offers the images of the extended
+ * PNG chart rendered for high density displays in the srcset of the image.
+ */
+window.org_vaadin_addon_HiDpiPng = function() {
+	var connector = this;
+
+	function getImage() {
+		var element = connector.getElement(connector.getParentId());
+		if (!element) {
+			return null;
+		}
+		return element.tagName.toLowerCase() === "img" ? element : element
+				.querySelector("img");
+	}
+
+	function update() {
+		var image = getImage();
+		if (!image) {
+			return;
+		}
+		var state = connector.getState();
+		var candidates = [];
+		for (var i = 0; i < state.descriptors.length; i++) {
+			var descriptor = state.descriptors[i];
+			var resource = state.resources[descriptor];
+			if (resource) {
+				candidates.push(connector.translateVaadinUri(resource.uRL)
+						+ " " + descriptor);
+			}
+		}
+		// the source of the image is the candidate of ratio 1
+		if (candidates.length > 0) {
+			image.setAttribute("srcset", candidates.join(", "));
+		} else {
+			image.removeAttribute("srcset");
+		}
+	}
+
+	this.onStateChange = function() {
+		update();
+		// the chart may replace its image after this in the same response
+		setTimeout(update, 0);
+	};
+};
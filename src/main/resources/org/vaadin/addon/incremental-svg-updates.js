@@ -0,0 +1,80 @@
+/*
+ * Client side of org.vaadin.addon.IncrementalSvgUpdates: patches the SVG
+ * document shown by the extended chart with the elements changed on the
+ * server.
+ */
+window.org_vaadin_addon_IncrementalSvgUpdates = function() {
+	var connector = this;
+	var SVG_NS = "http://www.w3.org/2000/svg";
+	var XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	function getObject() {
+		var element = connector.getElement(connector.getParentId());
+		if (!element) {
+			return null;
+		}
+		return element.tagName.toLowerCase() === "object" ? element : element
+				.querySelector("object");
+	}
+
+	function getRoot(object) {
+		try {
+			var doc = object && object.contentDocument;
+			return doc ? doc.documentElement : null;
+		} catch (e) {
+			// not accessible
+			return null;
+		}
+	}
+
+	// downloads the whole chart again, the server serves the latest version
+	function reload(object) {
+		if (object && object.parentNode) {
+			object.parentNode.replaceChild(object.cloneNode(true), object);
+		}
+	}
+
+	function parse(doc, markup) {
+		var parsed = new DOMParser().parseFromString("<svg xmlns=\"" + SVG_NS
+				+ "\" xmlns:xlink=\"" + XLINK_NS + "\">" + markup + "</svg>",
+				"image/svg+xml");
+		var nodes = [];
+		var child = parsed.documentElement.firstElementChild;
+		while (child) {
+			nodes.push(doc.importNode(child, true));
+			child = child.nextElementSibling;
+		}
+		return nodes;
+	}
+
+	/*
+	 * Applies the hunks [start, deleteCount, markup] that turn version
+	 * baseVersion of the chart into newVersion. Indexes refer to the child
+	 * elements of the base version, hunks are in ascending order.
+	 */
+	this.update = function(baseVersion, newVersion, hunks) {
+		var object = getObject();
+		var root = getRoot(object);
+		if (!root || root.getAttribute("data-version") !== baseVersion) {
+			reload(object);
+			return;
+		}
+		var doc = root.ownerDocument;
+		var children = Array.prototype.slice.call(root.children);
+		// from the end, so that the indexes of earlier hunks stay valid
+		for (var i = hunks.length - 1; i >= 0; i--) {
+			var start = hunks[i][0];
+			var deleteCount = hunks[i][1];
+			var next = start + deleteCount < children.length ? children[start
+					+ deleteCount] : null;
+			for (var j = start; j < start + deleteCount; j++) {
+				root.removeChild(children[j]);
+			}
+			var nodes = parse(doc, hunks[i][2]);
+			for (var n = 0; n < nodes.length; n++) {
+				root.insertBefore(nodes[n], next);
+			}
+		}
+		root.setAttribute("data-version", newVersion);
+	};
+};
@@ -0,0 +1,49 @@
+/*
+ * Client side of org.vaadin.addon.LazyChartLoading: tells the server when the
+ * extended chart comes near the viewport.
+ */
+window.org_vaadin_addon_LazyChartLoading = function() {
+	var connector = this;
+	var observer = null;
+
+	function disconnect() {
+		if (observer) {
+			observer.disconnect();
+			observer = null;
+		}
+	}
+
+	function observe() {
+		var state = connector.getState();
+		if (state.shown) {
+			disconnect();
+			return;
+		}
+		if (observer) {
+			return;
+		}
+		var element = connector.getElement(connector.getParentId());
+		if (!element) {
+			return;
+		}
+		if (!window.IntersectionObserver) {
+			connector.visible();
+			return;
+		}
+		observer = new IntersectionObserver(function(entries) {
+			for (var i = 0; i < entries.length; i++) {
+				if (entries[i].isIntersecting) {
+					disconnect();
+					connector.visible();
+					return;
+				}
+			}
+		}, {
+			rootMargin : state.margin + "px"
+		});
+		observer.observe(element);
+	}
+
+	this.onStateChange = observe;
+	this.onUnregister = disconnect;
+};
@@ -0,0 +1,1670 @@
+package org.vaadin.addon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartRenderingInfo;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.chart.renderer.category.StandardBarPainter;
+import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.XYSeriesCollection;
+import org.junit.Test;
+import org.vaadin.addon.ChartRenderEvent.Phase;
+import org.vaadin.addon.JFreeChartWrapper.ModeReason;
+import org.vaadin.addon.JFreeChartWrapper.RenderingMode;
+import org.vaadin.addon.JFreeChartWrapper.SvgBackend;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.vaadin.server.ClientConnector;
+import com.vaadin.server.ClientMethodInvocation;
+import com.vaadin.server.DefaultDeploymentConfiguration;
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.Resource;
+import com.vaadin.server.StreamResource;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.ServiceException;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinServlet;
+import com.vaadin.server.VaadinServletService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.VerticalLayout;
+import com.vaadin.util.CurrentInstance;
+
+public class JFreeChartWrapperTest {
+
+	/**
+	 * Chart that counts how many times it has been drawn.
+	 */
+	@SuppressWarnings("serial")
+	static class CountingChart extends JFreeChart {
+
+		int draws;
+
+		CountingChart() {
+			super(createPlot());
+		}
+
+		@Override
+		public void draw(Graphics2D g2, Rectangle2D chartArea, Point2D anchor,
+				ChartRenderingInfo info) {
+			draws++;
+			super.draw(g2, chartArea, anchor, info);
+		}
+
+		private static XYPlot createPlot() {
+			XYSeries series = new XYSeries("test");
+			for (int i = 0; i < 10; i++) {
+				series.add(i, i * i);
+			}
+			return new XYPlot(new XYSeriesCollection(series), new NumberAxis(
+					"X"), new NumberAxis("Y"), new XYLineAndShapeRenderer());
+		}
+	}
+
+	/**
+	 * Wrapper exposing the resource registered for the browser.
+	 */
+	@SuppressWarnings("serial")
+	static class SourceWrapper extends JFreeChartWrapper {
+
+		SourceWrapper(JFreeChart chart) {
+			super(chart, RenderingMode.SVG);
+		}
+
+		@Override
+		public Resource getResource(String key) {
+			return super.getResource(key);
+		}
+	}
+
+	private static int download(JFreeChartWrapper wrapper) throws IOException {
+		StreamResource resource = (StreamResource) wrapper.getSource();
+		DownloadStream stream = resource.getStream();
+		assertEquals(stream.getBufferSize(), resource.getBufferSize());
+		InputStream in = stream.getStream();
+		int size = 0;
+		while (in.read() != -1) {
+			size++;
+		}
+		return size;
+	}
+
+	@Test
+	public void svgDownloadDrawsChartOnce() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		assertTrue(download(wrapper) > 0);
+		assertEquals(1, chart.draws);
+	}
+
+	@Test
+	public void gzippedSvgDownloadDrawsChartOnce() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		wrapper.setGzipCompression(true);
+		assertTrue(download(wrapper) > 0);
+		assertEquals(1, chart.draws);
+	}
+
+	@Test
+	public void pngDownloadDrawsChartOnce() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.PNG);
+		assertTrue(download(wrapper) > 0);
+		assertEquals(1, chart.draws);
+	}
+
+	@Test
+	public void repeatedDownloadIsServedFromCache() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		int size = download(wrapper);
+		assertEquals(size, download(wrapper));
+		assertEquals(1, chart.draws);
+
+		wrapper.setGraphWidth(400);
+		download(wrapper);
+		assertEquals(2, chart.draws);
+	}
+
+	@Test
+	public void chartChangeInvalidatesCache() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		download(wrapper);
+		chart.setTitle("Changed");
+		download(wrapper);
+		assertEquals(2, chart.draws);
+
+		wrapper.markAsDirty();
+		download(wrapper);
+		assertEquals(3, chart.draws);
+	}
+
+	@Test
+	public void disabledCacheRendersEveryDownload() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.PNG);
+		wrapper.setRenderCacheSize(0);
+		download(wrapper);
+		download(wrapper);
+		assertEquals(2, chart.draws);
+	}
+
+	@Test
+	public void streamingBackendProducesWellFormedSvg() throws Exception {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		wrapper.setSvgBackend(SvgBackend.STREAMING);
+		StreamResource resource = (StreamResource) wrapper.getSource();
+		Document document = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder()
+				.parse(resource.getStream().getStream());
+		assertEquals("svg", document.getDocumentElement().getTagName());
+		assertTrue(document.getElementsByTagName("path").getLength() > 0);
+		assertEquals(1, chart.draws);
+	}
+
+	@Test
+	public void conditionalRequestForUnchangedChartIsNotRendered()
+			throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		wrapper.setRenderCacheSize(0);
+		StreamResource resource = (StreamResource) wrapper.getSource();
+		String etag = resource.getStream().getParameter("ETag");
+		assertTrue(etag.startsWith("\""));
+		assertEquals(1, chart.draws);
+
+		CurrentInstance.set(VaadinRequest.class,
+				requestWithHeader("If-None-Match", etag));
+		try {
+			DownloadStream notModified = resource.getStream();
+			assertNull(notModified.getStream());
+			assertEquals(etag, notModified.getParameter("ETag"));
+			assertEquals(1, chart.draws);
+
+			chart.setTitle("Changed");
+			DownloadStream modified = resource.getStream();
+			assertTrue(modified.getStream() != null);
+			assertTrue(!etag.equals(modified.getParameter("ETag")));
+			assertEquals(2, chart.draws);
+		} finally {
+			CurrentInstance.set(VaadinRequest.class, null);
+		}
+	}
+
+	@Test
+	public void gzipVariantIsNegotiatedAndCompressedOnce() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		wrapper.setGzipCompression(true);
+		StreamResource resource = (StreamResource) wrapper.getSource();
+
+		DownloadStream identity = resource.getStream();
+		assertNull(identity.getParameter("Content-Encoding"));
+		assertEquals('<', identity.getStream().read());
+
+		CurrentInstance.set(VaadinRequest.class,
+				requestWithHeader("Accept-Encoding", "deflate, gzip"));
+		try {
+			DownloadStream gzipped = resource.getStream();
+			assertEquals("gzip", gzipped.getParameter("Content-Encoding"));
+			assertEquals(0x1f, gzipped.getStream().read());
+			assertTrue(!identity.getParameter("ETag").equals(
+					gzipped.getParameter("ETag")));
+		} finally {
+			CurrentInstance.set(VaadinRequest.class, null);
+		}
+		assertEquals(1, chart.draws);
+	}
+
+	@Test
+	public void explicitGzipEntryTakesPrecedenceOverWildcard() {
+		assertTrue(JFreeChartWrapper.acceptsGzip("gzip, deflate"));
+		assertTrue(JFreeChartWrapper.acceptsGzip("deflate;q=1, *;q=0.5"));
+		assertTrue(JFreeChartWrapper.acceptsGzip("*;q=0, gzip;q=0.8"));
+		assertFalse(JFreeChartWrapper.acceptsGzip("*;q=0.5, gzip;q=0"));
+		assertFalse(JFreeChartWrapper.acceptsGzip("gzip;q=0, *"));
+		assertFalse(JFreeChartWrapper.acceptsGzip("deflate, *;q=0"));
+		assertFalse(JFreeChartWrapper.acceptsGzip("identity"));
+		assertFalse(JFreeChartWrapper.acceptsGzip(null));
+	}
+
+	private static VaadinRequest requestWithHeader(final String name,
+			final String value) {
+		return (VaadinRequest) Proxy.newProxyInstance(
+				JFreeChartWrapperTest.class.getClassLoader(),
+				new Class<?>[] { VaadinRequest.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getHeader")
+								&& name.equals(args[0])) {
+							return value;
+						}
+						return null;
+					}
+				});
+	}
+
+	private static VaadinResponse responseTo(final OutputStream out) {
+		return (VaadinResponse) Proxy.newProxyInstance(
+				JFreeChartWrapperTest.class.getClassLoader(),
+				new Class<?>[] { VaadinResponse.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getOutputStream")) {
+							return out;
+						}
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void renderListenerReceivesTimingsAndSizes() throws IOException {
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.PNG);
+		ChartRenderStatistics statistics = new ChartRenderStatistics();
+		final List<ChartRenderEvent> events = new ArrayList<ChartRenderEvent>();
+		wrapper.addRenderListener(statistics);
+		wrapper.addRenderListener(events::add);
+
+		int size = download(wrapper);
+		download(wrapper);
+
+		assertEquals(2, events.size());
+		ChartRenderEvent miss = events.get(0);
+		assertFalse(miss.isCacheHit());
+		assertEquals(RenderingMode.PNG, miss.getMode());
+		assertEquals(size, miss.getPayloadBytes());
+		assertTrue(miss.getNanos(Phase.DRAW) > 0);
+		assertTrue(miss.getNanos(Phase.ENCODE) > 0);
+		assertEquals(0, miss.getNanos(Phase.SERIALIZE));
+		assertTrue(events.get(1).isCacheHit());
+
+		assertEquals(1, statistics.getCacheMissCount());
+		assertEquals(1, statistics.getCacheHitCount());
+		assertEquals(miss.getTotalNanos(), statistics.getRenderTimes()
+				.getMax());
+		assertEquals(size, statistics.getPayloadSizes().getPercentile(50));
+	}
+
+	@Test
+	public void histogramPercentilesAreWithinBucketPrecision() {
+		ChartRenderStatistics.Histogram histogram = new ChartRenderStatistics.Histogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p99 >= 990000 && p99 <= 1000000);
+		assertEquals(1000000, histogram.getPercentile(100));
+		assertEquals(500500.0, histogram.getMean(), 0.001);
+	}
+
+	private static JFreeChart createLargeXYChart(XYSeriesCollection dataset) {
+		XYSeries series = new XYSeries("large");
+		Random random = new Random(1);
+		double y = 0;
+		for (int i = 0; i < 100000; i++) {
+			y += random.nextGaussian();
+			series.add(i, y, false);
+		}
+		dataset.addSeries(series);
+		return new JFreeChart(new XYPlot(dataset, new NumberAxis("X"),
+				new NumberAxis("Y"), new XYLineAndShapeRenderer(true, false)));
+	}
+
+	@Test
+	public void decimationShrinksLargeSeriesWithoutChangingDataset()
+			throws IOException {
+		XYSeriesCollection dataset = new XYSeriesCollection();
+		JFreeChart chart = createLargeXYChart(dataset);
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		wrapper.setSvgBackend(SvgBackend.STREAMING);
+		ChartRenderStatistics statistics = new ChartRenderStatistics();
+		wrapper.addRenderListener(statistics);
+		int full = download(wrapper);
+
+		wrapper.setDataDecimation(true);
+		int decimated = download(wrapper);
+		assertTrue(decimated * 10 < full);
+		assertSame(dataset, ((XYPlot) chart.getPlot()).getDataset());
+		assertEquals(100000, dataset.getItemCount(0));
+
+		// restoring the dataset does not invalidate the rendered chart
+		download(wrapper);
+		assertEquals(2, statistics.getCacheMissCount());
+		assertEquals(1, statistics.getCacheHitCount());
+	}
+
+	@Test
+	public void decimationDoesNotInvalidateOtherWrappersOfTheChart()
+			throws IOException {
+		JFreeChart chart = createLargeXYChart(new XYSeriesCollection());
+		JFreeChartWrapper first = new JFreeChartWrapper(chart,
+				RenderingMode.PNG);
+		JFreeChartWrapper second = new JFreeChartWrapper(chart,
+				RenderingMode.PNG);
+		ChartRenderStatistics statistics = new ChartRenderStatistics();
+		for (JFreeChartWrapper wrapper : Arrays.asList(first, second)) {
+			wrapper.setDataDecimation(true);
+			wrapper.addRenderListener(statistics);
+		}
+		for (int round = 0; round < 3; round++) {
+			download(first);
+			download(second);
+		}
+		assertEquals(2, statistics.getCacheMissCount());
+		assertEquals(4, statistics.getCacheHitCount());
+	}
+
+	@Test
+	public void decimatedChartLooksLikeFullChart() throws IOException {
+		// without antialiasing overlapping lines do not blend
+		JFreeChart fullChart = createLargeXYChart(new XYSeriesCollection());
+		fullChart.setAntiAlias(false);
+		JFreeChart decimatedChart = createLargeXYChart(new XYSeriesCollection());
+		decimatedChart.setAntiAlias(false);
+		JFreeChartWrapper full = new JFreeChartWrapper(fullChart,
+				RenderingMode.PNG);
+		JFreeChartWrapper decimated = new JFreeChartWrapper(decimatedChart,
+				RenderingMode.PNG);
+		decimated.setDataDecimation(true);
+
+		BufferedImage expected = ImageIO.read(((StreamResource) full
+				.getSource()).getStream().getStream());
+		BufferedImage actual = ImageIO.read(((StreamResource) decimated
+				.getSource()).getStream().getStream());
+		int differences = 0;
+		for (int x = 0; x < expected.getWidth(); x++) {
+			for (int y = 0; y < expected.getHeight(); y++) {
+				if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+					differences++;
+				}
+			}
+		}
+		assertTrue(differences < expected.getWidth() * expected.getHeight()
+				/ 100);
+	}
+
+	private static String[] apply(String[] a,
+			List<IncrementalSvgUpdates.Hunk> hunks) {
+		List<String> result = new ArrayList<String>(Arrays.asList(a));
+		for (int i = hunks.size() - 1; i >= 0; i--) {
+			IncrementalSvgUpdates.Hunk hunk = hunks.get(i);
+			for (int j = 0; j < hunk.deleteCount; j++) {
+				result.remove(hunk.start);
+			}
+			String[] inserted = IncrementalSvgUpdates.Document.parse("<svg>"
+					+ hunk.markup + "</svg>").elements;
+			result.addAll(hunk.start, Arrays.asList(inserted));
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	@Test
+	public void elementDiffTurnsOldVersionIntoNewVersion() {
+		Random random = new Random(3);
+		for (int round = 0; round < 200; round++) {
+			List<String> a = new ArrayList<String>();
+			for (int i = 0; i < random.nextInt(50); i++) {
+				a.add("<path d=\"M" + random.nextInt(20) + "\"/>");
+			}
+			List<String> b = new ArrayList<String>(a);
+			for (int edit = 0; edit < random.nextInt(8); edit++) {
+				int index = random.nextInt(b.size() + 1);
+				if (random.nextBoolean() && index < b.size()) {
+					b.remove(index);
+				} else {
+					b.add(index, "<text x=\"" + random.nextInt(20)
+							+ "\">a</text>");
+				}
+			}
+			String[] from = a.toArray(new String[a.size()]);
+			String[] to = b.toArray(new String[b.size()]);
+			List<IncrementalSvgUpdates.Hunk> hunks = IncrementalSvgUpdates
+					.diff(from, to, 500);
+			assertArrayEquals(to, apply(from, hunks));
+		}
+		assertNull(IncrementalSvgUpdates.diff(new String[] { "<a/>" },
+				new String[] { "<b/>" }, 1));
+	}
+
+	@Test
+	public void changedChartIsSentAsIncrementalUpdate() {
+		XYSeries series = new XYSeries("live");
+		for (int i = 0; i < 50; i++) {
+			series.add(i, i % 7);
+		}
+		NumberAxis xAxis = new NumberAxis("X");
+		xAxis.setRange(0, 100);
+		NumberAxis yAxis = new NumberAxis("Y");
+		yAxis.setRange(0, 10);
+		JFreeChart chart = new JFreeChart(new XYPlot(new XYSeriesCollection(
+				series), xAxis, yAxis, new XYLineAndShapeRenderer()));
+		SourceWrapper wrapper = new SourceWrapper(chart);
+		wrapper.setSvgBackend(SvgBackend.STREAMING);
+		IncrementalSvgUpdates updates = IncrementalSvgUpdates.extend(wrapper);
+		wrapper.beforeClientResponse(true);
+		updates.retrievePendingRpcCalls();
+		Resource source = wrapper.getResource("src");
+
+		series.add(50, 3);
+		wrapper.markAsDirty();
+		wrapper.beforeClientResponse(false);
+
+		// the browser keeps the downloaded chart and gets the new elements
+		assertSame(source, wrapper.getResource("src"));
+		List<ClientMethodInvocation> calls = updates.retrievePendingRpcCalls();
+		assertEquals(1, calls.size());
+		String call = Arrays.deepToString(calls.get(0).getParameters());
+		assertTrue(call.contains("update"));
+		assertTrue(call.length() < 2000);
+
+		// a new size can not be patched
+		wrapper.setGraphWidth(400);
+		wrapper.markAsDirty();
+		wrapper.beforeClientResponse(false);
+		assertNotSame(source, wrapper.getResource("src"));
+		assertTrue(updates.retrievePendingRpcCalls().isEmpty());
+
+		// style classes are numbered per render, such charts are downloaded
+		// without rendering them for a comparison
+		wrapper.setSvgMinifier(new SvgMinifier(2, false, true));
+		wrapper.markAsDirty();
+		wrapper.beforeClientResponse(false);
+		Resource minified = wrapper.getResource("src");
+		ChartRenderStatistics statistics = new ChartRenderStatistics();
+		wrapper.addRenderListener(statistics);
+		series.add(60, 4);
+		wrapper.markAsDirty();
+		wrapper.beforeClientResponse(false);
+		assertNotSame(minified, wrapper.getResource("src"));
+		assertTrue(updates.retrievePendingRpcCalls().isEmpty());
+		assertEquals(0, statistics.getCacheMissCount());
+	}
+
+	private static int[] renderPixels(JFreeChart chart) throws IOException {
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.PNG);
+		BufferedImage image = ImageIO.read(((StreamResource) wrapper
+				.getSource()).getStream().getStream());
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null,
+				0, image.getWidth());
+	}
+
+	@Test
+	public void pooledImagesDoNotShowPreviousCharts() throws IOException {
+		PngBufferPool pool = PngBufferPool.getInstance();
+		JFreeChart transparent = new CountingChart();
+		transparent.setBackgroundPaint(null);
+		transparent.getPlot().setBackgroundPaint(null);
+
+		pool.setMaxSizeInBytes(0);
+		int[] expected = renderPixels(transparent);
+		pool.setMaxSizeInBytes(PngBufferPool.DEFAULT_MAX_BYTES);
+		try {
+			renderPixels(new CountingChart());
+			long hits = pool.getHitCount();
+			assertArrayEquals(expected, renderPixels(transparent));
+			assertEquals(hits + 1, pool.getHitCount());
+		} finally {
+			pool.clear();
+		}
+	}
+
+	private static BufferedImage createImage(int colors, boolean translucent) {
+		Random random = new Random(colors);
+		int[] palette = new int[colors];
+		for (int i = 0; i < colors; i++) {
+			palette[i] = random.nextInt() | (translucent ? 0 : 0xff000000);
+		}
+		if (translucent) {
+			palette[0] = 0;
+		}
+		BufferedImage image = new BufferedImage(67, 41,
+				BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, palette[random.nextInt(colors)]);
+			}
+		}
+		return image;
+	}
+
+	@Test
+	public void pngEncoderOutputDecodesToSamePixels() throws IOException {
+		BufferedImage[] images = { createImage(5000, false),
+				createImage(5000, true), createImage(7, false),
+				createImage(7, true) };
+		for (BufferedImage image : images) {
+			int w = image.getWidth();
+			int h = image.getHeight();
+			int[] expected = image.getRGB(0, 0, w, h, null, 0, w);
+			for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+				for (boolean palette : new boolean[] { false, true }) {
+					PngEncoder encoder = new PngEncoder(6, filter, palette);
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					encoder.encode(image, out);
+					BufferedImage decoded = ImageIO
+							.read(new ByteArrayInputStream(out.toByteArray()));
+					assertArrayEquals(encoder + " " + image, expected,
+							decoded.getRGB(0, 0, w, h, null, 0, w));
+					boolean fewColors = image == images[2]
+							|| image == images[3];
+					assertEquals(palette && fewColors,
+							decoded.getColorModel() instanceof IndexColorModel);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void parallelDeflateProducesValidStreams() throws IOException {
+		ParallelDeflater deflater = ParallelDeflater.getInstance();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		deflater.setPool(pool);
+		deflater.setThreshold(0);
+		try {
+			StringBuilder text = new StringBuilder();
+			Random random = new Random(1);
+			while (text.length() < 5 * ParallelDeflater.BLOCK_SIZE / 2) {
+				text.append("<path d=\"M").append(random.nextInt(1000))
+						.append(" ").append(random.nextInt(1000))
+						.append("\"/>\n");
+			}
+			byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+			byte[] gzip = deflater.gzip(data);
+			assertArrayEquals(data, readFully(new GZIPInputStream(
+					new ByteArrayInputStream(gzip))));
+			assertTrue(gzip.length < data.length / 2);
+			// blocks are joined at empty stored blocks of sync flushes
+			assertTrue(new String(gzip, StandardCharsets.ISO_8859_1)
+					.contains("\u0000\u0000\u00ff\u00ff"));
+
+			ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+			deflater.zlib(data, 7, data.length - 7, 6, zlib);
+			assertArrayEquals(Arrays.copyOfRange(data, 7, data.length),
+					readFully(new InflaterInputStream(new ByteArrayInputStream(
+							zlib.toByteArray()))));
+
+			// larger than two blocks of image data
+			int w = 300;
+			int h = 250;
+			BufferedImage image = new BufferedImage(w, h,
+					BufferedImage.TYPE_INT_ARGB);
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					image.setRGB(x, y, random.nextInt(8) * 0x10203040);
+				}
+			}
+			PngBufferPool buffers = PngBufferPool.getInstance();
+			buffers.clear();
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			new PngEncoder(6, PngEncoder.Filter.SUB, false).encode(image, png);
+			assertArrayEquals(image.getRGB(0, 0, w, h, null, 0, w), ImageIO
+					.read(new ByteArrayInputStream(png.toByteArray())).getRGB(
+							0, 0, w, h, null, 0, w));
+			// the filtered rows are kept for the next image
+			long pooled = buffers.getSizeInBytes();
+			assertEquals(h * (1 + 4L * w), pooled);
+
+			BufferedImage smaller = image.getSubimage(0, 0, w, h - 10);
+			png.reset();
+			new PngEncoder(6, PngEncoder.Filter.SUB, false).encode(smaller,
+					png);
+			assertArrayEquals(smaller.getRGB(0, 0, w, h - 10, null, 0, w),
+					ImageIO.read(new ByteArrayInputStream(png.toByteArray()))
+							.getRGB(0, 0, w, h - 10, null, 0, w));
+			assertEquals(pooled, buffers.getSizeInBytes());
+		} finally {
+			deflater.setThreshold(ParallelDeflater.DEFAULT_THRESHOLD);
+			deflater.setPool(null);
+			pool.shutdown();
+			PngBufferPool.getInstance().clear();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Creates a session of the service, locked by the current thread, that
+	 * gives out connector ids without a running service.
+	 */
+	private static VaadinSession createLockedSession(VaadinService service) {
+		final ReentrantLock lock = new ReentrantLock();
+		VaadinSession session = new VaadinSession(service) {
+
+			private int connectors;
+
+			@Override
+			public Lock getLockInstance() {
+				return lock;
+			}
+
+			@Override
+			public String createConnectorId(ClientConnector connector) {
+				return Integer.toString(connectors++);
+			}
+		};
+		session.lock();
+		return session;
+	}
+
+	/**
+	 * Creates a service that is not initialized, enough for the
+	 * {@link SharedChartCache} of its sessions.
+	 */
+	private static VaadinService createService() throws ServiceException {
+		return new VaadinServletService(new VaadinServlet(),
+				new DefaultDeploymentConfiguration(JFreeChartWrapperTest.class,
+						new Properties()));
+	}
+
+	private static void unlock(VaadinSession session) {
+		// without a running service there are no pending access tasks to run
+		session.getLockInstance().unlock();
+	}
+
+	private static UI createUI(VaadinSession session) {
+		UI ui = new UI() {
+
+			@Override
+			protected void init(VaadinRequest request) {
+			}
+		};
+		ui.setSession(session);
+		return ui;
+	}
+
+	@Test
+	public void batchRendererFillsCachesOfAttachedWrappers()
+			throws IOException {
+		VaadinSession session = createLockedSession(null);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			UI ui = createUI(session);
+			VerticalLayout dashboard = new VerticalLayout();
+			ui.setContent(dashboard);
+			CountingChart shared = new CountingChart();
+			CountingChart single = new CountingChart();
+			JFreeChartWrapper small = new JFreeChartWrapper(shared,
+					RenderingMode.SVG);
+			small.setGraphWidth(300);
+			JFreeChartWrapper large = new JFreeChartWrapper(shared,
+					RenderingMode.SVG);
+			JFreeChartWrapper png = new JFreeChartWrapper(single,
+					RenderingMode.PNG);
+			JFreeChartWrapper detached = new JFreeChartWrapper(
+					new CountingChart(), RenderingMode.SVG);
+			dashboard.addComponents(small, large, png);
+
+			List<JFreeChartWrapper> wrappers = Arrays.asList(small, large,
+					png, detached);
+			assertEquals(3, new ChartBatchRenderer(pool).render(wrappers));
+			assertEquals(2, shared.draws);
+			assertEquals(1, single.draws);
+
+			// requests are served from the caches
+			download(small);
+			download(large);
+			download(png);
+			assertEquals(2, shared.draws);
+			assertEquals(1, single.draws);
+			assertEquals(0, new ChartBatchRenderer(pool).render(wrappers));
+		} finally {
+			pool.shutdown();
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void bundleDrawsChartsAsSymbolsOfOneDocument() throws Exception {
+		ChartBundle bundle = new ChartBundle(2);
+		bundle.setGap(10);
+		bundle.setGzipCompression(true);
+		for (int i = 0; i < 3; i++) {
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(
+					new CountingChart(), RenderingMode.SVG);
+			wrapper.setGraphWidth(300 + i * 100);
+			wrapper.setGraphHeight(200);
+			bundle.addChart(wrapper);
+		}
+		bundle.beforeClientResponse(true);
+		StreamResource source = (StreamResource) bundle.getSource();
+		DownloadStream stream = source.getStream();
+		assertEquals("Accept-Encoding", stream.getParameter("Vary"));
+		Document document = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().parse(stream.getStream());
+		assertEquals("0 0 910 410", document.getDocumentElement()
+				.getAttribute("viewBox"));
+		assertEquals(3, document.getElementsByTagName("symbol").getLength());
+		assertEquals(3, document.getElementsByTagName("use").getLength());
+		assertEquals("510", ((org.w3c.dom.Element) document
+				.getElementsByTagName("use").item(1)).getAttribute("x"));
+		// ids of clip paths must not clash between the charts
+		Set<String> ids = new HashSet<String>();
+		NodeList clipPaths = document.getElementsByTagName("clipPath");
+		for (int i = 0; i < clipPaths.getLength(); i++) {
+			assertTrue(ids.add(((org.w3c.dom.Element) clipPaths.item(i))
+					.getAttribute("id")));
+		}
+		assertTrue(clipPaths.getLength() > 3);
+
+		// a changed chart gives the document a new address
+		bundle.beforeClientResponse(false);
+		assertSame(source, bundle.getSource());
+		((CountingChart) bundle.getCharts().get(1).getChart()).setTitle("new");
+		bundle.beforeClientResponse(false);
+		assertNotSame(source, bundle.getSource());
+	}
+
+	@Test
+	public void decimatedRenderDoesNotInvalidateBundle() throws IOException {
+		VaadinSession session = createLockedSession(null);
+		try {
+			XYSeriesCollection dataset = new XYSeriesCollection();
+			JFreeChart chart = createLargeXYChart(dataset);
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.PNG);
+			wrapper.setDataDecimation(true);
+			ChartBundle bundle = new ChartBundle(1);
+			bundle.addChart(wrapper);
+			UI ui = createUI(session);
+			ui.setContent(bundle);
+			ui.getConnectorTracker().markAllConnectorsClean();
+
+			assertTrue(download(wrapper) > 0);
+			assertFalse(ui.getConnectorTracker().isDirty(bundle));
+			assertSame(dataset, chart.getXYPlot().getDataset());
+
+			// real changes are still sent
+			dataset.getSeries(0).add(100000, 0);
+			assertTrue(ui.getConnectorTracker().isDirty(bundle));
+		} finally {
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void lazyChartIsSentWhenItComesIntoView() throws IOException {
+		CountingChart chart = new CountingChart();
+		SourceWrapper wrapper = new SourceWrapper(chart);
+		LazyChartLoading lazy = LazyChartLoading.extend(wrapper);
+		wrapper.beforeClientResponse(true);
+		assertNull(wrapper.getResource("src"));
+
+		chart.setTitle("changed while out of view");
+		wrapper.beforeClientResponse(false);
+		assertNull(wrapper.getResource("src"));
+		assertEquals(0, chart.draws);
+
+		lazy.show();
+		assertTrue(lazy.isShown());
+		wrapper.beforeClientResponse(false);
+		assertEquals(wrapper.getSource(), wrapper.getResource("src"));
+		download(wrapper);
+		assertEquals(1, chart.draws);
+	}
+
+	@Test
+	public void minifierWritesCompactPathData() {
+		Path2D.Double path = new Path2D.Double();
+		// the point on the top edge and the closing line are left out
+		path.moveTo(10, 20);
+		path.lineTo(25, 20);
+		path.lineTo(40, 20);
+		path.lineTo(40, 60);
+		path.lineTo(10, 60);
+		path.lineTo(10, 20);
+		path.closePath();
+		path.moveTo(50.004, 0.5);
+		path.lineTo(49.5, -0.25);
+		path.curveTo(49.5, 1, 50, 1.5, 50.5, 1.5);
+		StringBuilder d = new StringBuilder();
+		new SvgMinifier(2, true).path(d, path.getPathIterator(null));
+		assertEquals("M10 20h30v40H10ZM50 .5l-.5-.75c0 1.25.5 1.75 1 1.75",
+				d.toString());
+
+		StringBuilder parsed = new StringBuilder();
+		new SvgMinifier(2, true).path(parsed, SvgMinifier
+				.parsePath(d.toString()).getPathIterator(null));
+		assertEquals(d.toString(), parsed.toString());
+	}
+
+	@Test
+	public void minifiedSvgIsSmallerWithMergedLines() throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		// Batik declares a document type with an external DTD
+		factory.setFeature(
+				"http://apache.org/xml/features/nonvalidating/load-external-dtd",
+				false);
+		for (SvgBackend backend : SvgBackend.values()) {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			wrapper.setSvgBackend(backend);
+			byte[] plain = readFully(((StreamResource) wrapper.getSource())
+					.getStream().getStream());
+			wrapper.setSvgMinifier(new SvgMinifier());
+			byte[] minified = readFully(((StreamResource) wrapper.getSource())
+					.getStream().getStream());
+			assertEquals(2, chart.draws);
+			assertTrue(minified.length < plain.length);
+
+			Document plainDocument = factory.newDocumentBuilder().parse(
+					new ByteArrayInputStream(plain));
+			Document minifiedDocument = factory.newDocumentBuilder().parse(
+					new ByteArrayInputStream(minified));
+			int plainLines = plainDocument.getElementsByTagName("path")
+					.getLength()
+					+ plainDocument.getElementsByTagName("line").getLength();
+			int minifiedLines = minifiedDocument.getElementsByTagName("path")
+					.getLength()
+					+ minifiedDocument.getElementsByTagName("line").getLength();
+			// the line segments of the series are one path
+			assertTrue(minifiedLines < plainLines);
+			assertEquals(plainDocument.getElementsByTagName("text")
+					.getLength(), minifiedDocument.getElementsByTagName("text")
+					.getLength());
+		}
+	}
+
+	private static String drawSvg(JFreeChart chart, SVGGraphics2D g2)
+			throws IOException {
+		chart.draw(g2, new Rectangle(400, 300));
+		StringWriter out = new StringWriter();
+		g2.stream(g2.getRoot(), out, false, false);
+		return out.toString();
+	}
+
+	@Test
+	public void pooledSvgGeneratorsDrawLikeNewOnes() throws Exception {
+		DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+		for (int i = 0; i < 5; i++) {
+			dataset.addValue(i + 1, "Series", "Category " + i);
+		}
+		JFreeChart chart = ChartFactory.createBarChart("Bars", "Category",
+				"Value", dataset);
+		BarRenderer renderer = (BarRenderer) chart.getCategoryPlot()
+				.getRenderer();
+		renderer.setBarPainter(new StandardBarPainter());
+		renderer.setSeriesPaint(0, new GradientPaint(0, 0, Color.BLUE, 0, 1,
+				Color.WHITE));
+		// defines gradients, clips and fonts of its own
+		JFreeChart other = new CountingChart();
+		other.setBackgroundPaint(new GradientPaint(0, 0, Color.RED, 0, 300,
+				Color.YELLOW));
+		other.setTitle("Other");
+
+		Document document = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().newDocument();
+		document.appendChild(document.createElement("svg"));
+		String expected = drawSvg(chart, new SVGGraphics2D(document));
+
+		// enough rounds to take every pooled entry more than once
+		int rounds = 4 * Runtime.getRuntime().availableProcessors() + 2;
+		for (int i = 0; i < rounds; i++) {
+			SvgGeneratorPool entry = SvgGeneratorPool.acquire();
+			try {
+				drawSvg(i % 2 == 0 ? other : chart, entry.createGraphics());
+			} finally {
+				entry.release();
+			}
+			entry = SvgGeneratorPool.acquire();
+			try {
+				assertEquals(expected, drawSvg(chart, entry.createGraphics()));
+			} finally {
+				entry.release();
+			}
+		}
+	}
+
+	@Test
+	public void styleClassesAndSharedGradients() throws Exception {
+		DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+		for (int i = 0; i < 20; i++) {
+			dataset.addValue(i + 1, "Series", "Category " + i);
+		}
+		JFreeChart chart = ChartFactory.createBarChart("Bars", "Category",
+				"Value", dataset);
+		BarRenderer renderer = (BarRenderer) chart.getCategoryPlot()
+				.getRenderer();
+		// the gradient is fitted to every bar
+		renderer.setBarPainter(new StandardBarPainter());
+		renderer.setSeriesPaint(0, new GradientPaint(0, 0, Color.BLUE, 0, 1,
+				Color.WHITE));
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setFeature(
+				"http://apache.org/xml/features/nonvalidating/load-external-dtd",
+				false);
+		for (SvgBackend backend : SvgBackend.values()) {
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			wrapper.setSvgBackend(backend);
+			Document plain = factory.newDocumentBuilder().parse(
+					((StreamResource) wrapper.getSource()).getStream()
+							.getStream());
+			wrapper.setSvgMinifier(new SvgMinifier(2, true, true));
+			Document minified = factory.newDocumentBuilder().parse(
+					((StreamResource) wrapper.getSource()).getStream()
+							.getStream());
+
+			assertTrue(plain.getElementsByTagName("linearGradient")
+					.getLength() >= 20);
+			assertEquals(1, minified.getElementsByTagName("linearGradient")
+					.getLength());
+
+			NodeList styles = minified.getElementsByTagName("style");
+			assertEquals(1, styles.getLength());
+			String styleSheet = styles.item(0).getTextContent();
+			NodeList elements = minified.getElementsByTagName("*");
+			int classes = 0;
+			for (int i = 0; i < elements.getLength(); i++) {
+				Element e = (Element) elements.item(i);
+				assertFalse(e.hasAttribute("fill"));
+				assertFalse(e.hasAttribute("stroke"));
+				assertFalse(e.hasAttribute("font-size"));
+				assertFalse(e.hasAttribute("clip-path"));
+				if (e.hasAttribute("class")) {
+					assertTrue(styleSheet.contains("." + e.getAttribute("class")
+							+ "{"));
+					classes++;
+				}
+			}
+			// far fewer distinct styles than styled elements
+			assertTrue(styleSheet.split("\\{").length - 1 < classes / 2);
+		}
+	}
+
+	@Test
+	public void markersForRepeatedShapes() throws Exception {
+		XYSeries series = new XYSeries("Points");
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			series.add(i, random.nextGaussian());
+		}
+		JFreeChart chart = ChartFactory.createScatterPlot("Points", "X", "Y",
+				new XYSeriesCollection(series));
+		((XYPlot) chart.getPlot()).getRenderer().setSeriesShape(0,
+				new Ellipse2D.Double(-3, -3, 6, 6));
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setFeature(
+				"http://apache.org/xml/features/nonvalidating/load-external-dtd",
+				false);
+		for (SvgBackend backend : SvgBackend.values()) {
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			wrapper.setSvgBackend(backend);
+			wrapper.setSvgMinifier(new SvgMinifier(2, true));
+			byte[] paths = readFully(((StreamResource) wrapper.getSource())
+					.getStream().getStream());
+			wrapper.setSvgMinifier(new SvgMinifier(2, true, false, true));
+			byte[] markers = readFully(((StreamResource) wrapper.getSource())
+					.getStream().getStream());
+			assertTrue(markers.length < paths.length * 2 / 3);
+
+			Document document = factory.newDocumentBuilder().parse(
+					new ByteArrayInputStream(markers));
+			NodeList symbols = document.getElementsByTagName("symbol");
+			assertEquals(1, symbols.getLength());
+			String id = ((Element) symbols.item(0)).getAttribute("id");
+			NodeList uses = document.getElementsByTagName("use");
+			assertTrue(uses.getLength() >= 200);
+			for (int i = 0; i < uses.getLength(); i++) {
+				Element use = (Element) uses.item(i);
+				assertEquals("#" + id, use.getAttributeNS(
+						"http://www.w3.org/1999/xlink", "href"));
+				// the clip path would move with the use
+				assertFalse(use.hasAttribute("clip-path"));
+			}
+		}
+	}
+
+	@Test
+	public void autoModeSwitchesToPngForComplexCharts() throws IOException {
+		XYSeries series = new XYSeries("Points");
+		for (int i = 0; i < 1000; i++) {
+			series.add(i, i % 7);
+		}
+		JFreeChart chart = ChartFactory.createXYLineChart("Points", "X", "Y",
+				new XYSeriesCollection(series));
+		// a line, a filled shape and an outline per item
+		((XYLineAndShapeRenderer) ((XYPlot) chart.getPlot()).getRenderer())
+				.setDefaultShapesVisible(true);
+		VaadinSession session = createLockedSession(null);
+		try {
+			UI ui = createUI(session);
+			UI.setCurrent(ui);
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart);
+			ChartRenderStatistics statistics = new ChartRenderStatistics();
+			wrapper.addRenderListener(statistics);
+			assertEquals(RenderingMode.AUTO, wrapper.getRenderingMode());
+			assertNull(wrapper.getModeReason());
+
+			ui.setContent(wrapper);
+			assertEquals(RenderingMode.SVG, wrapper.getRenderingMode());
+			assertEquals(ModeReason.SIMPLE_CHART, wrapper.getModeReason());
+			assertTrue(wrapper.getEstimatedElementCount() >= 3000);
+
+			wrapper.setAutoPngThreshold(2000);
+			wrapper.beforeClientResponse(false);
+			assertEquals(RenderingMode.PNG, wrapper.getRenderingMode());
+			assertEquals(ModeReason.COMPLEX_CHART, wrapper.getModeReason());
+			download(wrapper);
+			assertEquals(1,
+					statistics.getModeReasonCount(ModeReason.COMPLEX_CHART));
+
+			// decimation draws at most four items per pixel column
+			wrapper.setDataDecimation(true);
+			wrapper.setGraphWidth(100);
+			wrapper.beforeClientResponse(false);
+			assertEquals(RenderingMode.SVG, wrapper.getRenderingMode());
+			assertTrue(wrapper.getEstimatedElementCount() < 2000);
+
+			JFreeChartWrapper configured = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			configured.setAutoPngThreshold(0);
+			ui.setContent(configured);
+			assertEquals(RenderingMode.SVG, configured.getRenderingMode());
+			assertEquals(ModeReason.CONFIGURED, configured.getModeReason());
+		} finally {
+			CurrentInstance.clearAll();
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void pngRenderedPerPixelRatioBucket() throws IOException {
+		assertEquals(1, JFreeChartWrapper.snapPixelRatio(0.5), 0);
+		assertEquals(1.5, JFreeChartWrapper.snapPixelRatio(1.25), 0);
+		assertEquals(2, JFreeChartWrapper.snapPixelRatio(1.75), 0);
+		assertEquals(3, JFreeChartWrapper.snapPixelRatio(4), 0);
+
+		CountingChart chart = new CountingChart();
+		JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+				RenderingMode.PNG);
+		wrapper.setGraphWidth(300);
+		wrapper.setGraphHeight(200);
+		BufferedImage image = ImageIO.read(((StreamResource) wrapper
+				.getSource(2)).getStream().getStream());
+		assertEquals(600, image.getWidth());
+		assertEquals(400, image.getHeight());
+		assertEquals(1, chart.draws);
+		// displays of similar density share the render
+		ImageIO.read(((StreamResource) wrapper.getSource(1.8)).getStream()
+				.getStream());
+		assertEquals(1, chart.draws);
+		image = ImageIO.read(((StreamResource) wrapper.getSource(1))
+				.getStream().getStream());
+		assertEquals(300, image.getWidth());
+		assertEquals(2, chart.draws);
+
+		HiDpiPng hiDpi = HiDpiPng.extend(wrapper);
+		assertEquals(Arrays.asList("1.5x", "2x", "3x"),
+				hiDpi.getState(false).descriptors);
+		hiDpi.setPixelRatios(1, 1.9, 2);
+		assertEquals(Arrays.asList("2x"), hiDpi.getState(false).descriptors);
+		assertTrue(hiDpi.getState(false).resources.get("2x") != null);
+		assertNull(hiDpi.getState(false).resources.get("1.5x"));
+
+		// SVG is sharp at any density
+		JFreeChartWrapper svg = new JFreeChartWrapper(chart,
+				RenderingMode.SVG);
+		assertSame(svg.getSource(), svg.getSource(2));
+		assertTrue(HiDpiPng.extend(svg).getState(false).descriptors.isEmpty());
+	}
+
+	@Test
+	public void invalidatedSharedChartGetsNewVersion() throws Exception {
+		VaadinService service = createService();
+		VaadinSession session = createLockedSession(service);
+		try {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			wrapper.setSharedCacheKey("invalidated");
+			createUI(session).setContent(wrapper);
+			StreamResource first = (StreamResource) wrapper.getSource();
+			String firstETag = first.getStream().getParameter("ETag");
+
+			SharedChartCache.get(service).invalidate("invalidated");
+			wrapper.beforeClientResponse(false);
+			StreamResource second = (StreamResource) wrapper.getSource();
+			String secondETag = second.getStream().getParameter("ETag");
+			assertFalse(firstETag.equals(secondETag));
+			assertFalse(first.getFilename().equals(second.getFilename()));
+			assertEquals(2, chart.draws);
+
+			// a change of one copy of the chart leaves the shared render
+			// of the other sessions alone
+			VaadinSession other = createLockedSession(service);
+			try {
+				CountingChart copy = new CountingChart();
+				JFreeChartWrapper copyWrapper = new JFreeChartWrapper(copy,
+						RenderingMode.SVG);
+				copyWrapper.setSharedCacheKey("invalidated");
+				createUI(other).setContent(copyWrapper);
+				copy.setTitle("Changed");
+				StreamResource third = (StreamResource) wrapper.getSource();
+				assertEquals(secondETag, third.getStream()
+						.getParameter("ETag"));
+				assertEquals(2, chart.draws);
+				assertEquals(0, copy.draws);
+			} finally {
+				unlock(other);
+			}
+		} finally {
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void sharedCacheForgetsGenerationsOfUncachedKeys()
+			throws Exception {
+		VaadinService service = createService();
+		VaadinSession session = createLockedSession(service);
+		try {
+			SharedChartCache cache = SharedChartCache.get(service);
+			// e.g. a new key per data refresh
+			for (int i = 0; i < 100; i++) {
+				cache.invalidate("refresh-" + i);
+			}
+			assertEquals(0, cache.getGenerationCount());
+
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			wrapper.setSharedCacheKey("daily");
+			createUI(session).setContent(wrapper);
+			String etag = ((StreamResource) wrapper.getSource()).getStream()
+					.getParameter("ETag");
+			assertEquals(1, cache.getGenerationCount());
+
+			cache.setMaxSizeInBytes(0);
+			assertEquals(0, cache.getGenerationCount());
+			cache.setMaxSizeInBytes(SharedChartCache.DEFAULT_MAX_BYTES);
+			// an evicted chart is rendered again under the same version
+			assertEquals(etag, ((StreamResource) wrapper.getSource())
+					.getStream().getParameter("ETag"));
+			assertEquals(2, chart.draws);
+
+			// a forgotten generation is not used again after invalidation
+			cache.clear();
+			assertEquals(0, cache.getGenerationCount());
+			cache.invalidate("daily");
+			wrapper.beforeClientResponse(false);
+			assertFalse(etag.equals(((StreamResource) wrapper.getSource())
+					.getStream().getParameter("ETag")));
+			assertEquals(1, cache.getGenerationCount());
+		} finally {
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void backgroundRenderFillsCache() throws IOException {
+		VaadinSession session = createLockedSession(null);
+		try {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.PNG);
+			ChartRenderStatistics statistics = new ChartRenderStatistics();
+			wrapper.addRenderListener(statistics);
+			wrapper.setRenderExecutor(new Executor() {
+
+				@Override
+				public void execute(Runnable command) {
+					command.run();
+				}
+			});
+			createUI(session).setContent(wrapper);
+			assertEquals(1, chart.draws);
+
+			assertTrue(download(wrapper) > 0);
+			assertEquals(1, chart.draws);
+			assertEquals(1, statistics.getCacheMissCount());
+
+			chart.setTitle("Changed");
+			assertEquals(2, chart.draws);
+		} finally {
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void downloadWaitsForQueuedBackgroundRender() throws Exception {
+		VaadinSession session = createLockedSession(createService());
+		boolean locked = true;
+		try {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.PNG);
+			final List<Runnable> queued = new ArrayList<Runnable>();
+			wrapper.setRenderExecutor(new Executor() {
+
+				@Override
+				public void execute(Runnable command) {
+					queued.add(command);
+				}
+			});
+			createUI(session).setContent(wrapper);
+			assertEquals(1, queued.size());
+			DownloadStream stream = ((StreamResource) wrapper.getSource())
+					.getStream();
+			// the stream is written once the background render is done
+			assertNull(stream.getStream());
+			unlock(session);
+			locked = false;
+
+			Thread render = new Thread(queued.get(0));
+			render.start();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			stream.writeResponse(null, responseTo(out));
+			render.join();
+			assertEquals(1, chart.draws);
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(out
+					.toByteArray()));
+			assertEquals(wrapper.getGraphWidth(), image.getWidth());
+		} finally {
+			if (locked) {
+				unlock(session);
+			}
+		}
+	}
+
+	@Test
+	public void droppedBackgroundRenderDoesNotBlockDownload()
+			throws Exception {
+		VaadinSession session = createLockedSession(createService());
+		try {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.PNG);
+			final List<Runnable> discarded = new ArrayList<Runnable>();
+			wrapper.setRenderExecutor(new Executor() {
+
+				@Override
+				public void execute(Runnable command) {
+					// like ThreadPoolExecutor.DiscardPolicy with a full queue
+					discarded.add(command);
+				}
+			});
+			createUI(session).setContent(wrapper);
+			DownloadStream stream = ((StreamResource) wrapper.getSource())
+					.getStream();
+			unlock(session);
+			long start = System.nanoTime();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				stream.writeResponse(null, responseTo(out));
+			} finally {
+				session.lock();
+			}
+			assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime()
+					- start) < 10);
+			assertTrue(out.size() > 0);
+			assertEquals(1, chart.draws);
+			// the given up render does not hold back the next one
+			chart.setTitle("Changed");
+			assertEquals(2, discarded.size());
+
+			// a rejected render is drawn on request right away
+			CountingChart rejectedChart = new CountingChart();
+			JFreeChartWrapper rejected = new JFreeChartWrapper(rejectedChart,
+					RenderingMode.PNG);
+			rejected.setRenderExecutor(new Executor() {
+
+				@Override
+				public void execute(Runnable command) {
+					throw new RejectedExecutionException();
+				}
+			});
+			createUI(session).setContent(rejected);
+			assertTrue(download(rejected) > 0);
+			assertEquals(1, rejectedChart.draws);
+		} finally {
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void directStreamingWritesWithoutSessionLock() throws Exception {
+		final VaadinSession session = createLockedSession(createService());
+		boolean locked = true;
+		try {
+			CountingChart pngChart = new CountingChart();
+			JFreeChartWrapper png = new JFreeChartWrapper(pngChart,
+					RenderingMode.PNG);
+			png.setDirectStreaming(true);
+			CountingChart svgChart = new CountingChart();
+			JFreeChartWrapper svg = new JFreeChartWrapper(svgChart,
+					RenderingMode.SVG);
+			svg.setDirectStreaming(true);
+			VerticalLayout layout = new VerticalLayout(png, svg);
+			createUI(session).setContent(layout);
+			DownloadStream pngStream = ((StreamResource) png.getSource())
+					.getStream();
+			DownloadStream svgStream = ((StreamResource) svg.getSource())
+					.getStream();
+			// drawn when the response is written
+			assertNull(pngStream.getStream());
+			assertEquals(0, pngChart.draws);
+			unlock(session);
+			locked = false;
+
+			final List<Boolean> lockedWrites = new ArrayList<Boolean>();
+			ByteArrayOutputStream pngOut = new ByteArrayOutputStream() {
+
+				@Override
+				public synchronized void write(byte[] b, int off, int len) {
+					lockedWrites.add(session.hasLock());
+					super.write(b, off, len);
+				}
+			};
+			pngStream.writeResponse(null, responseTo(pngOut));
+			assertEquals(1, pngChart.draws);
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+					pngOut.toByteArray()));
+			assertEquals(png.getGraphWidth(), image.getWidth());
+			assertFalse(lockedWrites.isEmpty());
+			assertFalse(lockedWrites.contains(Boolean.TRUE));
+
+			lockedWrites.clear();
+			ByteArrayOutputStream svgOut = new ByteArrayOutputStream() {
+
+				@Override
+				public synchronized void write(byte[] b, int off, int len) {
+					lockedWrites.add(session.hasLock());
+					super.write(b, off, len);
+				}
+			};
+			svgStream.writeResponse(null, responseTo(svgOut));
+			assertEquals(1, svgChart.draws);
+			String document = new String(svgOut.toByteArray(),
+					StandardCharsets.UTF_8);
+			assertTrue(document.contains("</svg"));
+			assertFalse(lockedWrites.contains(Boolean.TRUE));
+		} finally {
+			if (locked) {
+				unlock(session);
+			}
+		}
+	}
+
+	@Test
+	public void changesWithinIntervalAreRefreshedOnce() throws Exception {
+		VaadinSession session = createLockedSession(createService());
+		boolean locked = true;
+		try {
+			CountingChart chart = new CountingChart();
+			SourceWrapper wrapper = new SourceWrapper(chart);
+			wrapper.setChangeCoalescingInterval(50);
+			UI ui = createUI(session);
+			ui.setContent(wrapper);
+			Resource initial = wrapper.getResource("src");
+			ui.getConnectorTracker().markAllConnectorsClean();
+
+			XYSeries series = ((XYSeriesCollection) chart.getXYPlot()
+					.getDataset()).getSeries(0);
+			for (int i = 10; i < 15; i++) {
+				series.add(i, i * i);
+			}
+			assertTrue(wrapper.isRefreshPending());
+			// not sent to the browser before the refresh
+			assertFalse(ui.getConnectorTracker().isDirty(wrapper));
+
+			unlock(session);
+			locked = false;
+			long deadline = System.currentTimeMillis() + 5000;
+			while (true) {
+				session.lock();
+				locked = true;
+				if (!wrapper.isRefreshPending()
+						|| System.currentTimeMillis() > deadline) {
+					break;
+				}
+				unlock(session);
+				locked = false;
+				Thread.sleep(10);
+			}
+			assertTrue(ui.getConnectorTracker().isDirty(wrapper));
+			wrapper.beforeClientResponse(false);
+			Resource refreshed = wrapper.getResource("src");
+			assertNotSame(initial, refreshed);
+			assertEquals(0, chart.draws);
+			download(wrapper);
+			assertEquals(1, chart.draws);
+			// nothing changed since the refresh
+			wrapper.beforeClientResponse(false);
+			assertSame(refreshed, wrapper.getResource("src"));
+		} finally {
+			if (locked) {
+				unlock(session);
+			}
+		}
+	}
+
+	@Test
+	public void detachCancelsPendingRefresh() throws Exception {
+		VaadinSession session = createLockedSession(createService());
+		try {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			wrapper.setChangeCoalescingInterval(60000);
+			UI ui = createUI(session);
+			ui.setContent(wrapper);
+			chart.setTitle("Changed");
+			assertTrue(wrapper.isRefreshPending());
+
+			ui.setContent(null);
+			assertFalse(wrapper.isRefreshPending());
+			// detached wrappers are refreshed when attached again
+			chart.setTitle("Detached");
+			assertFalse(wrapper.isRefreshPending());
+			assertEquals(0, chart.draws);
+		} finally {
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void sharedChartIsRenderedOncePerService() throws Exception {
+		VaadinService service = createService();
+		VaadinSession first = createLockedSession(service);
+		VaadinSession second = createLockedSession(service);
+		try {
+			CountingChart firstChart = new CountingChart();
+			JFreeChartWrapper firstWrapper = new JFreeChartWrapper(firstChart,
+					RenderingMode.SVG);
+			firstWrapper.setSharedCacheKey("sales");
+			createUI(first).setContent(firstWrapper);
+			CountingChart secondChart = new CountingChart();
+			JFreeChartWrapper secondWrapper = new JFreeChartWrapper(
+					secondChart, RenderingMode.SVG);
+			secondWrapper.setSharedCacheKey("sales");
+			createUI(second).setContent(secondWrapper);
+
+			int size = download(firstWrapper);
+			assertEquals(size, download(secondWrapper));
+			assertEquals(1, firstChart.draws);
+			assertEquals(0, secondChart.draws);
+
+			SharedChartCache cache = SharedChartCache.get(service);
+			assertEquals(1, cache.size());
+			assertEquals(1, cache.getMissCount());
+			assertEquals(1, cache.getHitCount());
+
+			// other sizes are rendered separately
+			secondWrapper.setGraphWidth(400);
+			download(secondWrapper);
+			assertEquals(1, secondChart.draws);
+			assertEquals(2, cache.size());
+			assertEquals(2, cache.getMissCount());
+		} finally {
+			unlock(second);
+			unlock(first);
+		}
+	}
+
+	@Test
+	public void sharedCacheEvictsAboveByteLimit() throws Exception {
+		VaadinService service = createService();
+		VaadinSession session = createLockedSession(service);
+		try {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper daily = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			daily.setSharedCacheKey("daily");
+			JFreeChartWrapper weekly = new JFreeChartWrapper(chart,
+					RenderingMode.SVG);
+			weekly.setSharedCacheKey("weekly");
+			createUI(session).setContent(new VerticalLayout(daily, weekly));
+
+			SharedChartCache cache = SharedChartCache.get(service);
+			download(daily);
+			long size = cache.getSizeInBytes();
+			assertTrue(size > 0);
+			cache.setMaxSizeInBytes(size + size / 2);
+			download(weekly);
+			assertEquals(1, cache.getEvictionCount());
+			assertEquals(1, cache.size());
+			assertTrue(cache.getSizeInBytes() <= cache.getMaxSizeInBytes());
+			assertEquals(2, chart.draws);
+
+			// the most recent chart is kept, the evicted one drawn again
+			download(weekly);
+			assertEquals(2, chart.draws);
+			download(daily);
+			assertEquals(3, chart.draws);
+			assertEquals(2, cache.getEvictionCount());
+			assertEquals(1, cache.getHitCount());
+			assertEquals(3, cache.getMissCount());
+		} finally {
+			unlock(session);
+		}
+	}
+
+	@Test
+	public void invalidatedSharedChartIsRenderedAgain() throws Exception {
+		VaadinService service = createService();
+		VaadinSession session = createLockedSession(service);
+		try {
+			CountingChart chart = new CountingChart();
+			JFreeChartWrapper wrapper = new JFreeChartWrapper(chart,
+					RenderingMode.PNG);
+			wrapper.setSharedCacheKey("stock");
+			JFreeChartWrapper other = new JFreeChartWrapper(
+					new CountingChart(), RenderingMode.PNG);
+			other.setSharedCacheKey("other");
+			createUI(session).setContent(new VerticalLayout(wrapper, other));
+
+			SharedChartCache cache = SharedChartCache.get(service);
+			download(wrapper);
+			download(other);
+			assertEquals(2, cache.size());
+
+			// charts of other keys stay cached
+			cache.invalidate("stock");
+			assertEquals(1, cache.size());
+			download(wrapper);
+			download(wrapper);
+			assertEquals(2, chart.draws);
+			assertEquals(3, cache.getMissCount());
+			assertEquals(1, cache.getHitCount());
+
+			cache.clear();
+			assertEquals(0, cache.size());
+			assertEquals(0, cache.getSizeInBytes());
+		} finally {
+			unlock(session);
+		}
+	}
+}